@@ -0,0 +1,43 @@
+package com.qmonix.sdk.bench;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.qmonix.sdk.EventDispatcher;
+
+
+/**
+ * Per benchmark thread count of submitted events. Dispatches collected events once a batch is
+ * complete, so dispatcher memory stays bounded however long a benchmark runs.
+ */
+@State(Scope.Thread)
+public class BatchCounter {
+
+	private int submitted = 0;
+	private EventDispatcher lastDispatcher;
+
+
+	/**
+	 * Counts a submitted event and dispatches collected events if batch is complete.
+	 *
+	 * @param dispatcher dispatcher the event was submitted to.
+	 * @param batchSize number of events per dispatch.
+	 */
+	public void onSubmit(EventDispatcher dispatcher, int batchSize) {
+		this.lastDispatcher = dispatcher;
+		this.submitted++;
+
+		if (this.submitted >= batchSize) {
+			this.submitted = 0;
+			dispatcher.dispatch(DiscardingDispatcher.IGNORING_HANDLER);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (this.lastDispatcher != null) {
+			this.lastDispatcher.dispatch(DiscardingDispatcher.IGNORING_HANDLER);
+		}
+	}
+}
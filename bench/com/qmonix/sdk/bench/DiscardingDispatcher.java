@@ -0,0 +1,40 @@
+package com.qmonix.sdk.bench;
+
+import com.qmonix.sdk.AbstractEventDispatcher;
+import com.qmonix.sdk.EventDispatchHandler;
+import com.qmonix.sdk.EventMessage;
+
+
+/**
+ * Dispatcher which takes collected events the same way real dispatchers do and then drops them,
+ * so benchmarks measure collecting events without any I/O.
+ */
+public class DiscardingDispatcher extends AbstractEventDispatcher {
+
+	/* Handler which ignores dispatch results. */
+	public static final EventDispatchHandler IGNORING_HANDLER = new EventDispatchHandler() {
+		public void onSuccess() {
+		}
+
+		public void onError(String errorMessage) {
+		}
+	};
+
+	private volatile int lastEventCount;
+
+
+	@Override
+	synchronized public void dispatch(EventDispatchHandler handler) {
+		EventMessage message = this.takePendingEvents();
+		this.lastEventCount = message.getEventCount();
+		this.acknowledgeEvents(message);
+		handler.onSuccess();
+	}
+
+	/**
+	 * @return number of events taken by the last dispatch.
+	 */
+	public int getLastEventCount() {
+		return this.lastEventCount;
+	}
+}
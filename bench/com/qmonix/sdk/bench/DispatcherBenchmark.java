@@ -0,0 +1,65 @@
+package com.qmonix.sdk.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.qmonix.sdk.Event;
+import com.qmonix.sdk.VolumeEvent;
+
+
+/**
+ * Measures {@link com.qmonix.sdk.EventDispatcher#submit submit} of already created events and
+ * of events given by their fields, which are stored without event objects. Every
+ * benchmark thread dispatches collected events after submitting {@code batchSize} events, so
+ * the cost of taking events for dispatch is amortized over the batch and submitting threads
+ * contend with dispatching ones the way application threads do.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class DispatcherBenchmark {
+
+	@Param({"1", "100", "10000"})
+	public int batchSize;
+
+	@Param({"0", "1"})
+	public long aggregationSeconds;
+
+	private DiscardingDispatcher dispatcher;
+	private Event event = new Event("bench/dispatcher/event", 1400000000);
+	private Event volumeEvent = new VolumeEvent("bench/dispatcher/volume", 1400000000, 42);
+
+
+	@Setup
+	public void setUp() {
+		this.dispatcher = new DiscardingDispatcher();
+		this.dispatcher.setAggregation(this.aggregationSeconds);
+	}
+
+	@Benchmark
+	public void submit(BatchCounter counter) {
+		this.dispatcher.submit(this.event);
+		counter.onSubmit(this.dispatcher, this.batchSize);
+	}
+
+	@Benchmark
+	public void submitVolume(BatchCounter counter) {
+		this.dispatcher.submit(this.volumeEvent);
+		counter.onSubmit(this.dispatcher, this.batchSize);
+	}
+
+	@Benchmark
+	public void submitFields(BatchCounter counter) {
+		this.dispatcher.submit("bench/dispatcher/fields", 1400000000);
+		counter.onSubmit(this.dispatcher, this.batchSize);
+	}
+}
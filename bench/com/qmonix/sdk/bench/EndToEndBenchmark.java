@@ -0,0 +1,244 @@
+package com.qmonix.sdk.bench;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.qmonix.sdk.AbstractEventDispatcher;
+import com.qmonix.sdk.DispatcherMetrics;
+import com.qmonix.sdk.Event;
+import com.qmonix.sdk.EventDispatchHandler;
+import com.qmonix.sdk.HttpEventDispatcher;
+import com.qmonix.sdk.RetryPolicy;
+import com.qmonix.sdk.Tracker;
+import com.qmonix.sdk.helpers.ContentEncoding;
+
+
+/**
+ * Measures {@link HttpEventDispatcher} end to end against {@link StandInCollector}: events
+ * delivered per second, bytes sent per event and dispatch latency percentiles. Every simulated
+ * device is a thread with its own dispatcher which fires events through {@link Tracker} at a
+ * steady rate and dispatches them synchronously at a fixed interval; dispatch latency is the
+ * time {@link HttpEventDispatcher#dispatch dispatch} blocks. Failed dispatches are retried and
+ * devices drain their queues before results are collected.
+ * <p>
+ * Usage: {@code EndToEndBenchmark [devices] [seconds] [events/s per device]
+ * [dispatch interval ms] [server latency ms] [error rate] [throttle rate]}.
+ */
+public class EndToEndBenchmark {
+
+	private static final int TICK_MS = 10;
+	private static final int TAG_COUNT = 32;
+	private static final int DRAIN_MS = 5000;
+
+
+	public static void main(String[] args) throws IOException, InterruptedException,
+		URISyntaxException {
+		int devices = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int eventRate = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		int dispatchInterval = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+		long latency = args.length > 4 ? Long.parseLong(args[4]) : 20;
+		double errorRate = args.length > 5 ? Double.parseDouble(args[5]) : 0;
+		double throttleRate = args.length > 6 ? Double.parseDouble(args[6]) : 0;
+
+		StandInCollector collector = new StandInCollector(Math.max(8, devices / 4));
+		collector.setLatency(latency);
+		collector.setErrorRate(errorRate);
+		collector.setThrottling(throttleRate, 1);
+
+		DeviceRouter router = new DeviceRouter();
+		Tracker.setDispatcher(router);
+
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final CountDownLatch done = new CountDownLatch(devices);
+		ArrayList<Device> simulated = new ArrayList<Device>();
+		for (int i = 0; i < devices; i++) {
+			HttpEventDispatcher dispatcher = new HttpEventDispatcher(collector.getUri());
+			dispatcher.setCompression(ContentEncoding.GZIP, 6, 1024);
+			dispatcher.setRetryPolicy(new RetryPolicy(3, 200, 2000));
+
+			Device device = new Device(router, dispatcher, eventRate, dispatchInterval,
+				seconds, running, done);
+			simulated.add(device);
+			new Thread(device, "Device-" + i).start();
+		}
+
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		running.set(false);
+		done.await();
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		long submitted = 0;
+		long dropped = 0;
+		long retries = 0;
+		int latencyCount = 0;
+		for (Device device : simulated) {
+			DispatcherMetrics metrics = device.dispatcher.getMetrics();
+			submitted += metrics.getSubmittedEvents();
+			dropped += metrics.getDroppedEvents();
+			retries += metrics.getRetries();
+			latencyCount += device.latencyCount;
+			device.dispatcher.shutdown();
+		}
+
+		long[] latencies = new long[latencyCount];
+		int offset = 0;
+		for (Device device : simulated) {
+			System.arraycopy(device.latencies, 0, latencies, offset, device.latencyCount);
+			offset += device.latencyCount;
+		}
+		Arrays.sort(latencies);
+
+		long delivered = collector.getAcceptedEvents();
+		System.out.println("devices\t" + devices);
+		System.out.println("submitted events\t" + submitted);
+		System.out.println("delivered events\t" + delivered);
+		System.out.println("undelivered events\t" + (submitted - dropped - delivered));
+		System.out.println("delivered events/s\t" + (long)(delivered / elapsed));
+		System.out.println("bytes/event\t" + (delivered == 0 ? 0
+			: (double)collector.getAcceptedBytes() / delivered));
+		System.out.println("requests\t" + collector.getRequests().size());
+		System.out.println("failed/throttled/rejected\t" + collector.getFailedRequests() + "/"
+			+ collector.getThrottledRequests() + "/" + collector.getRejectedRequests());
+		System.out.println("client retries/dropped\t" + retries + "/" + dropped);
+		System.out.println("dispatch latency p50/p99/max ms\t"
+			+ EndToEndBenchmark.percentileMs(latencies, 0.5) + "/"
+			+ EndToEndBenchmark.percentileMs(latencies, 0.99) + "/"
+			+ EndToEndBenchmark.percentileMs(latencies, 1));
+
+		collector.stop();
+	}
+
+	/**
+	 * @return percentile of sorted durations in milliseconds.
+	 */
+	private static double percentileMs(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+
+		int index = (int)Math.ceil(percentile * sorted.length) - 1;
+		return sorted[Math.max(0, index)] / 1e6;
+	}
+
+
+	/**
+	 * Simulated device: fires events at a steady rate and dispatches them at a fixed interval.
+	 */
+	private static class Device implements Runnable {
+
+		private DeviceRouter router;
+		private HttpEventDispatcher dispatcher;
+		private int eventRate;
+		private int dispatchInterval;
+		private AtomicBoolean running;
+		private CountDownLatch done;
+
+		/* Dispatch latencies in nanoseconds. Read after device is done. */
+		private long[] latencies;
+		private int latencyCount = 0;
+
+
+		public Device(DeviceRouter router, HttpEventDispatcher dispatcher, int eventRate,
+			int dispatchInterval, int seconds, AtomicBoolean running, CountDownLatch done) {
+			this.router = router;
+			this.dispatcher = dispatcher;
+			this.eventRate = eventRate;
+			this.dispatchInterval = dispatchInterval;
+			this.running = running;
+			this.done = done;
+			this.latencies = new long[seconds * 1000 / Math.max(1, dispatchInterval) + 2];
+		}
+
+		@Override
+		public void run() {
+			this.router.attach(this.dispatcher);
+			EventDispatchHandler handler = DiscardingDispatcher.IGNORING_HANDLER;
+
+			long start = System.nanoTime();
+			long fired = 0;
+			long nextDispatch = start + TimeUnit.MILLISECONDS.toNanos(this.dispatchInterval);
+
+			try {
+				while (this.running.get()) {
+					long now = System.nanoTime();
+					long due = (now - start) * this.eventRate / 1000000000L;
+					for (; fired < due; fired++) {
+						Tracker.fire("bench/e2e/screen/" + (fired % TAG_COUNT));
+					}
+
+					if (now >= nextDispatch) {
+						this.dispatch(handler);
+						nextDispatch += TimeUnit.MILLISECONDS.toNanos(this.dispatchInterval);
+					}
+
+					Thread.sleep(TICK_MS);
+				}
+
+				/* Drain events left by failed dispatches, waiting for scheduled retries. */
+				long drainEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_MS);
+				do {
+					this.dispatch(handler);
+					Thread.sleep(TICK_MS * 10);
+				} while (this.dispatcher.getMetrics().getQueueDepth() > 0
+					&& System.nanoTime() < drainEnd);
+
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+
+			} finally {
+				this.done.countDown();
+			}
+		}
+
+		private void dispatch(EventDispatchHandler handler) {
+			long start = System.nanoTime();
+			this.dispatcher.dispatch(handler);
+			if (this.latencyCount < this.latencies.length) {
+				this.latencies[this.latencyCount++] = System.nanoTime() - start;
+			}
+		}
+	}
+
+
+	/**
+	 * Dispatcher set to {@link Tracker} which passes events to the dispatcher of the device
+	 * the calling thread simulates, so all devices are driven through the same static API.
+	 */
+	private static class DeviceRouter extends AbstractEventDispatcher {
+
+		private ThreadLocal<AbstractEventDispatcher> device =
+			new ThreadLocal<AbstractEventDispatcher>();
+
+
+		public void attach(AbstractEventDispatcher dispatcher) {
+			this.device.set(dispatcher);
+		}
+
+		@Override
+		public void submit(Event event) {
+			this.device.get().submit(event);
+		}
+
+		@Override
+		public void submit(String tag, long timeArised) {
+			this.device.get().submit(tag, timeArised);
+		}
+
+		@Override
+		public void submit(String tag, long timeArised, long volume) {
+			this.device.get().submit(tag, timeArised, volume);
+		}
+
+		@Override
+		public void dispatch(EventDispatchHandler handler) {
+			handler.onError("Devices dispatch their own events.");
+		}
+	}
+}
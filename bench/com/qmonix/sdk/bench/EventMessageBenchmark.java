@@ -0,0 +1,85 @@
+package com.qmonix.sdk.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.qmonix.sdk.BinaryEventMessageSerializer;
+import com.qmonix.sdk.Event;
+import com.qmonix.sdk.EventJsonWriter;
+import com.qmonix.sdk.EventMessage;
+import com.qmonix.sdk.VolumeEvent;
+import com.qmonix.sdk.utils.ReusableByteArrayOutputStream;
+
+
+/**
+ * Measures event message encoding: {@link EventMessage#toJson toJson}, which builds a string,
+ * and {@link EventMessage#writeJson(EventJsonWriter) writeJson} into a reused buffer the way
+ * {@link com.qmonix.sdk.HttpEventDispatcher} sends events, the same with a tag dictionary and
+ * {@link BinaryEventMessageSerializer}. Messages hold {@code batchSize} events, half of them
+ * volume events, with tags of a typical length.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class EventMessageBenchmark {
+
+	@Param({"1", "100", "10000"})
+	public int batchSize;
+
+	private EventMessage message;
+	private ReusableByteArrayOutputStream buffer = new ReusableByteArrayOutputStream(16 * 1024,
+		16 * 1024 * 1024);
+	private EventJsonWriter writer = new EventJsonWriter(this.buffer);
+	private BinaryEventMessageSerializer binarySerializer = new BinaryEventMessageSerializer();
+
+
+	@Setup
+	public void setUp() {
+		this.message = new EventMessage();
+		for (int i = 0; i < this.batchSize; i++) {
+			String tag = "bench/screen/" + (i % 16) + "/button/click";
+			if (i % 2 == 0) {
+				this.message.addEvent(new Event(tag, 1400000000 + i));
+			} else {
+				this.message.addEvent(new VolumeEvent(tag, 1400000000 + i, i));
+			}
+		}
+	}
+
+	@Benchmark
+	public String toJson() throws JSONException {
+		return this.message.toJson();
+	}
+
+	@Benchmark
+	public int writeJson() throws IOException {
+		this.buffer.reset();
+		this.message.writeJson(this.writer);
+		return this.buffer.size();
+	}
+
+	@Benchmark
+	public int writeJsonTagDictionary() throws IOException {
+		this.buffer.reset();
+		this.message.writeJson(this.writer, true);
+		return this.buffer.size();
+	}
+
+	@Benchmark
+	public int writeBinary() throws IOException {
+		this.buffer.reset();
+		this.binarySerializer.write(this.message, this.buffer);
+		return this.buffer.size();
+	}
+}
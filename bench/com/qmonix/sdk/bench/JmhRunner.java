@@ -0,0 +1,56 @@
+package com.qmonix.sdk.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Runs JMH benchmarks of the SDK with every requested number of threads. For each thread count
+ * benchmarks are run twice: in throughput mode with GC profiler, which reports operations per
+ * second and allocation rate per operation, and in sample time mode, which reports latency
+ * percentiles in nanoseconds.
+ * <p>
+ * Usage: {@code JmhRunner [thread counts] [benchmark regexp] [JSON result file prefix]}, e.g.
+ * {@code JmhRunner 1,2,4,8 Tracker}. Defaults to 1,2,4 threads and all benchmarks.
+ */
+public class JmhRunner {
+
+	public static void main(String[] args) throws RunnerException {
+		String[] threadCounts = (args.length > 0 ? args[0] : "1,2,4").split(",");
+		String include = args.length > 1 ? args[1] : "com\\.qmonix\\.sdk\\.bench\\..*Benchmark";
+		String resultPrefix = args.length > 2 ? args[2] : null;
+
+		for (String threadCount : threadCounts) {
+			int threads = Integer.parseInt(threadCount.trim());
+
+			ChainedOptionsBuilder throughput = new OptionsBuilder()
+				.include(include)
+				.threads(threads)
+				.mode(Mode.Throughput)
+				.timeUnit(TimeUnit.SECONDS)
+				.addProfiler(GCProfiler.class);
+			ChainedOptionsBuilder latency = new OptionsBuilder()
+				.include(include)
+				.threads(threads)
+				.mode(Mode.SampleTime)
+				.timeUnit(TimeUnit.NANOSECONDS);
+
+			if (resultPrefix != null) {
+				throughput.result(resultPrefix + "-throughput-" + threads + ".json")
+					.resultFormat(ResultFormatType.JSON);
+				latency.result(resultPrefix + "-latency-" + threads + ".json")
+					.resultFormat(ResultFormatType.JSON);
+			}
+
+			new Runner(throughput.build()).run();
+			new Runner(latency.build()).run();
+		}
+	}
+}
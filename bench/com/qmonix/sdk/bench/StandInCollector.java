@@ -0,0 +1,444 @@
+package com.qmonix.sdk.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.qmonix.sdk.BinaryEventMessageSerializer;
+import com.qmonix.sdk.utils.DaemonThreadFactory;
+
+
+/**
+ * Embedded stand-in for the Qmonix event collector, so dispatchers might be measured end to end
+ * on a single machine. Collector accepts event messages posted by {@link
+ * com.qmonix.sdk.HttpEventDispatcher}, decompresses them and validates them against the event
+ * message schema: JSON messages must hold an {@code events} array and {@code whenSent} time,
+ * every event a tag or a valid tag dictionary id and {@code whenArised} time. Binary messages are
+ * decoded with {@link BinaryEventMessageSerializer}. Invalid messages are rejected with status
+ * 400, unknown content types with 415. Binary messages might be rejected with 415 too, as by
+ * a server that does not support them yet.
+ * <p>
+ * Server behaviour might be degraded on purpose: every request might be delayed, and a share of
+ * requests might fail with status 500 or be throttled with status 429 and Retry-After header.
+ * Every request is recorded with its size, number of events, response status and handling time.
+ * <p>
+ * Uses the HTTP server built into the JDK, so nothing but the JVM is needed.
+ */
+public class StandInCollector {
+
+	public static final int STATUS_OK = 200;
+	public static final int STATUS_BAD_REQUEST = 400;
+	public static final int STATUS_UNSUPPORTED_MEDIA_TYPE = 415;
+	public static final int STATUS_TOO_MANY_REQUESTS = 429;
+	public static final int STATUS_SERVER_ERROR = 500;
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final byte[] OK_RESPONSE = {'{', '}'};
+
+	private HttpServer server;
+	private ExecutorService executor;
+	private Random random = new Random();
+
+	private volatile long latencyMs = 0;
+	private volatile double errorRate = 0;
+	private volatile double throttleRate = 0;
+	private volatile int retryAfterSeconds = 1;
+	private volatile boolean binaryAccepted = true;
+
+	private AtomicLong acceptedEvents = new AtomicLong();
+	private AtomicLong acceptedBytes = new AtomicLong();
+	private AtomicLong rejectedRequests = new AtomicLong();
+	private AtomicLong failedRequests = new AtomicLong();
+	private AtomicLong throttledRequests = new AtomicLong();
+	private ConcurrentLinkedQueue<Request> requests = new ConcurrentLinkedQueue<Request>();
+
+
+	/**
+	 * Starts collector on a free local port.
+	 *
+	 * @param threads number of threads handling requests. Requests are delayed on these
+	 *	threads, so there should be enough of them for the simulated load.
+	 */
+	public StandInCollector(int threads) throws IOException {
+		this.executor = Executors.newFixedThreadPool(threads,
+			new DaemonThreadFactory("StandInCollector"));
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), threads);
+		this.server.setExecutor(this.executor);
+		this.server.createContext("/", new CollectorHandler());
+		this.server.start();
+	}
+
+	/**
+	 * @return uri events should be posted to.
+	 */
+	public String getUri() {
+		return "http://127.0.0.1:" + this.server.getAddress().getPort() + "/event/";
+	}
+
+	/**
+	 * Delays every response.
+	 *
+	 * @param latencyMs delay in milliseconds, 0 disables.
+	 */
+	public void setLatency(long latencyMs) {
+		this.latencyMs = latencyMs;
+	}
+
+	/**
+	 * Fails a share of requests with status 500.
+	 *
+	 * @param errorRate share of failed requests from 0 to 1.
+	 */
+	public void setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * Throttles a share of requests with status 429.
+	 *
+	 * @param throttleRate share of throttled requests from 0 to 1.
+	 * @param retryAfterSeconds value of Retry-After header sent with throttled requests.
+	 */
+	public void setThrottling(double throttleRate, int retryAfterSeconds) {
+		this.throttleRate = throttleRate;
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	/**
+	 * Sets whether binary event messages are accepted. Rejected ones get status 415.
+	 *
+	 * @param accepted true to accept binary messages, which is the default.
+	 */
+	public void setBinaryAccepted(boolean accepted) {
+		this.binaryAccepted = accepted;
+	}
+
+	/**
+	 * @return number of events in accepted messages.
+	 */
+	public long getAcceptedEvents() {
+		return this.acceptedEvents.get();
+	}
+
+	/**
+	 * @return size of accepted request bodies in bytes, as sent, i.e. compressed.
+	 */
+	public long getAcceptedBytes() {
+		return this.acceptedBytes.get();
+	}
+
+	/**
+	 * @return number of requests rejected as malformed or of unknown content type.
+	 */
+	public long getRejectedRequests() {
+		return this.rejectedRequests.get();
+	}
+
+	/**
+	 * @return number of requests failed on purpose with status 500.
+	 */
+	public long getFailedRequests() {
+		return this.failedRequests.get();
+	}
+
+	/**
+	 * @return number of requests throttled on purpose with status 429.
+	 */
+	public long getThrottledRequests() {
+		return this.throttledRequests.get();
+	}
+
+	/**
+	 * @return all requests handled so far, in order of completion.
+	 */
+	public ArrayList<Request> getRequests() {
+		return new ArrayList<Request>(this.requests);
+	}
+
+	/**
+	 * Stops collector, requests being handled are aborted.
+	 */
+	public void stop() {
+		this.server.stop(0);
+		this.executor.shutdownNow();
+	}
+
+
+	// Private methods.
+
+	/**
+	 * Decides whether request fails on purpose.
+	 *
+	 * @return status to fail with or 0 if request is handled normally.
+	 */
+	private int injectFailure() {
+		double draw;
+		synchronized (this.random) {
+			draw = this.random.nextDouble();
+		}
+
+		if (draw < this.throttleRate) {
+			return STATUS_TOO_MANY_REQUESTS;
+		} else if (draw < this.throttleRate + this.errorRate) {
+			return STATUS_SERVER_ERROR;
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Reads request body and decompresses it according to Content-Encoding header.
+	 *
+	 * @return decoded body.
+	 */
+	private static byte[] readBody(InputStream in, String encoding) throws IOException {
+		if ("gzip".equals(encoding)) {
+			in = new GZIPInputStream(in);
+		} else if ("deflate".equals(encoding)) {
+			in = new InflaterInputStream(in);
+		} else if (encoding != null && !"identity".equals(encoding)) {
+			throw new IOException("Unknown content encoding: " + encoding);
+		}
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			body.write(buffer, 0, read);
+		}
+
+		return body.toByteArray();
+	}
+
+	/**
+	 * Validates JSON event message.
+	 *
+	 * @return number of events in the message.
+	 * @throws JSONException if message does not match the schema.
+	 */
+	private static int validateJson(String body) throws JSONException {
+		JSONObject message = new JSONObject(body);
+		message.getLong("whenSent");
+
+		int tagCount = 0;
+		if (message.has("tags")) {
+			JSONArray tags = message.getJSONArray("tags");
+			tagCount = tags.length();
+			for (int i = 0; i < tagCount; i++) {
+				tags.getString(i);
+			}
+		}
+
+		JSONArray events = message.getJSONArray("events");
+		for (int i = 0; i < events.length(); i++) {
+			JSONObject event = events.getJSONObject(i);
+			event.getLong("whenArised");
+
+			if (event.has("tagId")) {
+				int tagId = event.getInt("tagId");
+				if (tagId < 0 || tagId >= tagCount) {
+					throw new JSONException("Invalid tag id: " + tagId);
+				}
+			} else if (event.getString("tag").length() == 0) {
+				throw new JSONException("Empty tag.");
+			}
+
+			if (event.has("volume") && event.getLong("volume") < 0) {
+				throw new JSONException("Negative volume.");
+			}
+			if (event.has("count") && event.getLong("count") < 0) {
+				throw new JSONException("Negative count.");
+			}
+		}
+
+		return events.length();
+	}
+
+
+	/**
+	 * Statistics of a single handled request.
+	 */
+	public static class Request {
+
+		private long bytes;
+		private int events;
+		private int status;
+		private long handlingNanos;
+
+
+		Request(long bytes, int events, int status, long handlingNanos) {
+			this.bytes = bytes;
+			this.events = events;
+			this.status = status;
+			this.handlingNanos = handlingNanos;
+		}
+
+		/**
+		 * @return request body size in bytes, as sent.
+		 */
+		public long getBytes() {
+			return this.bytes;
+		}
+
+		/**
+		 * @return number of events in the message, 0 if it was not accepted.
+		 */
+		public int getEvents() {
+			return this.events;
+		}
+
+		/**
+		 * @return response status code.
+		 */
+		public int getStatus() {
+			return this.status;
+		}
+
+		/**
+		 * @return time from reading request to sending response, including injected latency.
+		 */
+		public long getHandlingNanos() {
+			return this.handlingNanos;
+		}
+	}
+
+
+	/**
+	 * Handles a single event message request.
+	 */
+	private class CollectorHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			long start = System.nanoTime();
+			StandInCollector collector = StandInCollector.this;
+
+			try {
+				CountingInputStream in = new CountingInputStream(exchange.getRequestBody());
+				int status = STATUS_OK;
+				int events = 0;
+
+				try {
+					byte[] body = StandInCollector.readBody(in,
+						exchange.getRequestHeaders().getFirst("Content-Encoding"));
+					String type = exchange.getRequestHeaders().getFirst("Content-Type");
+
+					if (type != null && type.startsWith("application/json")) {
+						events = StandInCollector.validateJson(new String(body, "UTF-8"));
+					} else if (BinaryEventMessageSerializer.CONTENT_TYPE.equals(type)
+						&& collector.binaryAccepted) {
+						events = BinaryEventMessageSerializer.decode(body, 0, body.length)
+							.getEventCount();
+					} else {
+						status = STATUS_UNSUPPORTED_MEDIA_TYPE;
+					}
+
+				} catch (IOException e) {
+					status = STATUS_BAD_REQUEST;
+
+				} catch (JSONException e) {
+					status = STATUS_BAD_REQUEST;
+				}
+
+				if (collector.latencyMs > 0) {
+					try {
+						TimeUnit.MILLISECONDS.sleep(collector.latencyMs);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+
+				if (status == STATUS_OK) {
+					status = collector.injectFailure();
+					if (status == 0) {
+						status = STATUS_OK;
+					}
+				}
+
+				if (status == STATUS_OK) {
+					collector.acceptedEvents.addAndGet(events);
+					collector.acceptedBytes.addAndGet(in.getCount());
+				} else if (status == STATUS_TOO_MANY_REQUESTS) {
+					collector.throttledRequests.incrementAndGet();
+					exchange.getResponseHeaders().add("Retry-After",
+						String.valueOf(collector.retryAfterSeconds));
+				} else if (status == STATUS_SERVER_ERROR) {
+					collector.failedRequests.incrementAndGet();
+				} else {
+					collector.rejectedRequests.incrementAndGet();
+				}
+
+				/* Recorded before responding, so clients see their request recorded. */
+				collector.requests.add(new Request(in.getCount(),
+					status == STATUS_OK ? events : 0, status, System.nanoTime() - start));
+
+				if (status == STATUS_OK) {
+					exchange.sendResponseHeaders(status, OK_RESPONSE.length);
+					exchange.getResponseBody().write(OK_RESPONSE);
+				} else {
+					exchange.sendResponseHeaders(status, -1);
+				}
+
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Counts bytes read from the underlying stream.
+	 */
+	private static class CountingInputStream extends InputStream {
+
+		private InputStream in;
+		private long count = 0;
+
+
+		public CountingInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = this.in.read();
+			if (b >= 0) {
+				this.count++;
+			}
+
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = this.in.read(buffer, offset, length);
+			if (read > 0) {
+				this.count += read;
+			}
+
+			return read;
+		}
+
+		public long getCount() {
+			return this.count;
+		}
+	}
+}
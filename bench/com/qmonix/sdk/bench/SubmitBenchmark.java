@@ -0,0 +1,132 @@
+package com.qmonix.sdk.bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.qmonix.sdk.AbstractEventDispatcher;
+import com.qmonix.sdk.Event;
+import com.qmonix.sdk.EventDispatchHandler;
+import com.qmonix.sdk.EventDispatcher;
+import com.qmonix.sdk.EventMessage;
+
+
+/**
+ * Measures {@link EventDispatcher#submit submit} throughput with a growing number of producer
+ * threads while a single consumer thread keeps dispatching collected events. Lock-free dispatcher
+ * queue is compared with a dispatcher that guards its event list with a monitor.
+ * <p>
+ * Usage: {@code SubmitBenchmark [max threads] [seconds per run]}. Thread count is doubled from 1
+ * up to max threads.
+ */
+public class SubmitBenchmark {
+
+	private static final int DISPATCH_INTERVAL_MS = 10;
+
+
+	public static void main(String[] args) throws InterruptedException {
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		System.out.println("threads\tlock-free events/s\tsynchronized events/s");
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			long lockFree = SubmitBenchmark.run(new DiscardingDispatcher(), threads, seconds);
+			long locked = SubmitBenchmark.run(new SynchronizedDispatcher(), threads,
+				seconds);
+
+			System.out.println(threads + "\t" + lockFree + "\t" + locked);
+		}
+	}
+
+	/**
+	 * Fires events from the specified number of threads for the specified time.
+	 *
+	 * @return submitted events per second.
+	 */
+	private static long run(final EventDispatcher dispatcher, int threads, int seconds)
+		throws InterruptedException {
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicLong submitted = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(threads);
+		final EventDispatchHandler handler = new EventDispatchHandler() {
+			public void onSuccess() {
+			}
+
+			public void onError(String errorMessage) {
+			}
+		};
+
+		for (int i = 0; i < threads; i++) {
+			final String tag = "bench/submit/" + i;
+			new Thread(new Runnable() {
+				public void run() {
+					long count = 0;
+					while (running.get()) {
+						dispatcher.submit(new Event(tag, count));
+						count++;
+					}
+
+					submitted.addAndGet(count);
+					done.countDown();
+				}
+			}).start();
+		}
+
+		Thread consumer = new Thread(new Runnable() {
+			public void run() {
+				while (running.get()) {
+					dispatcher.dispatch(handler);
+					try {
+						Thread.sleep(DISPATCH_INTERVAL_MS);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		});
+		consumer.start();
+
+		Thread.sleep(seconds * 1000L);
+		running.set(false);
+		done.await();
+		consumer.join();
+		dispatcher.dispatch(handler);
+
+		return submitted.get() / seconds;
+	}
+
+
+	/**
+	 * Lock-free dispatcher which drops dispatched events.
+	 */
+	private static class DiscardingDispatcher extends AbstractEventDispatcher {
+
+		@Override
+		synchronized public void dispatch(EventDispatchHandler handler) {
+			this.clearEvents();
+			handler.onSuccess();
+		}
+	}
+
+
+	/**
+	 * Dispatcher which collects events the way dispatchers did before {@link
+	 * AbstractEventDispatcher}: a single monitor guards both submit and dispatch.
+	 */
+	private static class SynchronizedDispatcher implements EventDispatcher {
+
+		private EventMessage eventMessage = new EventMessage();
+
+
+		@Override
+		synchronized public void submit(Event event) {
+			this.eventMessage.addEvent(event);
+		}
+
+		@Override
+		synchronized public void dispatch(EventDispatchHandler handler) {
+			this.eventMessage = new EventMessage();
+			handler.onSuccess();
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.qmonix.sdk.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.qmonix.sdk.TimingEvent;
+
+
+/**
+ * Measures {@link TimingEvent} life cycle: creating a started event and stopping it, and pausing
+ * and resuming a long running event. All of them mostly measure the clock the event reads.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class TimingEventBenchmark {
+
+	private static final String TAG = "bench/timing";
+
+	private TimingEvent runningEvent;
+
+
+	@Setup
+	public void setUp() {
+		this.runningEvent = new TimingEvent(TAG);
+	}
+
+	@Benchmark
+	public long startStop() {
+		TimingEvent event = new TimingEvent(TAG);
+		event.stop();
+		return event.getVolume();
+	}
+
+	@Benchmark
+	public long startStopMicros() {
+		TimingEvent event = new TimingEvent(TAG, TimeUnit.MICROSECONDS);
+		event.stop();
+		return event.getVolume();
+	}
+
+	@Benchmark
+	public long pauseResume() {
+		this.runningEvent.pause();
+		this.runningEvent.resume();
+		return this.runningEvent.getVolume();
+	}
+}
@@ -0,0 +1,71 @@
+package com.qmonix.sdk.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.qmonix.sdk.EventDispatcher;
+import com.qmonix.sdk.FireableTimingEvent;
+import com.qmonix.sdk.Tracker;
+
+
+/**
+ * Measures the public tracking API: {@link Tracker#fire(String) fire}, {@link
+ * Tracker#fire(String, long) fire} with volume and {@link Tracker#start start} followed by
+ * {@link FireableTimingEvent#fire fire}. Includes event creation, time stamping and submission
+ * to a dispatcher which drops events every {@code batchSize} events per thread.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class TrackerBenchmark {
+
+	private static final String TAG = "bench/tracker";
+
+	@Param({"100", "10000"})
+	public int batchSize;
+
+	private EventDispatcher previousDispatcher;
+	private DiscardingDispatcher dispatcher;
+
+
+	@Setup
+	public void setUp() {
+		this.previousDispatcher = Tracker.getDispatcher();
+		this.dispatcher = new DiscardingDispatcher();
+		Tracker.setDispatcher(this.dispatcher);
+	}
+
+	@TearDown
+	public void tearDown() {
+		Tracker.setDispatcher(this.previousDispatcher);
+	}
+
+	@Benchmark
+	public void fire(BatchCounter counter) {
+		Tracker.fire(TAG);
+		counter.onSubmit(this.dispatcher, this.batchSize);
+	}
+
+	@Benchmark
+	public void fireVolume(BatchCounter counter) {
+		Tracker.fire(TAG, 42);
+		counter.onSubmit(this.dispatcher, this.batchSize);
+	}
+
+	@Benchmark
+	public void startAndFire(BatchCounter counter) {
+		FireableTimingEvent event = Tracker.start(TAG);
+		event.fire();
+		counter.onSubmit(this.dispatcher, this.batchSize);
+	}
+}
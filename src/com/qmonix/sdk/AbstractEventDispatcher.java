@@ -0,0 +1,993 @@
+package com.qmonix.sdk;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.qmonix.sdk.utils.DaemonThreadFactory;
+import com.qmonix.sdk.utils.Utils;
+
+
+/**
+ * Base class for event dispatchers that collect submitted events in memory until they are
+ * dispatched. Events are stored in a lock-free {@link EventQueue}, so {@link #submit submit}
+ * never blocks, even while {@link #dispatch dispatch} is in progress on another thread.
+ * <p>
+ * Subclasses take collected events for dispatching with {@link #takePendingEvents
+ * takePendingEvents}. Once events are delivered, subclasses report it with {@link
+ * #acknowledgeEvents acknowledgeEvents}. Events that failed to be delivered are returned with
+ * {@link #requeueEvents requeueEvents} and are taken again by the next dispatch.
+ * <p>
+ * Optionally taken events are stored in a durable {@link EventJournal} until they are
+ * acknowledged, so they survive process death, see {@link #setJournal setJournal}.
+ * <p>
+ * Optionally events with the same tag fired within the same time bucket are merged into a single
+ * {@link AggregatedEvent} when they are taken for dispatch, see {@link #setAggregation
+ * setAggregation}.
+ * <p>
+ * Optionally durations of {@link TimingEvent timing events} are collected into per tag
+ * {@link TimingHistogram histograms} instead of being queued one by one, see
+ * {@link #setTimingHistograms setTimingHistograms}.
+ * <p>
+ * Optionally memory taken by collected events is limited and events beyond the limit are
+ * dropped or spilled to disk, see {@link #setOverflowPolicy setOverflowPolicy}.
+ * <p>
+ * Optionally events of hot tags are sampled and rate limited before they are queued; kept events
+ * are weighted by the number of discarded ones, see {@link #setSampling setSampling}.
+ * <p>
+ * Dispatcher might be a sink of {@link FanOutEventDispatcher}, in which case it also takes
+ * events submitted to the fan-out dispatcher, see {@link FanOutEventDispatcher#addSink addSink}.
+ * <p>
+ * Dispatcher instruments itself: number of submitted, dropped and delivered events, queue depth
+ * and, for subclasses that report them, encoding and network costs are available with
+ * {@link #getMetrics getMetrics}.
+ * <p>
+ * Collected events might be dispatched automatically according to {@link FlushPolicy} set with
+ * {@link #setFlushPolicy setFlushPolicy}. Automatic dispatch is done on a background scheduler
+ * thread, which subclasses might use for their own delayed tasks, see {@link #getScheduler
+ * getScheduler}.
+ *
+ * @see EventQueue
+ * @see FlushPolicy
+ * @see EventJournal
+ */
+public abstract class AbstractEventDispatcher implements EventDispatcher {
+
+	private EventQueue eventQueue = new EventQueue();
+
+	/* Events taken from the queue which were not delivered yet. Guarded by dispatcher lock. */
+	private EventMessage pendingEvents = new EventMessage();
+	private EventJournal journal;
+	private EventAggregator aggregator;
+
+	/* Timing histograms by tag. Format is null if histograms are disabled. */
+	private volatile HistogramEvent.Format histogramFormat;
+	private HistogramEvent.Format lastHistogramFormat = HistogramEvent.Format.BUCKETS;
+	private ConcurrentHashMap<String, TimingHistogram> histograms =
+		new ConcurrentHashMap<String, TimingHistogram>();
+
+	/* Size of pending events readable without lock. Written with dispatcher lock held. */
+	private volatile int pendingCount = 0;
+	private volatile long pendingBytes = 0;
+
+	private volatile OverflowPolicy overflowPolicy;
+	private AtomicBoolean overflowRequested = new AtomicBoolean();
+	private OverflowTask overflowTask = new OverflowTask();
+	private AtomicLong droppedEvents = new AtomicLong();
+	/* Dropped events that were never queued, a subset of dropped events. */
+	private AtomicLong rejectedEvents = new AtomicLong();
+	private AtomicLong spilledEvents = new AtomicLong();
+
+	private volatile EventSampler sampler;
+	/* Events discarded by samplers that were replaced. Written with dispatcher lock held. */
+	private volatile long retiredSuppressed = 0;
+
+	private MetricsRecorder metrics = new MetricsRecorder();
+
+	/* Fan-out dispatcher this dispatcher is a sink of, or null. */
+	private volatile FanOutEventDispatcher source;
+
+	private volatile AutoFlush autoFlush;
+	private ScheduledExecutorService scheduler;
+
+
+	/**
+	 * Adds event to the collected event list. Thread safe and lock-free.
+	 *
+	 * @param event event object.
+	 */
+	@Override
+	public void submit(Event event) {
+		if (event == null) {
+			throw new IllegalArgumentException("Event cannot be null.");
+		}
+
+		if (this.histogramFormat != null && event instanceof TimingEvent) {
+			this.recordTiming((TimingEvent)event);
+		} else {
+			long weight = event instanceof HistogramEvent ? 1 : this.sample(event.getTag());
+			if (weight > 0 && this.admitEvent()) {
+				this.eventQueue.offer(weight == 1 ? event : EventSampler.weigh(event, weight));
+			}
+		}
+
+		this.onSubmit();
+	}
+
+	/**
+	 * Adds single event to the collected event list without creating event object. Thread
+	 * safe, lock-free and in a steady state allocation-free, see {@link EventQueue}. Event
+	 * object is created only when the event is taken for dispatch.
+	 *
+	 * @param tag event tag name.
+	 * @param timeArised Unix time stamp when event was fired.
+	 */
+	public void submit(String tag, long timeArised) {
+		long weight = this.sample(tag);
+		if (weight == 1) {
+			if (this.admitEvent()) {
+				this.eventQueue.offer(tag, timeArised);
+			}
+		} else if (weight > 1 && this.admitEvent()) {
+			this.eventQueue.offer(tag, timeArised, weight, 0, false);
+		}
+		this.onSubmit();
+	}
+
+	/**
+	 * Adds volume event to the collected event list without creating event object. Thread
+	 * safe, lock-free and in a steady state allocation-free, see {@link EventQueue}.
+	 *
+	 * @param tag event tag name.
+	 * @param timeArised Unix time stamp when event was fired.
+	 * @param volume event volume. Positive number.
+	 */
+	public void submit(String tag, long timeArised, long volume) {
+		if (volume < 0) {
+			throw new IllegalArgumentException("Event volume must be positive integer.");
+		}
+
+		long weight = this.sample(tag);
+		if (weight == 1) {
+			if (this.admitEvent()) {
+				this.eventQueue.offer(tag, timeArised, volume);
+			}
+		} else if (weight > 1 && this.admitEvent()) {
+			this.eventQueue.offer(tag, timeArised, weight, volume * weight, true);
+		}
+		this.onSubmit();
+	}
+
+	/**
+	 * Enables automatic dispatching of collected events. Events are dispatched on the
+	 * background flush thread whenever any of flush policy thresholds is reached. Passing null
+	 * policy disables automatic dispatching. Explicit {@link #dispatch dispatch} calls are
+	 * still allowed.
+	 *
+	 * @param policy flush policy or null.
+	 * @param handler handler passed to {@link #dispatch dispatch} on automatic dispatch.
+	 */
+	synchronized public void setFlushPolicy(FlushPolicy policy, EventDispatchHandler handler) {
+		if (policy != null && handler == null) {
+			throw new IllegalArgumentException("Dispatch handler cannot be null.");
+		}
+
+		if (this.autoFlush != null) {
+			this.autoFlush.cancelled = true;
+			this.autoFlush = null;
+		}
+
+		if (policy != null) {
+			this.autoFlush = new AutoFlush(policy, handler, this.getScheduler());
+			if (this.eventQueue.size() > 0) {
+				this.autoFlush.onSubmit();
+			}
+		}
+	}
+
+	/**
+	 * Enables merging of events with the same tag fired within the same time bucket. Merged
+	 * events are sent as a single {@link AggregatedEvent} holding number of events and their
+	 * total volume, which saves bandwidth and server load for frequently fired events. Events
+	 * are merged when they are taken for dispatch, so {@link #submit submit} is not slowed
+	 * down. Fire time of an aggregated event is the start of its time bucket. Passing 0
+	 * disables aggregation, which is the default.
+	 *
+	 * @param bucketSeconds length of time bucket in seconds, e.g. 1 to merge events fired
+	 *	within the same second.
+	 */
+	synchronized public void setAggregation(long bucketSeconds) {
+		if (bucketSeconds < 0) {
+			throw new IllegalArgumentException("Bucket length cannot be negative.");
+		}
+
+		if (bucketSeconds == 0) {
+			this.aggregator = null;
+		} else if (this.aggregator == null
+			|| this.aggregator.getBucketSeconds() != bucketSeconds) {
+			this.aggregator = new EventAggregator(bucketSeconds);
+		}
+	}
+
+	/**
+	 * Enables collecting durations of submitted {@link TimingEvent timing events} into
+	 * histograms, one per tag, instead of queueing every event. Every dispatch sends a single
+	 * {@link HistogramEvent} per tag holding durations measured since the previous dispatch,
+	 * so frequently measured operations cost constant bandwidth and their percentiles are still
+	 * known. Recording a duration is lock-free and, apart from the first event of a tag,
+	 * allocation-free. Passing null disables histograms, which is the default.
+	 *
+	 * @param format how histograms are encoded or null.
+	 */
+	synchronized public void setTimingHistograms(HistogramEvent.Format format) {
+		this.histogramFormat = format;
+		if (format != null) {
+			this.lastHistogramFormat = format;
+		}
+	}
+
+	/**
+	 * Limits memory taken by collected events. Events beyond the limit are dropped or spilled
+	 * to disk as the policy tells, see {@link OverflowPolicy}. Passing null removes the limit,
+	 * which is the default.
+	 *
+	 * @param policy overflow policy or null.
+	 */
+	synchronized public void setOverflowPolicy(OverflowPolicy policy) {
+		if (policy != null && policy.getAction() != OverflowPolicy.Action.DROP_NEWEST) {
+			this.getScheduler();
+		}
+
+		this.overflowPolicy = policy;
+		if (policy != null && policy.isExceeded(this.getCollectedEventCount(),
+			this.getCollectedEventBytes())) {
+			this.requestOverflowEnforcement();
+		}
+	}
+
+	/**
+	 * Samples and rate limits submitted events per tag or tag prefix before they are queued, so
+	 * hot tags would not saturate the buffer and the uplink. Check is lock-free and, once a tag
+	 * was seen, allocation-free. Kept events stand for discarded events of the same tag and are
+	 * sent as {@link AggregatedEvent aggregated events} with that count, see {@link
+	 * SamplingPolicy}. Timing events collected into histograms are not sampled. Passing null
+	 * disables sampling, which is the default.
+	 *
+	 * @param policy sampling policy or null.
+	 */
+	synchronized public void setSampling(SamplingPolicy policy) {
+		EventSampler previous = this.sampler;
+		this.sampler = policy == null ? null : new EventSampler(policy);
+
+		if (previous != null) {
+			this.retiredSuppressed += previous.getSuppressedCount();
+		}
+	}
+
+	/**
+	 * Returns number of events discarded by sampling or rate limiting, see
+	 * {@link #setSampling setSampling}. Weights of kept events account for them.
+	 *
+	 * @return number of discarded events since dispatcher was created.
+	 */
+	public long getSuppressedEventCount() {
+		EventSampler sampler = this.sampler;
+		return this.retiredSuppressed + (sampler == null ? 0 : sampler.getSuppressedCount());
+	}
+
+	/**
+	 * Returns number of events dropped because memory limit was exceeded, see
+	 * {@link #setOverflowPolicy setOverflowPolicy}.
+	 *
+	 * @return number of dropped events since dispatcher was created.
+	 */
+	public long getDroppedEventCount() {
+		return this.droppedEvents.get();
+	}
+
+	/**
+	 * Returns number of events moved to the spill journal because memory limit was exceeded.
+	 * Spilled events are not lost, they are read back by subsequent dispatches.
+	 *
+	 * @return number of spilled events since dispatcher was created.
+	 */
+	public long getSpilledEventCount() {
+		return this.spilledEvents.get();
+	}
+
+	/**
+	 * Returns snapshot of dispatcher self-instrumentation metrics. Lock-free, might be called
+	 * often, e.g. to report SDK overhead periodically.
+	 *
+	 * @return metrics snapshot.
+	 */
+	public DispatcherMetrics getMetrics() {
+		long suppressed = this.getSuppressedEventCount();
+		/* Events dropped after they were queued are already counted as offered. */
+		long submitted = this.eventQueue.getOfferedCount() + this.rejectedEvents.get()
+			+ suppressed + this.metrics.getTimingsRecorded();
+
+		return this.metrics.snapshot(submitted, this.droppedEvents.get(), suppressed,
+			this.spilledEvents.get(), this.getCollectedEventCount());
+	}
+
+	/**
+	 * Sets journal that stores events until they are delivered. Events that journal holds from
+	 * previous application runs are restored and will be sent with the next dispatch. Passing
+	 * null disables journaling.
+	 * <p>
+	 * Events are appended to the journal when they are taken for dispatch or when
+	 * {@link #persistEvents persistEvents} is called, not on {@link #submit submit}, so
+	 * journaling never slows event submission down.
+	 *
+	 * @param journal event journal or null.
+	 * @throws IOException if fails to read events from the journal.
+	 */
+	synchronized public void setJournal(EventJournal journal) throws IOException {
+		if (journal != null) {
+			EventMessage restored = journal.readPending();
+			restored.addEvents(this.pendingEvents);
+			this.pendingEvents = restored;
+			this.updatePendingSize();
+		}
+
+		this.journal = journal;
+	}
+
+	/**
+	 * Moves collected events to the journal without dispatching them. Meant to be called when
+	 * application is about to be paused or stopped. Does nothing if journal is not set.
+	 */
+	synchronized public void persistEvents() {
+		if (this.journal != null) {
+			this.takeQueuedEvents(true);
+		}
+	}
+
+	/**
+	 * Stops automatic dispatching and releases background threads. Collected events are
+	 * neither dispatched nor discarded, so they might still be dispatched explicitly or
+	 * persisted with {@link #persistEvents persistEvents}.
+	 */
+	synchronized public void shutdown() {
+		this.setFlushPolicy(null, null);
+
+		if (this.scheduler != null) {
+			this.scheduler.shutdown();
+			this.scheduler = null;
+		}
+	}
+
+	/**
+	 * Returns approximate number of submitted events that were not taken for dispatch yet,
+	 * including events of the fan-out dispatcher this dispatcher is a sink of.
+	 *
+	 * @return number of collected events.
+	 */
+	public int getQueuedEventCount() {
+		FanOutEventDispatcher source = this.source;
+		if (source == null) {
+			return this.eventQueue.size();
+		}
+
+		return (int)Math.min((long)this.eventQueue.size() + source.getBacklog(this),
+			Integer.MAX_VALUE);
+	}
+
+
+	// Protected methods.
+
+	/**
+	 * Returns background scheduler thread of this dispatcher, creating it if necessary. Tasks
+	 * run on it must be short or be dispatches themselves, since automatic dispatches share the
+	 * same thread.
+	 *
+	 * @return dispatcher scheduler.
+	 */
+	synchronized protected ScheduledExecutorService getScheduler() {
+		if (this.scheduler == null) {
+			this.scheduler = Executors.newSingleThreadScheduledExecutor(
+				new DaemonThreadFactory("QmonixScheduler"));
+		}
+
+		return this.scheduler;
+	}
+
+	/**
+	 * Takes all collected events for dispatch, including events that failed to be delivered
+	 * before. Taken events are appended to the journal if one is set.
+	 *
+	 * @return events to dispatch.
+	 */
+	synchronized protected EventMessage takePendingEvents() {
+		this.restoreSpilledEvents();
+		this.takeQueuedEvents(true);
+
+		EventMessage message = this.pendingEvents;
+		this.pendingEvents = new EventMessage();
+		this.updatePendingSize();
+
+		return message;
+	}
+
+	/**
+	 * Returns events that failed to be delivered. They are put in front of other collected
+	 * events and are taken again by the next dispatch.
+	 *
+	 * @param message events that were not delivered.
+	 */
+	synchronized protected void requeueEvents(EventMessage message) {
+		message.addEvents(this.pendingEvents);
+		this.pendingEvents = message;
+		this.updatePendingSize();
+
+		OverflowPolicy policy = this.overflowPolicy;
+		if (policy != null && policy.isExceeded(this.getCollectedEventCount(),
+			this.getCollectedEventBytes())) {
+			this.requestOverflowEnforcement();
+		}
+	}
+
+	/**
+	 * Reports that events were delivered, so they are removed from the journal.
+	 *
+	 * @param message delivered events.
+	 */
+	synchronized protected void acknowledgeEvents(EventMessage message) {
+		this.metrics.addDispatched(message.getEventCount());
+		if (this.journal == null) {
+			return;
+		}
+
+		try {
+			this.journal.acknowledge(message);
+
+		} catch (IOException e) {
+			QLog.error("Failed to acknowledge journaled events: " + e.toString());
+		}
+	}
+
+	/**
+	 * Discards all collected events, both queued and pending, and removes them from the
+	 * journal.
+	 */
+	synchronized protected void clearEvents() {
+		this.eventQueue.clear();
+		this.pendingEvents = new EventMessage();
+		this.updatePendingSize();
+
+		if (this.journal != null) {
+			try {
+				this.journal.clear();
+
+			} catch (IOException e) {
+				QLog.error("Failed to clear event journal: " + e.toString());
+			}
+		}
+
+		OverflowPolicy policy = this.overflowPolicy;
+		if (policy != null && policy.getSpillJournal() != null) {
+			try {
+				policy.getSpillJournal().clear();
+
+			} catch (IOException e) {
+				QLog.error("Failed to clear spill journal: " + e.toString());
+			}
+		}
+	}
+
+
+	/**
+	 * @return recorder subclasses in this package report their metrics to.
+	 */
+	MetricsRecorder getMetricsRecorder() {
+		return this.metrics;
+	}
+
+	/**
+	 * Attaches dispatcher to the fan-out dispatcher it takes events from as a sink.
+	 *
+	 * @param source fan-out dispatcher or null to detach.
+	 */
+	void setSource(FanOutEventDispatcher source) {
+		this.source = source;
+	}
+
+	/**
+	 * @return fan-out dispatcher this dispatcher is a sink of or null.
+	 */
+	FanOutEventDispatcher getSource() {
+		return this.source;
+	}
+
+	/**
+	 * Checks automatic dispatch thresholds after an event was submitted to the fan-out
+	 * dispatcher this dispatcher is a sink of. Lock-free.
+	 */
+	void onSourceSubmit() {
+		this.onSubmit();
+	}
+
+	/**
+	 * Counts events dropped on behalf of this dispatcher, e.g. by the fan-out dispatcher when
+	 * this sink lags too far behind.
+	 *
+	 * @param count number of dropped events.
+	 */
+	void addDroppedEvents(long count) {
+		this.droppedEvents.addAndGet(count);
+	}
+
+	/**
+	 * @return approximate size in bytes queued events would take when encoded to JSON.
+	 */
+	long getQueuedEventBytes() {
+		long bytes = this.eventQueue.estimatedJsonSize();
+		FanOutEventDispatcher source = this.source;
+		if (source != null) {
+			bytes += source.getBacklogBytes(this);
+		}
+
+		return bytes;
+	}
+
+
+	// Private methods.
+
+	/**
+	 * Applies sampling policy to an event of the specified tag. Lock-free.
+	 *
+	 * @param tag event tag name.
+	 * @return weight of kept event or 0 if event is discarded.
+	 */
+	private long sample(String tag) {
+		EventSampler sampler = this.sampler;
+		if (sampler == null || tag == null) {
+			return 1;
+		}
+
+		return sampler.admit(tag);
+	}
+
+	/**
+	 * Checks automatic dispatch thresholds after an event was submitted.
+	 */
+	private void onSubmit() {
+		AutoFlush autoFlush = this.autoFlush;
+		if (autoFlush != null) {
+			autoFlush.onSubmit();
+		}
+	}
+
+	/**
+	 * Moves events from the lock-free queue and from the fan-out source, if any, to pending
+	 * events and appends them to the journal. Must be called with dispatcher lock held.
+	 *
+	 * @param histograms true if timing histograms should be taken as well.
+	 */
+	private void takeQueuedEvents(boolean histograms) {
+		EventMessage drained = this.pendingEvents;
+		if (this.aggregator != null || this.journal != null) {
+			drained = new EventMessage();
+		}
+
+		FanOutEventDispatcher source = this.source;
+		if (this.aggregator == null) {
+			this.eventQueue.drainTo(drained);
+			if (source != null) {
+				source.readEvents(this, drained, null);
+			}
+		} else {
+			this.eventQueue.drainTo(drained, this.aggregator);
+			if (source != null) {
+				source.readEvents(this, drained, this.aggregator);
+			}
+			this.aggregator.drainTo(drained);
+		}
+
+		if (histograms) {
+			this.takeHistograms(drained);
+		}
+
+		if (drained == this.pendingEvents) {
+			this.updatePendingSize();
+			return;
+		}
+
+		if (this.journal != null) {
+			try {
+				this.journal.append(drained);
+
+			} catch (IOException e) {
+				QLog.error("Failed to journal events: " + e.toString());
+			}
+		}
+
+		this.pendingEvents.addEvents(drained);
+		this.updatePendingSize();
+	}
+
+	/**
+	 * Publishes size of pending events to threads that do not hold dispatcher lock. Must be
+	 * called with dispatcher lock held whenever pending events change.
+	 */
+	private void updatePendingSize() {
+		this.pendingCount = this.pendingEvents.getEventCount();
+		this.pendingBytes = this.pendingEvents.estimateJsonSize();
+	}
+
+	/**
+	 * @return approximate number of collected events, both queued and pending.
+	 */
+	private int getCollectedEventCount() {
+		return this.eventQueue.size() + this.pendingCount;
+	}
+
+	/**
+	 * @return approximate estimated size of collected events, both queued and pending.
+	 */
+	private long getCollectedEventBytes() {
+		return this.eventQueue.estimatedJsonSize() + this.pendingBytes;
+	}
+
+	/**
+	 * Checks memory limit before an event is queued. Lock-free.
+	 *
+	 * @return true if event might be queued, false if it is dropped.
+	 */
+	private boolean admitEvent() {
+		OverflowPolicy policy = this.overflowPolicy;
+		if (policy == null) {
+			return true;
+		}
+
+		int events = this.getCollectedEventCount() + 1;
+		long bytes = this.getCollectedEventBytes();
+		if (!policy.isExceeded(events, bytes)) {
+			return true;
+		}
+
+		if (policy.getAction() == OverflowPolicy.Action.DROP_NEWEST
+			|| policy.isHardLimitExceeded(events, bytes)) {
+			this.rejectedEvents.incrementAndGet();
+			this.droppedEvents.incrementAndGet();
+			return false;
+		}
+
+		this.requestOverflowEnforcement();
+		return true;
+	}
+
+	/**
+	 * Schedules enforcement of overflow policy on the scheduler thread unless it is already
+	 * scheduled.
+	 */
+	private void requestOverflowEnforcement() {
+		ScheduledExecutorService scheduler = this.scheduler;
+		if (scheduler == null || this.overflowRequested.get()
+			|| !this.overflowRequested.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+			scheduler.execute(this.overflowTask);
+
+		} catch (RejectedExecutionException e) {
+			/* Dispatcher is shut down, hard limit still applies. */
+			this.overflowRequested.set(false);
+		}
+	}
+
+	/**
+	 * Drops or spills collected events until they fit the memory limit.
+	 */
+	synchronized private void enforceOverflowPolicy() {
+		this.overflowRequested.set(false);
+
+		OverflowPolicy policy = this.overflowPolicy;
+		if (policy == null || policy.getAction() == OverflowPolicy.Action.DROP_NEWEST) {
+			return;
+		}
+
+		this.takeQueuedEvents(false);
+		EventMessage pending = this.pendingEvents;
+		if (!policy.isExceeded(pending.getEventCount(), pending.estimateJsonSize())) {
+			return;
+		}
+
+		if (policy.getAction() == OverflowPolicy.Action.SPILL_TO_DISK
+			&& this.spillPendingEvents(policy.getSpillJournal())) {
+			return;
+		}
+
+		int dropped = 0;
+		if (policy.getAction() == OverflowPolicy.Action.SAMPLE) {
+			while (pending.getEventCount() > 1
+				&& policy.isExceeded(pending.getEventCount(), pending.estimateJsonSize())) {
+				dropped += pending.removeEverySecondEvent();
+			}
+		} else {
+			dropped = pending.removeOldestEvents(policy.getMaxEvents(), policy.getMaxBytes());
+		}
+
+		this.updatePendingSize();
+		this.droppedEvents.addAndGet(dropped);
+		QLog.warning("Collected events exceed memory limit, {} events dropped.", dropped);
+	}
+
+	/**
+	 * Moves all pending events to the spill journal. Journaled events are acknowledged in the
+	 * dispatcher journal, so they are stored once. Must be called with dispatcher lock held.
+	 *
+	 * @param spillJournal journal to move events to.
+	 * @return true if events were spilled, false if writing them failed.
+	 */
+	private boolean spillPendingEvents(EventJournal spillJournal) {
+		EventMessage spilled = this.pendingEvents;
+		EventMessage journaled = spilled.detachJournalRanges();
+
+		try {
+			spillJournal.append(spilled);
+
+		} catch (IOException e) {
+			QLog.error("Failed to spill events: " + e.toString());
+			spilled.addEvents(journaled);
+			return false;
+		}
+
+		this.pendingEvents = new EventMessage();
+		this.updatePendingSize();
+		this.acknowledgeEvents(journaled);
+		this.spilledEvents.addAndGet(spilled.getEventCount());
+
+		return true;
+	}
+
+	/**
+	 * Reads spilled events back as long as they fit the memory limit and puts them in front of
+	 * pending events. Must be called with dispatcher lock held.
+	 */
+	private void restoreSpilledEvents() {
+		OverflowPolicy policy = this.overflowPolicy;
+		if (policy == null || policy.getSpillJournal() == null
+			|| policy.getSpillJournal().getPendingBytes() == 0) {
+			return;
+		}
+
+		int maxEvents = 0;
+		long maxBytes = 0;
+		if (policy.getMaxEvents() > 0) {
+			maxEvents = policy.getMaxEvents() - this.getCollectedEventCount();
+			if (maxEvents <= 0) {
+				return;
+			}
+		}
+		if (policy.getMaxBytes() > 0) {
+			maxBytes = policy.getMaxBytes() - this.getCollectedEventBytes();
+			if (maxBytes <= 0) {
+				return;
+			}
+		}
+
+		EventJournal spillJournal = policy.getSpillJournal();
+		EventMessage restored;
+		try {
+			restored = spillJournal.readPending(maxEvents, maxBytes);
+
+		} catch (IOException e) {
+			QLog.error("Failed to read spilled events: " + e.toString());
+			return;
+		}
+
+		EventMessage spilled = restored.detachJournalRanges();
+		if (this.journal != null) {
+			try {
+				this.journal.append(restored);
+
+			} catch (IOException e) {
+				QLog.error("Failed to journal events: " + e.toString());
+			}
+		}
+
+		restored.addEvents(this.pendingEvents);
+		this.pendingEvents = restored;
+		this.updatePendingSize();
+
+		try {
+			spillJournal.acknowledge(spilled);
+
+		} catch (IOException e) {
+			QLog.error("Failed to acknowledge spilled events: " + e.toString());
+		}
+	}
+
+	/**
+	 * Records duration of a timing event in the histogram of its tag.
+	 *
+	 * @param event stopped timing event.
+	 */
+	private void recordTiming(TimingEvent event) {
+		TimingHistogram histogram = this.histograms.get(event.getTag());
+		if (histogram == null) {
+			TimingHistogram created = new TimingHistogram(event.getUnit());
+			histogram = this.histograms.putIfAbsent(event.getTag(), created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+
+		histogram.record(event.getVolume());
+		this.metrics.addTimingRecorded();
+	}
+
+	/**
+	 * Adds a snapshot of every non-empty timing histogram to the specified message. Must be
+	 * called with dispatcher lock held.
+	 *
+	 * @param message event message to add histogram events to.
+	 */
+	private void takeHistograms(EventMessage message) {
+		if (this.histograms.isEmpty()) {
+			return;
+		}
+
+		HistogramEvent.Format format = this.lastHistogramFormat;
+		long now = Utils.getUnixTime();
+		for (Map.Entry<String, TimingHistogram> entry : this.histograms.entrySet()) {
+			HistogramEvent event = entry.getValue().takeSnapshot(entry.getKey(), now, format);
+			if (event != null) {
+				message.addEvent(event);
+			}
+		}
+	}
+
+	/**
+	 * @return true if there might be collected events or durations to dispatch.
+	 */
+	private boolean hasCollectedEvents() {
+		if (this.getQueuedEventCount() > 0) {
+			return true;
+		}
+
+		for (TimingHistogram histogram : this.histograms.values()) {
+			if (!histogram.isEmpty()) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+
+	/**
+	 * Enforces overflow policy on the scheduler thread.
+	 */
+	private class OverflowTask implements Runnable {
+
+		@Override
+		public void run() {
+			AbstractEventDispatcher.this.enforceOverflowPolicy();
+		}
+	}
+
+
+	/**
+	 * Tracks flush policy thresholds and schedules automatic dispatches. Any number of
+	 * triggers that happen before scheduled dispatch runs are coalesced into that single
+	 * dispatch. Age timer is armed by the first event submitted after a dispatch and is
+	 * ignored if a dispatch happens before it expires. Keeps its own reference to the
+	 * scheduler, so submits racing with {@link #shutdown shutdown} never see it cleared.
+	 */
+	private class AutoFlush implements Runnable {
+
+		private FlushPolicy policy;
+		private EventDispatchHandler handler;
+		private ScheduledExecutorService scheduler;
+
+		private volatile boolean cancelled = false;
+		private AtomicBoolean flushRequested = new AtomicBoolean();
+		private AtomicBoolean ageTimerArmed = new AtomicBoolean();
+
+		/* Incremented by every automatic dispatch, written by flush thread only. */
+		private volatile long batch = 0;
+
+
+		public AutoFlush(FlushPolicy policy, EventDispatchHandler handler,
+			ScheduledExecutorService scheduler) {
+			this.policy = policy;
+			this.handler = handler;
+			this.scheduler = scheduler;
+		}
+
+		/**
+		 * Checks flush thresholds after an event was submitted. Does nothing once automatic
+		 * dispatching is cancelled or the scheduler is shut down.
+		 */
+		public void onSubmit() {
+			if (this.cancelled) {
+				return;
+			}
+
+			if (this.policy.getMaxAgeSeconds() > 0 && !this.ageTimerArmed.get()
+				&& this.ageTimerArmed.compareAndSet(false, true)) {
+				try {
+					this.scheduler.schedule(new AgeTimer(this.batch),
+						this.policy.getMaxAgeSeconds(), TimeUnit.SECONDS);
+
+				} catch (RejectedExecutionException e) {
+					/* Dispatcher is shut down, events are left collected. */
+					this.ageTimerArmed.set(false);
+				}
+			}
+
+			AbstractEventDispatcher dispatcher = AbstractEventDispatcher.this;
+			if (this.policy.isExceeded(dispatcher.getQueuedEventCount(),
+				dispatcher.getQueuedEventBytes()) && !this.flushRequested.get()
+				&& this.flushRequested.compareAndSet(false, true)) {
+				try {
+					this.scheduler.execute(this);
+
+				} catch (RejectedExecutionException e) {
+					/* Dispatcher is shut down, events are left collected. */
+					this.flushRequested.set(false);
+				}
+			}
+		}
+
+		/**
+		 * Dispatches collected events. Runs on the flush thread.
+		 */
+		@Override
+		public void run() {
+			if (this.cancelled) {
+				return;
+			}
+
+			this.batch = this.batch + 1;
+			this.flushRequested.set(false);
+			this.ageTimerArmed.set(false);
+
+			AbstractEventDispatcher dispatcher = AbstractEventDispatcher.this;
+			if (dispatcher.hasCollectedEvents()) {
+				try {
+					dispatcher.dispatch(this.handler);
+
+				} catch (RuntimeException e) {
+					QLog.error("Automatic dispatch failed: " + e.toString());
+				}
+			}
+
+			/* Events submitted while dispatching need their own age timer. */
+			if (dispatcher.hasCollectedEvents()) {
+				this.onSubmit();
+			}
+		}
+
+
+		/**
+		 * Dispatches events when the oldest event of a batch expires.
+		 */
+		private class AgeTimer implements Runnable {
+
+			private long batch;
+
+
+			public AgeTimer(long batch) {
+				this.batch = batch;
+			}
+
+			@Override
+			public void run() {
+				if (this.batch == AutoFlush.this.batch) {
+					AutoFlush.this.run();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package com.qmonix.sdk;
+
+import java.io.IOException;
+
+import org.json.JSONObject;
+import org.json.JSONException;
+
+
+/**
+ * Event that stands for a number of events with the same tag fired within the same time bucket.
+ * Holds number of merged events and, if merged events were volume events, their total volume.
+ * Aggregated events are created by dispatchers with aggregation enabled, see
+ * {@link AbstractEventDispatcher#setAggregation setAggregation}.
+ * <ul>
+ * <li>{@link #getTag getTag} - returns event tag name.
+ * <li>{@link #getTimeArised getTimeArised} - returns start of the time bucket.
+ * <li>{@link #getCount getCount} - returns number of merged events.
+ * <li>{@link #getVolume getVolume} - returns total volume of merged events.
+ * <li>{@link #hasVolume hasVolume} - tells whether merged events were volume events.
+ * </ul>
+ */
+public class AggregatedEvent extends Event {
+
+	/* Approximate size of encoded count and volume properties. */
+	static final int JSON_COUNT_SIZE_ESTIMATE = 12;
+	private static final int JSON_VOLUME_SIZE_ESTIMATE = 16;
+
+	private static final byte[] JSON_COUNT = EventJsonWriter.encodeName("count");
+	private static final byte[] JSON_VOLUME = EventJsonWriter.encodeName("volume");
+
+	private long count;
+	private long volume;
+	private boolean hasVolume;
+
+
+	/**
+	 * Constructs new aggregated event.
+	 *
+	 * @param tag event tag name.
+	 * @param timeArised Unix time stamp of the time bucket start.
+	 * @param count number of merged events. Positive number.
+	 * @param volume total volume of merged events.
+	 * @param hasVolume true if merged events were volume events.
+	 */
+	public AggregatedEvent(String tag, long timeArised, long count, long volume,
+		boolean hasVolume) {
+		super(tag, timeArised);
+
+		if (count <= 0) {
+			throw new IllegalArgumentException("Event count must be positive integer.");
+		}
+
+		this.count = count;
+		this.volume = volume;
+		this.hasVolume = hasVolume;
+	}
+
+	/**
+	 * @return number of merged events.
+	 */
+	public long getCount() {
+		return this.count;
+	}
+
+	/**
+	 * @return total volume of merged events, 0 if they were not volume events.
+	 */
+	public long getVolume() {
+		return this.volume;
+	}
+
+	/**
+	 * @return true if merged events were volume events.
+	 */
+	public boolean hasVolume() {
+		return this.hasVolume;
+	}
+
+	/**
+	 * Serializes event to JSON object. Besides tag name and fire time, number of merged
+	 * events and, for volume events, their total volume are used.
+	 *
+	 * @return event encoded in JSON format.
+	 * @throws JSONException if fails to encode event message to JSON object.
+	 */
+	@Override
+	public JSONObject toJson() throws JSONException {
+		JSONObject json = super.toJson();
+		json.put("count", this.count);
+		if (this.hasVolume) {
+			json.put("volume", this.volume);
+		}
+
+		return json;
+	}
+
+	/**
+	 * Writes event fire time, tag name, count and volume JSON properties.
+	 *
+	 * @param writer JSON writer to write properties to.
+	 * @throws IOException if fails to write to the underlying stream.
+	 */
+	@Override
+	protected void writeJsonProperties(EventJsonWriter writer) throws IOException {
+		super.writeJsonProperties(writer);
+		writer.writeName(JSON_COUNT, true);
+		writer.writeLong(this.count);
+
+		if (this.hasVolume) {
+			writer.writeName(JSON_VOLUME, true);
+			writer.writeLong(this.volume);
+		}
+	}
+
+	@Override
+	int estimateJsonSize() {
+		int size = super.estimateJsonSize() + JSON_COUNT_SIZE_ESTIMATE;
+		if (this.hasVolume) {
+			size += JSON_VOLUME_SIZE_ESTIMATE;
+		}
+
+		return size;
+	}
+}
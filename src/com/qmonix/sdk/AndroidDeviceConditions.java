@@ -0,0 +1,160 @@
+package com.qmonix.sdk;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.TrafficStats;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+
+
+/**
+ * Device conditions read from Android system services. Requires
+ * {@code android.permission.ACCESS_NETWORK_STATE}.
+ * <ul>
+ * <li>Connectivity is read from {@link ConnectivityManager}; Wi-Fi and Ethernet networks are
+ *	considered unmetered.
+ * <li>Charging state is read from the sticky battery broadcast.
+ * <li>Radio activity is inferred from mobile traffic counters of {@link TrafficStats}: radio is
+ *	considered active for a few seconds after the counters changed, which is about as long as
+ *	the radio stays in high-power state after a transfer. Counters are compared whenever
+ *	{@link #isRadioActive isRadioActive} is polled and a change is dated back to the previous
+ *	poll, so activity is detected only if polled more often than every 5 seconds.
+ * </ul>
+ * Listeners are notified of connectivity and power changes on the main UI thread while at least
+ * one listener is added.
+ */
+public class AndroidDeviceConditions implements DeviceConditions {
+
+	/* Time radio is considered active after mobile traffic was seen. */
+	private static final long RADIO_TAIL_MS = 5000;
+
+	private Context context;
+	private ConnectivityManager connectivity;
+
+	private CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	/* Registered while there are listeners. Guarded by this. */
+	private BroadcastReceiver receiver;
+
+	/* Mobile packet count, when it was last sampled and when it changed. Guarded by this. */
+	private long mobilePackets;
+	private long mobilePacketsSampled;
+	private long mobilePacketsChanged;
+
+
+	/**
+	 * Constructs device conditions of the application the specified context belongs to.
+	 *
+	 * @param context any application context.
+	 */
+	public AndroidDeviceConditions(Context context) {
+		if (context == null) {
+			throw new IllegalArgumentException("Context cannot be null.");
+		}
+
+		this.context = context.getApplicationContext();
+		this.connectivity = (ConnectivityManager)this.context.getSystemService(
+			Context.CONNECTIVITY_SERVICE);
+
+		this.mobilePackets = AndroidDeviceConditions.getMobilePackets();
+		this.mobilePacketsSampled = SystemClock.elapsedRealtime();
+		this.mobilePacketsChanged = this.mobilePacketsSampled - RADIO_TAIL_MS;
+	}
+
+	@Override
+	public boolean isConnected() {
+		NetworkInfo network = this.connectivity.getActiveNetworkInfo();
+		return network != null && network.isConnected();
+	}
+
+	@Override
+	public boolean isUnmetered() {
+		NetworkInfo network = this.connectivity.getActiveNetworkInfo();
+		return network != null && network.isConnected()
+			&& (network.getType() == ConnectivityManager.TYPE_WIFI
+			|| network.getType() == ConnectivityManager.TYPE_ETHERNET);
+	}
+
+	@Override
+	public boolean isCharging() {
+		Intent battery = this.context.registerReceiver(null,
+			new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+	}
+
+	@Override
+	synchronized public boolean isRadioActive() {
+		long packets = AndroidDeviceConditions.getMobilePackets();
+		if (packets < 0) {
+			return false;
+		}
+
+		long now = SystemClock.elapsedRealtime();
+		if (packets != this.mobilePackets) {
+			/* Traffic might have happened right after the previous sample. */
+			this.mobilePackets = packets;
+			this.mobilePacketsChanged = this.mobilePacketsSampled;
+		}
+		this.mobilePacketsSampled = now;
+
+		return now - this.mobilePacketsChanged < RADIO_TAIL_MS;
+	}
+
+	@Override
+	synchronized public void addListener(Listener listener) {
+		if (listener == null) {
+			throw new IllegalArgumentException("Listener cannot be null.");
+		}
+
+		this.listeners.addIfAbsent(listener);
+		if (this.receiver != null) {
+			return;
+		}
+
+		IntentFilter filter = new IntentFilter();
+		filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+		filter.addAction(Intent.ACTION_POWER_CONNECTED);
+		filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+
+		this.receiver = new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				for (Listener listener : AndroidDeviceConditions.this.listeners) {
+					listener.onConditionsChanged();
+				}
+			}
+		};
+		this.context.registerReceiver(this.receiver, filter);
+	}
+
+	@Override
+	synchronized public void removeListener(Listener listener) {
+		this.listeners.remove(listener);
+		if (this.listeners.isEmpty() && this.receiver != null) {
+			this.context.unregisterReceiver(this.receiver);
+			this.receiver = null;
+		}
+	}
+
+
+	// Private methods.
+
+	/**
+	 * @return number of packets sent and received over mobile networks since boot or -1 if
+	 *	device does not support traffic statistics.
+	 */
+	private static long getMobilePackets() {
+		long received = TrafficStats.getMobileRxPackets();
+		long sent = TrafficStats.getMobileTxPackets();
+		if (received == TrafficStats.UNSUPPORTED || sent == TrafficStats.UNSUPPORTED) {
+			return -1;
+		}
+
+		return received + sent;
+	}
+}
@@ -0,0 +1,35 @@
+package com.qmonix.sdk;
+
+import java.net.URISyntaxException;
+
+import android.util.Log;
+
+import com.qmonix.sdk.helpers.HttpHelper;
+import com.qmonix.sdk.helpers.HttpTransport;
+
+
+/**
+ * Android bindings: logs to {@link Log} and sends events with {@link HttpHelper}, which never
+ * does network operations on the main UI thread. Together with {@link AndroidDeviceConditions}
+ * the only SDK classes that depend on Android.
+ */
+public class AndroidPlatform extends Platform {
+
+	@Override
+	public int log(int level, String tag, String msg) {
+		if (level == QLog.DEBUG_LEVEL) {
+			return Log.d(tag, msg);
+		} else if (level == QLog.INFO_LEVEL) {
+			return Log.i(tag, msg);
+		} else if (level == QLog.WARNING_LEVEL) {
+			return Log.w(tag, msg);
+		} else {
+			return Log.e(tag, msg);
+		}
+	}
+
+	@Override
+	public HttpTransport createHttpTransport(String uri) throws URISyntaxException {
+		return new HttpHelper(uri);
+	}
+}
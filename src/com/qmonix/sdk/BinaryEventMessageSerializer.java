@@ -0,0 +1,316 @@
+package com.qmonix.sdk;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.qmonix.sdk.utils.Utils;
+import com.qmonix.sdk.utils.VarInt;
+
+
+/**
+ * Encodes event messages to a compact binary format, which is several times smaller than JSON
+ * and much cheaper to produce. Every distinct tag is written once per message; events refer to
+ * tags by their index and store fire time as a difference from the previous event, so a typical
+ * event takes two or three bytes. Message layout:
+ * <pre>
+ * magic "QMB1" (4 bytes) | zigzag varint whenSent | varint tag count
+ *	| (varint UTF-8 tag length | UTF-8 tag)... | varint event count | event...
+ * event: varint (tag index &lt;&lt; 3 | type) | zigzag varint fire time delta [| fields]
+ * </pre>
+ * Fire time delta of the first event is relative to whenSent. Event types and their fields:
+ * <ul>
+ * <li>0 - single event, no fields;
+ * <li>1 - volume event: zigzag varint volume;
+ * <li>2 - aggregated event: varint count;
+ * <li>3 - aggregated volume event: varint count | zigzag varint volume;
+ * <li>4 - histogram event: unit (1 byte) | format (1 byte) | zigzag varint sum | varint bucket
+ *	count | (varint bucket index delta | varint bucket count)..., as in {@link EventJournal}.
+ * </ul>
+ * Subclasses of {@link VolumeEvent} are encoded as volume events, other events as single events.
+ * Messages are decoded back with {@link #decode decode}, which is meant for tests and servers
+ * written in Java.
+ *
+ * @see HttpEventDispatcher#setSerializer
+ */
+public class BinaryEventMessageSerializer implements EventMessageSerializer {
+
+	public static final String CONTENT_TYPE = "application/x-qmonix-events";
+
+	private static final int MAGIC = 0x514d4231;
+
+	private static final int TYPE_BITS = 3;
+	private static final int TYPE_MASK = (1 << TYPE_BITS) - 1;
+	private static final byte TYPE_EVENT = 0;
+	private static final byte TYPE_VOLUME_EVENT = 1;
+	private static final byte TYPE_AGGREGATED_EVENT = 2;
+	private static final byte TYPE_AGGREGATED_VOLUME_EVENT = 3;
+	private static final byte TYPE_HISTOGRAM_EVENT = 4;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/* Approximate size of encoded message header and of a single event. */
+	private static final int HEADER_SIZE_ESTIMATE = 16;
+	private static final int EVENT_SIZE_ESTIMATE = 4;
+
+	private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private OutputStream out;
+
+	/* Tag dictionary of the message being written. Reused. */
+	private HashMap<String, Integer> tagIds = new HashMap<String, Integer>();
+	private ArrayList<String> tags = new ArrayList<String>();
+
+
+	@Override
+	public String getContentType() {
+		return CONTENT_TYPE;
+	}
+
+	@Override
+	public long estimateSize(EventMessage message) {
+		return HEADER_SIZE_ESTIMATE + (long)message.getEventCount() * EVENT_SIZE_ESTIMATE;
+	}
+
+	@Override
+	public void write(EventMessage message, OutputStream out) throws IOException {
+		if (out == null) {
+			throw new IllegalArgumentException("Output stream cannot be null.");
+		}
+
+		this.out = out;
+		this.buffer.clear();
+
+		try {
+			long whenSent = Utils.getUnixTime();
+			this.ensureCapacity(4 + VarInt.MAX_LONG_SIZE);
+			this.buffer.putInt(MAGIC);
+			VarInt.writeSigned(this.buffer, whenSent);
+
+			this.writeTags(message);
+
+			int count = message.getEventCount();
+			this.ensureCapacity(VarInt.MAX_LONG_SIZE);
+			VarInt.writeUnsigned(this.buffer, count);
+
+			long previousTime = whenSent;
+			for (int i = 0; i < count; i++) {
+				Event event = message.getEvent(i);
+				this.writeEvent(event, previousTime);
+				previousTime = event.getTimeArised();
+			}
+
+			this.flushBuffer();
+			out.flush();
+
+		} finally {
+			this.tagIds.clear();
+			this.tags.clear();
+			this.out = null;
+		}
+	}
+
+	/**
+	 * Decodes event message encoded by this serializer.
+	 *
+	 * @param content encoded message.
+	 * @param offset offset of the message in the array.
+	 * @param length message length in bytes.
+	 * @return decoded event message.
+	 * @throws IOException if message is malformed.
+	 */
+	public static EventMessage decode(byte[] content, int offset, int length)
+		throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(content, offset, length);
+		EventMessage message = new EventMessage();
+
+		try {
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException("Not a binary event message.");
+			}
+
+			long previousTime = VarInt.readSigned(buffer);
+
+			long tagCount = VarInt.readUnsigned(buffer);
+			if (tagCount < 0 || tagCount > buffer.remaining()) {
+				throw new IOException("Invalid tag count: " + tagCount);
+			}
+
+			String[] tags = new String[(int)tagCount];
+			for (int i = 0; i < tags.length; i++) {
+				long tagLength = VarInt.readUnsigned(buffer);
+				if (tagLength < 0 || tagLength > buffer.remaining()) {
+					throw new IOException("Invalid tag length: " + tagLength);
+				}
+
+				tags[i] = new String(content, buffer.position(), (int)tagLength, "UTF-8");
+				buffer.position(buffer.position() + (int)tagLength);
+			}
+
+			long count = VarInt.readUnsigned(buffer);
+			if (count < 0 || count > buffer.remaining()) {
+				throw new IOException("Invalid event count: " + count);
+			}
+
+			for (long i = 0; i < count; i++) {
+				long header = VarInt.readUnsigned(buffer);
+				long tagIndex = header >>> TYPE_BITS;
+				if (tagIndex >= tags.length) {
+					throw new IOException("Invalid tag index: " + tagIndex);
+				}
+
+				long timeArised = previousTime + VarInt.readSigned(buffer);
+				message.addEvent(BinaryEventMessageSerializer.decodeEvent(buffer,
+					(int)(header & TYPE_MASK), tags[(int)tagIndex], timeArised));
+				previousTime = timeArised;
+			}
+
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated event message.");
+
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Malformed event message: " + e.getMessage());
+		}
+
+		return message;
+	}
+
+
+	// Private methods.
+
+	/**
+	 * Collects distinct tags of the message in the order of their first event and writes
+	 * them.
+	 *
+	 * @param message event message.
+	 */
+	private void writeTags(EventMessage message) throws IOException {
+		int count = message.getEventCount();
+		for (int i = 0; i < count; i++) {
+			String tag = message.getEvent(i).getTag();
+			if (!this.tagIds.containsKey(tag)) {
+				this.tagIds.put(tag, Integer.valueOf(this.tags.size()));
+				this.tags.add(tag);
+			}
+		}
+
+		this.ensureCapacity(VarInt.MAX_LONG_SIZE);
+		VarInt.writeUnsigned(this.buffer, this.tags.size());
+
+		for (int i = 0; i < this.tags.size(); i++) {
+			byte[] tag = this.tags.get(i).getBytes("UTF-8");
+			this.ensureCapacity(VarInt.MAX_LONG_SIZE + tag.length);
+			VarInt.writeUnsigned(this.buffer, tag.length);
+			this.buffer.put(tag);
+		}
+	}
+
+	/**
+	 * Writes a single event.
+	 *
+	 * @param event event to write.
+	 * @param previousTime fire time of the previous event.
+	 */
+	private void writeEvent(Event event, long previousTime) throws IOException {
+		long tagId = this.tagIds.get(event.getTag()).intValue();
+		long delta = event.getTimeArised() - previousTime;
+
+		if (event instanceof HistogramEvent) {
+			HistogramEvent histogram = (HistogramEvent)event;
+			int buckets = histogram.getBucketIndexes().length;
+			this.ensureCapacity(2 + (4 + 2 * buckets) * VarInt.MAX_LONG_SIZE);
+			this.writeHeader(tagId, TYPE_HISTOGRAM_EVENT, delta);
+			EventJournal.encodeHistogram(this.buffer, histogram);
+			return;
+		}
+
+		this.ensureCapacity(4 * VarInt.MAX_LONG_SIZE);
+
+		if (event instanceof AggregatedEvent) {
+			AggregatedEvent aggregated = (AggregatedEvent)event;
+			this.writeHeader(tagId, aggregated.hasVolume() ? TYPE_AGGREGATED_VOLUME_EVENT
+				: TYPE_AGGREGATED_EVENT, delta);
+			VarInt.writeUnsigned(this.buffer, aggregated.getCount());
+			if (aggregated.hasVolume()) {
+				VarInt.writeSigned(this.buffer, aggregated.getVolume());
+			}
+
+		} else if (event instanceof VolumeEvent) {
+			this.writeHeader(tagId, TYPE_VOLUME_EVENT, delta);
+			VarInt.writeSigned(this.buffer, ((VolumeEvent)event).getVolume());
+
+		} else {
+			this.writeHeader(tagId, TYPE_EVENT, delta);
+		}
+	}
+
+	/**
+	 * Writes tag index, event type and fire time delta.
+	 */
+	private void writeHeader(long tagId, byte type, long delta) {
+		VarInt.writeUnsigned(this.buffer, (tagId << TYPE_BITS) | type);
+		VarInt.writeSigned(this.buffer, delta);
+	}
+
+	/**
+	 * Decodes event type specific fields.
+	 *
+	 * @param buffer message positioned after fire time delta.
+	 * @param type event type.
+	 * @param tag event tag name.
+	 * @param timeArised event fire time.
+	 * @return decoded event.
+	 * @throws IOException if event is malformed.
+	 */
+	private static Event decodeEvent(ByteBuffer buffer, int type, String tag, long timeArised)
+		throws IOException {
+		if (type == TYPE_EVENT) {
+			return new Event(tag, timeArised);
+
+		} else if (type == TYPE_VOLUME_EVENT) {
+			return new VolumeEvent(tag, timeArised, VarInt.readSigned(buffer));
+
+		} else if (type == TYPE_AGGREGATED_EVENT) {
+			return new AggregatedEvent(tag, timeArised, VarInt.readUnsigned(buffer), 0, false);
+
+		} else if (type == TYPE_AGGREGATED_VOLUME_EVENT) {
+			long count = VarInt.readUnsigned(buffer);
+			return new AggregatedEvent(tag, timeArised, count, VarInt.readSigned(buffer), true);
+
+		} else if (type == TYPE_HISTOGRAM_EVENT) {
+			return EventJournal.decodeHistogram(buffer, tag, timeArised);
+
+		} else {
+			throw new IOException("Unknown event type: " + type);
+		}
+	}
+
+	/**
+	 * Makes sure buffer has room for the specified number of bytes by writing buffered data
+	 * out if necessary. Buffer grows if a single item does not fit into it.
+	 *
+	 * @param bytes number of bytes about to be written.
+	 */
+	private void ensureCapacity(int bytes) throws IOException {
+		if (this.buffer.remaining() >= bytes) {
+			return;
+		}
+
+		this.flushBuffer();
+		if (this.buffer.capacity() < bytes) {
+			this.buffer = ByteBuffer.allocate(bytes);
+		}
+	}
+
+	/**
+	 * Writes buffered data to the output stream.
+	 */
+	private void flushBuffer() throws IOException {
+		if (this.buffer.position() > 0) {
+			this.out.write(this.buffer.array(), 0, this.buffer.position());
+			this.buffer.clear();
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.qmonix.sdk;
+
+
+/**
+ * Describes when dispatches are deferred to save battery. Sending over cellular network while
+ * the radio is idle wakes it up to a high-power state that lasts several seconds after the
+ * transfer, so dispatches are held back until the device is on an unmetered network, is
+ * charging or the radio is already active for other traffic, and then sent together. Dispatch is
+ * never deferred longer than {@link #getMaxDelay maxDelay}, and never sent while the device is
+ * not connected.
+ * <p>
+ * Conditions are checked when they change and every {@link #getCheckInterval checkInterval}.
+ * Radio stays active only a few seconds after other traffic, so while sending with radio
+ * activity is enabled, conditions are checked at least every 2 seconds.
+ *
+ * @see HttpEventDispatcher#setDeferral
+ */
+public class DeferralPolicy {
+
+	/* Default interval of checking device conditions in milliseconds. */
+	private static final long DEFAULT_CHECK_INTERVAL = 15000;
+	/* Longest interval of checking device conditions if radio activity is followed. */
+	private static final long RADIO_CHECK_INTERVAL = 2000;
+
+	private long maxDelay;
+	private long checkInterval;
+	private boolean whenUnmetered;
+	private boolean whenCharging;
+	private boolean withRadioActivity;
+
+
+	/**
+	 * Constructs a new deferral policy that sends when on unmetered network, charging or radio is
+	 * active.
+	 *
+	 * @param maxDelay maximum time dispatch is deferred in milliseconds.
+	 */
+	public DeferralPolicy(long maxDelay) {
+		this(maxDelay, Math.min(DEFAULT_CHECK_INTERVAL, maxDelay), true, true, true);
+	}
+
+	/**
+	 * Constructs a new deferral policy. If no condition is enabled, dispatches are sent only
+	 * after the maximum delay.
+	 *
+	 * @param maxDelay maximum time dispatch is deferred in milliseconds.
+	 * @param checkInterval interval of checking device conditions in milliseconds. Capped to 2
+	 *	seconds if withRadioActivity is set.
+	 * @param whenUnmetered send when device is on unmetered network.
+	 * @param whenCharging send when device is charging.
+	 * @param withRadioActivity send when radio is active because of other traffic.
+	 */
+	public DeferralPolicy(long maxDelay, long checkInterval, boolean whenUnmetered,
+		boolean whenCharging, boolean withRadioActivity) {
+		if (maxDelay <= 0 || checkInterval <= 0) {
+			throw new IllegalArgumentException("Invalid deferral delays: " + maxDelay + ", "
+				+ checkInterval);
+		}
+
+		this.maxDelay = maxDelay;
+		this.checkInterval = withRadioActivity ? Math.min(checkInterval, RADIO_CHECK_INTERVAL)
+			: checkInterval;
+		this.whenUnmetered = whenUnmetered;
+		this.whenCharging = whenCharging;
+		this.withRadioActivity = withRadioActivity;
+	}
+
+	/**
+	 * @return maximum time dispatch is deferred in milliseconds.
+	 */
+	public long getMaxDelay() {
+		return this.maxDelay;
+	}
+
+	/**
+	 * @return effective interval of checking device conditions in milliseconds.
+	 */
+	public long getCheckInterval() {
+		return this.checkInterval;
+	}
+
+	/**
+	 * Checks whether deferred dispatch should be sent now.
+	 *
+	 * @param conditions current device conditions.
+	 * @param deferred time dispatch has been deferred for in milliseconds.
+	 * @return true if dispatch should be sent, otherwise false.
+	 */
+	public boolean allowsDispatch(DeviceConditions conditions, long deferred) {
+		if (!conditions.isConnected()) {
+			return false;
+		}
+
+		return deferred >= this.maxDelay
+			|| (this.whenUnmetered && conditions.isUnmetered())
+			|| (this.whenCharging && conditions.isCharging())
+			|| (this.withRadioActivity && conditions.isRadioActive());
+	}
+}
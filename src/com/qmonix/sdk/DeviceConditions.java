@@ -0,0 +1,63 @@
+package com.qmonix.sdk;
+
+
+/**
+ * Network and power conditions of the device that decide whether sending events now is cheap.
+ * Uploading over cellular network while the radio is otherwise idle wakes the radio up to a
+ * high-power state for several seconds, while sending over Wi-Fi, while charging or while the
+ * radio is already active for other traffic costs little extra battery.
+ * <p>
+ * {@link AndroidDeviceConditions} reads conditions from Android system services,
+ * {@link SimulatedDeviceConditions} holds conditions set by hand, e.g. in tests or load
+ * simulations on a plain JVM. Implementations must be thread safe.
+ *
+ * @see DeferralPolicy
+ * @see HttpEventDispatcher#setDeferral
+ */
+public interface DeviceConditions {
+
+	/**
+	 * @return true if the device is connected to a network.
+	 */
+	public boolean isConnected();
+
+	/**
+	 * @return true if the device is connected to an unmetered network, e.g. Wi-Fi.
+	 */
+	public boolean isUnmetered();
+
+	/**
+	 * @return true if the device is charging.
+	 */
+	public boolean isCharging();
+
+	/**
+	 * @return true if the radio is likely in high-power state because of other traffic, so
+	 *	sending now does not wake it up.
+	 */
+	public boolean isRadioActive();
+
+	/**
+	 * Adds listener notified when connectivity or charging state changes. Implementations that
+	 * cannot detect radio activity changes are polled for it.
+	 *
+	 * @param listener listener to add.
+	 */
+	public void addListener(Listener listener);
+
+	/**
+	 * Removes listener added with {@link #addListener addListener}.
+	 *
+	 * @param listener listener to remove.
+	 */
+	public void removeListener(Listener listener);
+
+
+	/**
+	 * Notified when device conditions change. Might be invoked on the main UI thread, so it
+	 * must return quickly.
+	 */
+	public interface Listener {
+		public void onConditionsChanged();
+	}
+}
@@ -0,0 +1,216 @@
+package com.qmonix.sdk;
+
+
+/**
+ * Snapshot of event dispatcher self-instrumentation: what happened to submitted events and what
+ * it cost to deliver them. Counters are cumulative since the dispatcher was created, so rates are
+ * computed by comparing two snapshots. Snapshot is immutable; values are collected without
+ * stopping submits and dispatches, so they might be slightly inconsistent with each other.
+ * <p>
+ * Events are counted as submitted when they are passed to the dispatcher and as dispatched once
+ * they are delivered, after aggregation, so with aggregation enabled fewer events are dispatched
+ * than submitted. Timing events collected into histograms are counted as submitted when
+ * recorded and histogram snapshots are counted as dispatched events.
+ * <p>
+ * Encoding, HTTP and retry metrics are collected by {@link HttpEventDispatcher} only.
+ *
+ * @see AbstractEventDispatcher#getMetrics
+ * @see Tracker#getMetrics
+ */
+public class DispatcherMetrics {
+
+	private long submittedEvents;
+	private long droppedEvents;
+	private long suppressedEvents;
+	private long spilledEvents;
+	private long dispatchedEvents;
+	private long failedDispatches;
+	private long retries;
+	private int queueDepth;
+	private long encodedBytes;
+	private long sentBytes;
+	private Timer serialization;
+	private Timer httpRequests;
+	private Timer lockWait;
+
+
+	DispatcherMetrics(long submittedEvents, long droppedEvents, long suppressedEvents,
+		long spilledEvents, long dispatchedEvents, long failedDispatches, long retries,
+		int queueDepth, long encodedBytes, long sentBytes, Timer serialization,
+		Timer httpRequests, Timer lockWait) {
+		this.submittedEvents = submittedEvents;
+		this.droppedEvents = droppedEvents;
+		this.suppressedEvents = suppressedEvents;
+		this.spilledEvents = spilledEvents;
+		this.dispatchedEvents = dispatchedEvents;
+		this.failedDispatches = failedDispatches;
+		this.retries = retries;
+		this.queueDepth = queueDepth;
+		this.encodedBytes = encodedBytes;
+		this.sentBytes = sentBytes;
+		this.serialization = serialization;
+		this.httpRequests = httpRequests;
+		this.lockWait = lockWait;
+	}
+
+	/**
+	 * @return number of events passed to the dispatcher, including dropped and suppressed
+	 *	ones.
+	 */
+	public long getSubmittedEvents() {
+		return this.submittedEvents;
+	}
+
+	/**
+	 * @return number of events dropped because memory limit was exceeded.
+	 * @see AbstractEventDispatcher#setOverflowPolicy
+	 */
+	public long getDroppedEvents() {
+		return this.droppedEvents;
+	}
+
+	/**
+	 * @return number of events discarded by sampling or rate limiting.
+	 * @see AbstractEventDispatcher#setSampling
+	 */
+	public long getSuppressedEvents() {
+		return this.suppressedEvents;
+	}
+
+	/**
+	 * @return number of events moved to the spill journal because memory limit was exceeded.
+	 */
+	public long getSpilledEvents() {
+		return this.spilledEvents;
+	}
+
+	/**
+	 * @return number of delivered events.
+	 */
+	public long getDispatchedEvents() {
+		return this.dispatchedEvents;
+	}
+
+	/**
+	 * @return number of dispatch attempts that failed, including retried ones.
+	 */
+	public long getFailedDispatches() {
+		return this.failedDispatches;
+	}
+
+	/**
+	 * @return number of scheduled dispatch retries.
+	 */
+	public long getRetries() {
+		return this.retries;
+	}
+
+	/**
+	 * @return number of collected events not delivered yet at the time of snapshot.
+	 */
+	public int getQueueDepth() {
+		return this.queueDepth;
+	}
+
+	/**
+	 * @return size of encoded event messages before compression in bytes.
+	 */
+	public long getEncodedBytes() {
+		return this.encodedBytes;
+	}
+
+	/**
+	 * @return size of encoded event messages after compression in bytes, i.e. HTTP request
+	 *	bodies. Equals to {@link #getEncodedBytes encodedBytes} if compression is disabled.
+	 */
+	public long getSentBytes() {
+		return this.sentBytes;
+	}
+
+	/**
+	 * @return time spent encoding and compressing event messages.
+	 */
+	public Timer getSerialization() {
+		return this.serialization;
+	}
+
+	/**
+	 * @return HTTP request latency, both of successful and failed requests.
+	 */
+	public Timer getHttpRequests() {
+		return this.httpRequests;
+	}
+
+	/**
+	 * @return time dispatches waited for dispatcher and message buffer locks.
+	 */
+	public Timer getLockWait() {
+		return this.lockWait;
+	}
+
+	/**
+	 * @return all metrics in a single line, e.g. for logging.
+	 */
+	@Override
+	public String toString() {
+		return "submitted=" + this.submittedEvents + " dropped=" + this.droppedEvents
+			+ " suppressed=" + this.suppressedEvents + " spilled=" + this.spilledEvents
+			+ " dispatched=" + this.dispatchedEvents + " failed=" + this.failedDispatches
+			+ " retries=" + this.retries
+			+ " queueDepth=" + this.queueDepth + " encodedBytes=" + this.encodedBytes
+			+ " sentBytes=" + this.sentBytes + " serialization={" + this.serialization
+			+ "} http={" + this.httpRequests + "} lockWait={" + this.lockWait + "}";
+	}
+
+
+	/**
+	 * Number, total and maximum duration of timed operations.
+	 */
+	public static class Timer {
+
+		private long count;
+		private long totalNanos;
+		private long maxNanos;
+
+
+		Timer(long count, long totalNanos, long maxNanos) {
+			this.count = count;
+			this.totalNanos = totalNanos;
+			this.maxNanos = maxNanos;
+		}
+
+		/**
+		 * @return number of timed operations.
+		 */
+		public long getCount() {
+			return this.count;
+		}
+
+		/**
+		 * @return total duration of timed operations in nanoseconds.
+		 */
+		public long getTotalNanos() {
+			return this.totalNanos;
+		}
+
+		/**
+		 * @return longest duration of a single operation in nanoseconds.
+		 */
+		public long getMaxNanos() {
+			return this.maxNanos;
+		}
+
+		/**
+		 * @return average duration of an operation in nanoseconds, 0 if none were timed.
+		 */
+		public long getMeanNanos() {
+			return this.count == 0 ? 0 : this.totalNanos / this.count;
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + this.count + " totalNanos=" + this.totalNanos + " maxNanos="
+				+ this.maxNanos;
+		}
+	}
+}
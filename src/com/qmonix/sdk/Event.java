@@ -1,5 +1,7 @@
 package com.qmonix.sdk;
 
+import java.io.IOException;
+
 import org.json.JSONObject;
 import org.json.JSONException;
 
@@ -12,12 +14,18 @@ import com.qmonix.sdk.utils.Utils;
  * same names but their collected information will be aggregated. Event tag name might be retrieved
  * by {@link #getTag getTag}. {@link #getTimeArised getTimeArised} returns event fire time.
  * <p>
- * {@link #toJson toJson} encodes event information to JSON object.
+ * {@link #toJson toJson} encodes event information to JSON object. {@link #writeJson writeJson}
+ * streams the same JSON object to {@link EventJsonWriter}.
  *
  * @see EventDispatcher
  */
 public class Event {
 
+	/* Approximate size of encoded event JSON object excluding tag name. */
+	static final int JSON_SIZE_ESTIMATE = 36;
+
+	private static final byte[] JSON_WHEN_ARISED = EventJsonWriter.encodeName("whenArised");
+
 	private boolean fired = false;
 
 	protected long timeArised;
@@ -36,7 +44,7 @@ public class Event {
 			throw new IllegalArgumentException("Tag name cannot be null.");
 		}
 
-		this.tag = tag;
+		this.tag = TagTable.getDefault().canonicalize(tag);
 		this.timeArised = timeArised;
 	}
 
@@ -70,4 +78,39 @@ public class Event {
 
 		return json;
 	}
+
+	/**
+	 * Streams event encoded as JSON object to the specified writer. Produces the same JSON
+	 * object as {@link #toJson toJson} but does not allocate intermediate objects.
+	 *
+	 * @param writer JSON writer to write event to.
+	 * @throws IOException if fails to write to the underlying stream.
+	 */
+	public void writeJson(EventJsonWriter writer) throws IOException {
+		writer.writeChar('{');
+		this.writeJsonProperties(writer);
+		writer.writeChar('}');
+	}
+
+	/**
+	 * Writes event JSON object properties without enclosing braces. Subclasses that add
+	 * properties should override this method and call super implementation first.
+	 *
+	 * @param writer JSON writer to write properties to.
+	 * @throws IOException if fails to write to the underlying stream.
+	 */
+	protected void writeJsonProperties(EventJsonWriter writer) throws IOException {
+		writer.writeTag(this.getTag());
+		writer.writeName(JSON_WHEN_ARISED, true);
+		writer.writeLong(this.getTimeArised());
+	}
+
+	/**
+	 * Returns approximate number of bytes this event takes when encoded to JSON event message.
+	 *
+	 * @return estimated encoded event size in bytes.
+	 */
+	int estimateJsonSize() {
+		return JSON_SIZE_ESTIMATE + this.tag.length();
+	}
 }
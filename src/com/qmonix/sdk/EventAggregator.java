@@ -0,0 +1,317 @@
+package com.qmonix.sdk;
+
+import java.util.Arrays;
+
+
+/**
+ * Merges events with the same tag fired within the same time bucket into {@link AggregatedEvent}
+ * records. Single events and volume events are merged separately; subclasses of
+ * {@link VolumeEvent} are merged as volume events. Buckets are aligned to multiples of bucket
+ * length in Unix time.
+ * <p>
+ * Records are kept in parallel primitive arrays indexed by an open addressing hash table, so
+ * adding an event does not allocate unless tables have to grow. Tables are reused between
+ * batches. Record that holds a single event is emitted as the original event object, so
+ * aggregation does not change how rarely fired events are encoded. Events might also be added
+ * by their fields, in which case an event object is only created for such single event records.
+ * <p>
+ * Not thread safe, dispatcher calls it while holding its lock.
+ *
+ * @see AbstractEventDispatcher#setAggregation
+ */
+class EventAggregator {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/* Tables larger than that are released after a batch is drained. */
+	private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+
+	private long bucketSeconds;
+
+	/* Hash table of record index + 1, 0 marks empty slot. Twice as large as record arrays. */
+	private int[] slots;
+
+	private int size = 0;
+	private String[] tags;
+	private long[] buckets;
+	private boolean[] volumeKinds;
+	private long[] counts;
+	private long[] volumes;
+	private long[] times;
+	private Event[] firstEvents;
+
+
+	/**
+	 * Constructs a new aggregator.
+	 *
+	 * @param bucketSeconds length of time bucket in seconds. Positive number.
+	 */
+	public EventAggregator(long bucketSeconds) {
+		if (bucketSeconds <= 0) {
+			throw new IllegalArgumentException("Bucket length must be positive.");
+		}
+
+		this.bucketSeconds = bucketSeconds;
+		this.allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * @return length of time bucket in seconds.
+	 */
+	public long getBucketSeconds() {
+		return this.bucketSeconds;
+	}
+
+	/**
+	 * @return number of aggregated records.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Merges event into the record of its tag and time bucket. Histogram events must not be
+	 * added, since merging them would lose their buckets.
+	 *
+	 * @param event event to add.
+	 */
+	public void add(Event event) {
+		this.add(event.getTag(), event.getTimeArised(), EventAggregator.getCount(event),
+			EventAggregator.getVolume(event), EventAggregator.hasVolume(event), event);
+	}
+
+	/**
+	 * Merges event given by its fields into the record of its tag and time bucket. Event
+	 * object is created only if the record ends up holding this event alone.
+	 *
+	 * @param tag event tag name.
+	 * @param timeArised Unix time stamp when event was fired.
+	 * @param volume event volume, 0 for single events.
+	 * @param volumeKind true for volume events.
+	 */
+	public void add(String tag, long timeArised, long volume, boolean volumeKind) {
+		this.add(tag, timeArised, 1, volume, volumeKind, null);
+	}
+
+	/**
+	 * Merges event that stands for a number of events, e.g. a sampled event, given by its
+	 * fields into the record of its tag and time bucket.
+	 *
+	 * @param tag event tag name.
+	 * @param timeArised Unix time stamp when event was fired.
+	 * @param count number of events the event stands for. Positive number.
+	 * @param volume total volume of the events, 0 for single events.
+	 * @param volumeKind true for volume events.
+	 */
+	public void add(String tag, long timeArised, long count, long volume, boolean volumeKind) {
+		this.add(tag, timeArised, count, volume, volumeKind, null);
+	}
+
+	/**
+	 * Moves aggregated records to the end of the specified event message in the order their
+	 * first events were added. Aggregator is empty afterwards.
+	 *
+	 * @param message event message to add records to.
+	 */
+	public void drainTo(EventMessage message) {
+		for (int i = 0; i < this.size; i++) {
+			if (this.counts[i] == 1) {
+				message.addEvent(this.getFirstEvent(i));
+			} else {
+				message.addEvent(new AggregatedEvent(this.tags[i], this.buckets[i],
+					this.counts[i], this.volumes[i], this.volumeKinds[i]));
+			}
+		}
+
+		if (this.tags.length > MAX_RETAINED_CAPACITY) {
+			this.allocate(INITIAL_CAPACITY);
+		} else {
+			Arrays.fill(this.slots, 0);
+			Arrays.fill(this.tags, 0, this.size, null);
+			Arrays.fill(this.firstEvents, 0, this.size, null);
+		}
+
+		this.size = 0;
+	}
+
+	/**
+	 * @return true if event is merged as a volume event.
+	 */
+	static boolean hasVolume(Event event) {
+		if (event instanceof AggregatedEvent) {
+			return ((AggregatedEvent)event).hasVolume();
+		}
+
+		return event instanceof VolumeEvent;
+	}
+
+	/**
+	 * @return number of events the specified event stands for.
+	 */
+	static long getCount(Event event) {
+		if (event instanceof AggregatedEvent) {
+			return ((AggregatedEvent)event).getCount();
+		}
+
+		return 1;
+	}
+
+	/**
+	 * @return volume of the specified event, 0 for single events.
+	 */
+	static long getVolume(Event event) {
+		if (event instanceof AggregatedEvent) {
+			return ((AggregatedEvent)event).getVolume();
+		}
+		if (event instanceof VolumeEvent) {
+			return ((VolumeEvent)event).getVolume();
+		}
+
+		return 0;
+	}
+
+
+	// Private methods.
+
+	/**
+	 * Merges event into the record of its tag and time bucket.
+	 *
+	 * @param tag event tag name.
+	 * @param timeArised Unix time stamp when event was fired.
+	 * @param count number of events the event stands for.
+	 * @param volume event volume.
+	 * @param volumeKind true if event is merged as a volume event.
+	 * @param event event object or null if event was given by its fields.
+	 */
+	private void add(String tag, long timeArised, long count, long volume,
+		boolean volumeKind, Event event) {
+		long bucket = this.getBucket(timeArised);
+
+		int mask = this.slots.length - 1;
+		int slot = EventAggregator.hash(tag, bucket, volumeKind) & mask;
+		while (this.slots[slot] != 0) {
+			int index = this.slots[slot] - 1;
+			if (this.buckets[index] == bucket && this.volumeKinds[index] == volumeKind
+				&& this.tags[index].equals(tag)) {
+				this.counts[index] += count;
+				this.volumes[index] += volume;
+				return;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		if (this.size == this.tags.length) {
+			this.grow();
+			this.add(tag, timeArised, count, volume, volumeKind, event);
+			return;
+		}
+
+		int index = this.size++;
+		this.tags[index] = tag;
+		this.buckets[index] = bucket;
+		this.volumeKinds[index] = volumeKind;
+		this.counts[index] = count;
+		this.volumes[index] = volume;
+		this.firstEvents[index] = event;
+		/* Event given by fields keeps its own fire time until it is merged with another. */
+		this.times[index] = timeArised;
+		this.slots[slot] = index + 1;
+	}
+
+	/**
+	 * Returns the only event of a record, creating it if it was added by its fields.
+	 *
+	 * @param index record index.
+	 * @return event object.
+	 */
+	private Event getFirstEvent(int index) {
+		Event event = this.firstEvents[index];
+		if (event != null) {
+			return event;
+		}
+
+		if (this.volumeKinds[index]) {
+			return new VolumeEvent(this.tags[index], this.times[index], this.volumes[index]);
+		}
+
+		return new Event(this.tags[index], this.times[index]);
+	}
+
+	/**
+	 * Returns start of the time bucket the specified time belongs to.
+	 *
+	 * @param time Unix time stamp.
+	 * @return bucket start time.
+	 */
+	private long getBucket(long time) {
+		long remainder = time % this.bucketSeconds;
+		if (remainder < 0) {
+			remainder += this.bucketSeconds;
+		}
+
+		return time - remainder;
+	}
+
+	/**
+	 * Doubles record arrays and rebuilds hash table.
+	 */
+	private void grow() {
+		String[] tags = this.tags;
+		long[] buckets = this.buckets;
+		boolean[] volumeKinds = this.volumeKinds;
+		long[] counts = this.counts;
+		long[] volumes = this.volumes;
+		long[] times = this.times;
+		Event[] firstEvents = this.firstEvents;
+
+		/* Arrays.copyOf is not available on older Android versions. */
+		this.allocate(tags.length * 2);
+		System.arraycopy(tags, 0, this.tags, 0, this.size);
+		System.arraycopy(buckets, 0, this.buckets, 0, this.size);
+		System.arraycopy(volumeKinds, 0, this.volumeKinds, 0, this.size);
+		System.arraycopy(counts, 0, this.counts, 0, this.size);
+		System.arraycopy(volumes, 0, this.volumes, 0, this.size);
+		System.arraycopy(times, 0, this.times, 0, this.size);
+		System.arraycopy(firstEvents, 0, this.firstEvents, 0, this.size);
+
+		int mask = this.slots.length - 1;
+		for (int i = 0; i < this.size; i++) {
+			int slot = EventAggregator.hash(this.tags[i], this.buckets[i],
+				this.volumeKinds[i]) & mask;
+			while (this.slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+
+			this.slots[slot] = i + 1;
+		}
+	}
+
+	/**
+	 * Allocates empty tables for the specified number of records.
+	 *
+	 * @param capacity number of records. Power of two.
+	 */
+	private void allocate(int capacity) {
+		this.slots = new int[capacity * 2];
+		this.tags = new String[capacity];
+		this.buckets = new long[capacity];
+		this.volumeKinds = new boolean[capacity];
+		this.counts = new long[capacity];
+		this.volumes = new long[capacity];
+		this.times = new long[capacity];
+		this.firstEvents = new Event[capacity];
+	}
+
+	/**
+	 * Computes hash of record key. String hash code is cached by the string itself.
+	 */
+	private static int hash(String tag, long bucket, boolean volumeKind) {
+		long h = tag.hashCode() * 0x9e3779b97f4a7c15L + bucket;
+		h ^= h >>> 29;
+		h *= 0xbf58476d1ce4e5b9L;
+		h ^= h >>> 32;
+
+		return volumeKind ? (int)h ^ 1 : (int)h;
+	}
+}
@@ -0,0 +1,669 @@
+package com.qmonix.sdk;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.qmonix.sdk.utils.VarInt;
+
+
+/**
+ * Durable append-only event journal which keeps dispatched events on disk until the server
+ * acknowledges them, so undelivered events survive process death. Event dispatcher appends events
+ * to the journal once it takes them for dispatch and acknowledges them after they were sent
+ * successfully. Events that were not acknowledged are read back with
+ * {@link #readPending readPending} when application starts next time.
+ * <p>
+ * Journal file starts with a fixed size header followed by event records. Header holds journal
+ * offsets of the first unacknowledged record and of the end of the last complete record. Every
+ * record is stored as:
+ * <pre>
+ * varint payload length | payload | CRC32 of payload (4 bytes)
+ * payload: record type (1 byte) | varint tag length | UTF-8 tag | zigzag varint fire time
+ *	[| varint count] [| zigzag varint volume]
+ * histogram payload: ... fire time | unit (1 byte) | format (1 byte) | zigzag varint sum
+ *	| varint bucket count | (varint bucket index delta | varint bucket count)...
+ * </pre>
+ * Records are written with a single buffered {@link FileChannel} write per batch, followed by
+ * a single header update and {@link FileChannel#force force}. Records after a torn write are
+ * detected by their checksum and dropped on recovery.
+ * <p>
+ * Offsets are logical: they keep growing even when acknowledged records are removed from the
+ * beginning of the file, so offsets remembered by in-flight event messages stay valid. Events
+ * might be acknowledged out of order, journal head advances only over a contiguous acknowledged
+ * region. Subclasses of {@link VolumeEvent} are journaled as volume events, {@link AggregatedEvent}
+ * objects keep their count, {@link HistogramEvent} objects keep their buckets, other events are
+ * journaled as single events.
+ * <p>
+ * All methods are thread safe.
+ *
+ * @see AbstractEventDispatcher#setJournal
+ */
+public class EventJournal {
+
+	private static final int MAGIC = 0x514d4a31;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+
+	private static final byte RECORD_EVENT = 0;
+	private static final byte RECORD_VOLUME_EVENT = 1;
+	private static final byte RECORD_AGGREGATED_EVENT = 2;
+	private static final byte RECORD_AGGREGATED_VOLUME_EVENT = 3;
+	private static final byte RECORD_HISTOGRAM_EVENT = 4;
+
+	/* Acknowledged records are removed from the file once they take that much space. */
+	private static final long COMPACTION_THRESHOLD = 64 * 1024;
+
+	private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+	private static final int MAX_TAG_SIZE = 64 * 1024;
+	/* Largest payload encodePayload writes, records beyond it are corrupted. */
+	private static final int MAX_PAYLOAD_SIZE = EventJournal.getMaxPayloadSize(MAX_TAG_SIZE,
+		TimingHistogram.BUCKET_COUNT);
+
+	private File file;
+	private RandomAccessFile randomAccessFile;
+	private FileChannel channel;
+
+	/* Logical offset of the first byte after header. */
+	private long base;
+	/* Logical offset of the first unacknowledged record. */
+	private long head;
+	/* Logical offset after the last complete record. */
+	private long tail;
+
+	/* Acknowledged regions beyond head: start offset to end offset. */
+	private TreeMap<Long, Long> acknowledged = new TreeMap<Long, Long>();
+
+	private ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_SIZE);
+	private ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+	private CRC32 crc = new CRC32();
+
+
+	/**
+	 * Opens event journal stored in the specified file. If file does not exist, it is created.
+	 * If file is not a valid journal, it is reset and its content is lost.
+	 *
+	 * @param file journal file.
+	 * @throws IOException if fails to open or create journal file.
+	 */
+	public EventJournal(File file) throws IOException {
+		if (file == null) {
+			throw new IllegalArgumentException("Journal file cannot be null.");
+		}
+
+		this.file = file;
+		this.randomAccessFile = new RandomAccessFile(file, "rw");
+		this.channel = this.randomAccessFile.getChannel();
+
+		if (!this.readHeader()) {
+			if (this.channel.size() > 0) {
+				QLog.warning("Invalid event journal is reset: " + file);
+			}
+
+			this.base = 0;
+			this.head = 0;
+			this.tail = 0;
+			this.writeHeader();
+			this.channel.truncate(HEADER_SIZE);
+			this.channel.force(true);
+		}
+	}
+
+	/**
+	 * Appends all events of the specified message to the journal and remembers their journal
+	 * region in the message. Data is forced to the storage device before method returns.
+	 *
+	 * @param message events to append.
+	 * @throws IOException if fails to write events.
+	 */
+	synchronized public void append(EventMessage message) throws IOException {
+		this.ensureOpen();
+
+		int count = message.getEventCount();
+		if (count == 0) {
+			return;
+		}
+
+		long start = this.tail;
+		long position = this.physicalPosition(this.tail);
+		this.writeBuffer.clear();
+
+		for (int i = 0; i < count; i++) {
+			byte[] payload = this.encodePayload(message.getEvent(i));
+
+			int recordSize = VarInt.MAX_LONG_SIZE + payload.length + 4;
+			if (recordSize > this.writeBuffer.remaining()) {
+				position += this.writeOut(position);
+			}
+			if (recordSize > this.writeBuffer.capacity()) {
+				this.writeBuffer = ByteBuffer.allocate(recordSize);
+			}
+
+			this.crc.reset();
+			this.crc.update(payload, 0, payload.length);
+
+			VarInt.writeUnsigned(this.writeBuffer, payload.length);
+			this.writeBuffer.put(payload);
+			this.writeBuffer.putInt((int)this.crc.getValue());
+		}
+
+		position += this.writeOut(position);
+
+		this.tail = this.logicalOffset(position);
+		this.writeHeader();
+		this.channel.force(false);
+
+		if (this.writeBuffer.capacity() > WRITE_BUFFER_SIZE) {
+			this.writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+		}
+
+		message.addJournalRange(start, this.tail);
+	}
+
+	/**
+	 * Marks journaled events of the specified message as delivered. Their records are removed
+	 * once all records before them are acknowledged as well. Events that were not journaled are
+	 * ignored.
+	 *
+	 * @param message delivered events.
+	 * @throws IOException if fails to update journal.
+	 */
+	synchronized public void acknowledge(EventMessage message) throws IOException {
+		this.ensureOpen();
+
+		ArrayList<long[]> ranges = message.getJournalRanges();
+		if (ranges == null) {
+			return;
+		}
+
+		for (long[] range : ranges) {
+			if (range[1] > this.head) {
+				this.acknowledged.put(Math.max(range[0], this.head), range[1]);
+			}
+		}
+
+		long head = this.head;
+		while (!this.acknowledged.isEmpty()) {
+			long start = this.acknowledged.firstKey();
+			if (start > head) {
+				break;
+			}
+
+			head = Math.max(head, this.acknowledged.remove(start));
+		}
+
+		if (head != this.head) {
+			this.head = Math.min(head, this.tail);
+			this.writeHeader();
+			this.compact();
+			this.channel.force(false);
+		}
+	}
+
+	/**
+	 * Reads all events that were not acknowledged yet. Returned message remembers journal
+	 * region of the events, so it might be acknowledged once sent. Corrupted records at the end
+	 * of the journal, e.g. left by a torn write, are dropped.
+	 *
+	 * @return unacknowledged events.
+	 * @throws IOException if fails to read journal.
+	 */
+	synchronized public EventMessage readPending() throws IOException {
+		return this.readPending(0, 0);
+	}
+
+	/**
+	 * Reads the oldest events that were not acknowledged yet, up to the specified limits.
+	 * Same as {@link #readPending()} otherwise.
+	 *
+	 * @param maxEvents maximum number of events to read, 0 if not limited.
+	 * @param maxBytes maximum estimated JSON size of events to read, 0 if not limited. At
+	 *	least one event is read regardless.
+	 * @return unacknowledged events.
+	 * @throws IOException if fails to read journal.
+	 */
+	synchronized public EventMessage readPending(int maxEvents, long maxBytes)
+		throws IOException {
+		this.ensureOpen();
+
+		EventMessage message = new EventMessage();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+			Channels.newInputStream(this.channel.position(this.physicalPosition(this.head)))));
+
+		long offset = this.head;
+		while (offset < this.tail && (maxEvents <= 0 || message.getEventCount() < maxEvents)
+			&& (maxBytes <= 0 || message.getEventCount() == 0
+			|| message.estimateJsonSize() < maxBytes)) {
+			Event event;
+			int recordSize;
+
+			try {
+				long payloadSize = this.readVarInt(in);
+				if (payloadSize <= 0 || payloadSize > MAX_PAYLOAD_SIZE) {
+					throw new IOException("Invalid record size: " + payloadSize);
+				}
+
+				byte[] payload = new byte[(int)payloadSize];
+				in.readFully(payload);
+				int checksum = in.readInt();
+
+				this.crc.reset();
+				this.crc.update(payload, 0, payload.length);
+				if ((int)this.crc.getValue() != checksum) {
+					throw new IOException("Record checksum mismatch.");
+				}
+
+				event = this.decodePayload(payload);
+				recordSize = this.varIntSize(payloadSize) + payload.length + 4;
+
+			} catch (IOException e) {
+				QLog.warning("Dropping corrupted event journal records: " + e.toString());
+				this.tail = offset;
+				this.writeHeader();
+				this.channel.force(false);
+				break;
+			}
+
+			message.addEvent(event);
+			offset += recordSize;
+		}
+
+		if (offset > this.head) {
+			message.addJournalRange(this.head, offset);
+		}
+
+		return message;
+	}
+
+	/**
+	 * Removes all events from the journal, acknowledged or not.
+	 *
+	 * @throws IOException if fails to update journal.
+	 */
+	synchronized public void clear() throws IOException {
+		this.ensureOpen();
+
+		this.acknowledged.clear();
+		this.head = this.tail;
+		this.writeHeader();
+		this.compact();
+		this.channel.force(false);
+	}
+
+	/**
+	 * @return number of bytes taken by unacknowledged events.
+	 */
+	synchronized public long getPendingBytes() {
+		return this.tail - this.head;
+	}
+
+	/**
+	 * Closes journal file. Journal cannot be used after it is closed.
+	 *
+	 * @throws IOException if fails to close the file.
+	 */
+	synchronized public void close() throws IOException {
+		if (this.channel != null) {
+			this.channel.close();
+			this.randomAccessFile.close();
+			this.channel = null;
+		}
+	}
+
+	/**
+	 * Encodes histogram specific part of record payload. Binary event messages encode
+	 * histograms the same way, see {@link BinaryEventMessageSerializer}.
+	 *
+	 * @param payload buffer to write to.
+	 * @param event histogram event.
+	 */
+	static void encodeHistogram(ByteBuffer payload, HistogramEvent event) {
+		int[] indexes = event.getBucketIndexes();
+		long[] counts = event.getBucketCounts();
+
+		payload.put((byte)event.getUnit().ordinal());
+		payload.put((byte)event.getFormat().ordinal());
+		VarInt.writeSigned(payload, event.getSum());
+		VarInt.writeUnsigned(payload, indexes.length);
+
+		int previous = 0;
+		for (int i = 0; i < indexes.length; i++) {
+			VarInt.writeUnsigned(payload, indexes[i] - previous);
+			VarInt.writeUnsigned(payload, counts[i]);
+			previous = indexes[i];
+		}
+	}
+
+	/**
+	 * Decodes histogram specific part of record payload.
+	 *
+	 * @param buffer payload positioned after fire time.
+	 * @param tag event tag name.
+	 * @param timeArised event fire time.
+	 * @return decoded histogram event.
+	 * @throws IOException if payload is malformed.
+	 */
+	static HistogramEvent decodeHistogram(ByteBuffer buffer, String tag, long timeArised)
+		throws IOException {
+		TimeUnit[] units = TimeUnit.values();
+		HistogramEvent.Format[] formats = HistogramEvent.Format.values();
+
+		int unit = buffer.get();
+		int format = buffer.get();
+		if (unit < 0 || unit >= units.length || format < 0 || format >= formats.length) {
+			throw new IOException("Invalid histogram unit or format.");
+		}
+
+		long sum = VarInt.readSigned(buffer);
+		long buckets = VarInt.readUnsigned(buffer);
+		if (buckets <= 0 || buckets > TimingHistogram.BUCKET_COUNT) {
+			throw new IOException("Invalid histogram bucket count: " + buckets);
+		}
+
+		int[] indexes = new int[(int)buckets];
+		long[] counts = new long[(int)buckets];
+		long index = 0;
+		for (int i = 0; i < indexes.length; i++) {
+			index += VarInt.readUnsigned(buffer);
+			if (index >= TimingHistogram.BUCKET_COUNT) {
+				throw new IOException("Invalid histogram bucket index: " + index);
+			}
+
+			indexes[i] = (int)index;
+			counts[i] = VarInt.readUnsigned(buffer);
+		}
+
+		return new HistogramEvent(tag, timeArised, units[unit], formats[format], indexes,
+			counts, sum);
+	}
+
+
+	// Private methods.
+
+	/**
+	 * Reads and validates journal header.
+	 *
+	 * @return true if header is valid, otherwise false.
+	 */
+	private boolean readHeader() throws IOException {
+		long size = this.channel.size();
+		if (size < HEADER_SIZE) {
+			return false;
+		}
+
+		this.headerBuffer.clear();
+		while (this.headerBuffer.hasRemaining()) {
+			if (this.channel.read(this.headerBuffer, this.headerBuffer.position()) < 0) {
+				return false;
+			}
+		}
+		this.headerBuffer.flip();
+
+		if (this.headerBuffer.getInt() != MAGIC || this.headerBuffer.getInt() != VERSION) {
+			return false;
+		}
+
+		this.base = this.headerBuffer.getLong();
+		this.head = this.headerBuffer.getLong();
+		this.tail = this.headerBuffer.getLong();
+		if (this.base > this.head || this.head > this.tail
+			|| this.physicalPosition(this.head) > size) {
+			return false;
+		}
+
+		/* Last records might not have reached the disk; readPending() drops incomplete ones. */
+		this.tail = Math.min(this.tail, this.logicalOffset(size));
+		return true;
+	}
+
+	/**
+	 * Writes journal header with current offsets. Does not force it to the storage device.
+	 */
+	private void writeHeader() throws IOException {
+		this.headerBuffer.clear();
+		this.headerBuffer.putInt(MAGIC);
+		this.headerBuffer.putInt(VERSION);
+		this.headerBuffer.putLong(this.base);
+		this.headerBuffer.putLong(this.head);
+		this.headerBuffer.putLong(this.tail);
+		this.headerBuffer.flip();
+
+		while (this.headerBuffer.hasRemaining()) {
+			this.channel.write(this.headerBuffer, this.headerBuffer.position());
+		}
+	}
+
+	/**
+	 * Removes acknowledged records from the beginning of the file. File is truncated as soon as
+	 * all records are acknowledged, otherwise unacknowledged records are moved once enough
+	 * space can be reclaimed and only if they do not overlap their new location, so a crash
+	 * while compacting leaves the journal valid: header is updated only after records are
+	 * copied.
+	 */
+	private void compact() throws IOException {
+		long removable = this.physicalPosition(this.head) - HEADER_SIZE;
+		long pending = this.tail - this.head;
+		if (removable == 0 || removable < pending
+			|| (pending > 0 && removable < COMPACTION_THRESHOLD)) {
+			return;
+		}
+
+		long source = this.physicalPosition(this.head);
+		long destination = HEADER_SIZE;
+		while (destination < HEADER_SIZE + pending) {
+			this.writeBuffer.clear();
+			if (this.writeBuffer.remaining() > HEADER_SIZE + pending - destination) {
+				this.writeBuffer.limit((int)(HEADER_SIZE + pending - destination));
+			}
+
+			int read = this.channel.read(this.writeBuffer, source);
+			if (read < 0) {
+				throw new EOFException("Unexpected end of event journal.");
+			}
+
+			this.writeBuffer.flip();
+			while (this.writeBuffer.hasRemaining()) {
+				destination += this.channel.write(this.writeBuffer, destination);
+			}
+			source += read;
+		}
+
+		this.channel.force(false);
+		this.base = this.head;
+		this.writeHeader();
+		this.channel.force(false);
+		this.channel.truncate(HEADER_SIZE + pending);
+	}
+
+	/**
+	 * Writes buffered records to the file and clears write buffer.
+	 *
+	 * @param position file position to write to.
+	 * @return number of bytes written.
+	 */
+	private int writeOut(long position) throws IOException {
+		this.writeBuffer.flip();
+
+		int written = 0;
+		while (this.writeBuffer.hasRemaining()) {
+			written += this.channel.write(this.writeBuffer, position + written);
+		}
+
+		this.writeBuffer.clear();
+		return written;
+	}
+
+	/**
+	 * Encodes event to record payload.
+	 *
+	 * @param event event to encode.
+	 * @return record payload.
+	 */
+	private byte[] encodePayload(Event event) throws IOException {
+		byte[] tag = event.getTag().getBytes("UTF-8");
+		if (tag.length > MAX_TAG_SIZE) {
+			throw new IOException("Event tag is too long to be journaled: " + tag.length);
+		}
+
+		int buckets = 0;
+		if (event instanceof HistogramEvent) {
+			buckets = ((HistogramEvent)event).getBucketIndexes().length;
+		}
+
+		ByteBuffer payload = ByteBuffer.allocate(EventJournal.getMaxPayloadSize(tag.length,
+			buckets));
+		AggregatedEvent aggregated = null;
+		if (event instanceof HistogramEvent) {
+			payload.put(RECORD_HISTOGRAM_EVENT);
+		} else if (event instanceof AggregatedEvent) {
+			aggregated = (AggregatedEvent)event;
+			payload.put(aggregated.hasVolume() ? RECORD_AGGREGATED_VOLUME_EVENT
+				: RECORD_AGGREGATED_EVENT);
+		} else if (event instanceof VolumeEvent) {
+			payload.put(RECORD_VOLUME_EVENT);
+		} else {
+			payload.put(RECORD_EVENT);
+		}
+
+		VarInt.writeUnsigned(payload, tag.length);
+		payload.put(tag);
+		VarInt.writeSigned(payload, event.getTimeArised());
+
+		if (event instanceof HistogramEvent) {
+			EventJournal.encodeHistogram(payload, (HistogramEvent)event);
+		} else if (aggregated != null) {
+			VarInt.writeUnsigned(payload, aggregated.getCount());
+			if (aggregated.hasVolume()) {
+				VarInt.writeSigned(payload, aggregated.getVolume());
+			}
+		} else if (event instanceof VolumeEvent) {
+			VarInt.writeSigned(payload, ((VolumeEvent)event).getVolume());
+		}
+
+		byte[] result = new byte[payload.position()];
+		System.arraycopy(payload.array(), 0, result, 0, result.length);
+		return result;
+	}
+
+	/**
+	 * Returns upper bound of record payload size: record type, histogram unit and format bytes,
+	 * tag and up to four values, e.g. tag length, time, count and volume, plus index and count
+	 * of every histogram bucket.
+	 *
+	 * @param tagSize size of UTF-8 encoded tag in bytes.
+	 * @param buckets number of histogram buckets, 0 if event is not a histogram.
+	 * @return maximum payload size in bytes.
+	 */
+	private static int getMaxPayloadSize(int tagSize, int buckets) {
+		return 3 + (4 + 2 * buckets) * VarInt.MAX_LONG_SIZE + tagSize;
+	}
+
+	/**
+	 * Decodes event from record payload.
+	 *
+	 * @param payload record payload.
+	 * @return decoded event.
+	 * @throws IOException if payload is malformed.
+	 */
+	private Event decodePayload(byte[] payload) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+
+		try {
+			byte type = buffer.get();
+			int tagLength = (int)VarInt.readUnsigned(buffer);
+			if (tagLength < 0 || tagLength > buffer.remaining()) {
+				throw new IOException("Invalid tag length: " + tagLength);
+			}
+
+			String tag = new String(payload, buffer.position(), tagLength, "UTF-8");
+			buffer.position(buffer.position() + tagLength);
+			long timeArised = VarInt.readSigned(buffer);
+
+			if (type == RECORD_EVENT) {
+				return new Event(tag, timeArised);
+
+			} else if (type == RECORD_VOLUME_EVENT) {
+				return new VolumeEvent(tag, timeArised, VarInt.readSigned(buffer));
+
+			} else if (type == RECORD_AGGREGATED_EVENT) {
+				return new AggregatedEvent(tag, timeArised, VarInt.readUnsigned(buffer), 0,
+					false);
+
+			} else if (type == RECORD_AGGREGATED_VOLUME_EVENT) {
+				long count = VarInt.readUnsigned(buffer);
+				return new AggregatedEvent(tag, timeArised, count, VarInt.readSigned(buffer),
+					true);
+
+			} else if (type == RECORD_HISTOGRAM_EVENT) {
+				return EventJournal.decodeHistogram(buffer, tag, timeArised);
+
+			} else {
+				throw new IOException("Unknown record type: " + type);
+			}
+
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated record payload.");
+
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Malformed record payload: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads unsigned variable length integer from the stream.
+	 *
+	 * @param in stream to read from.
+	 * @return decoded value.
+	 */
+	private long readVarInt(DataInputStream in) throws IOException {
+		long result = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.readByte();
+			result |= (long)(b & 0x7f) << shift;
+
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+
+		throw new IOException("Variable length integer is too long.");
+	}
+
+	/**
+	 * @return number of bytes unsigned variable length integer takes.
+	 */
+	private int varIntSize(long value) {
+		int size = 1;
+		while ((value & ~0x7fL) != 0) {
+			value >>>= 7;
+			size++;
+		}
+
+		return size;
+	}
+
+	private long physicalPosition(long offset) {
+		return HEADER_SIZE + (offset - this.base);
+	}
+
+	private long logicalOffset(long position) {
+		return this.base + (position - HEADER_SIZE);
+	}
+
+	private void ensureOpen() throws IOException {
+		if (this.channel == null) {
+			throw new IOException("Event journal is closed: " + this.file);
+		}
+	}
+}
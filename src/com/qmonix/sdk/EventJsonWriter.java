@@ -0,0 +1,332 @@
+package com.qmonix.sdk;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+
+/**
+ * Streaming JSON encoder used to serialize event messages directly to an output stream, without
+ * building intermediate JSON objects or strings. Output is UTF-8 encoded and buffered in a byte
+ * array which is allocated once per writer, so writer objects are meant to be reused.
+ * <p>
+ * Writer does not track JSON structure, callers are responsible for writing brackets, commas and
+ * property names in the right order. Property names are usually kept as pre-encoded byte array
+ * constants, see {@link #encodeName encodeName}.
+ * <p>
+ * While an event message with a tag dictionary is being written, {@link #writeTag writeTag}
+ * refers to tags defined in the dictionary by their ids instead of writing tag names.
+ *
+ * @see EventMessage#writeJson
+ * @see Event#writeJson
+ */
+public class EventJsonWriter {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/* Longest encoding of a single char: \\uXXXX escape sequence. */
+	private static final int MAX_CHAR_SIZE = 6;
+
+	/* Long.MIN_VALUE has 19 digits and a sign. */
+	private static final int MAX_LONG_SIZE = 20;
+
+	private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+		'a', 'b', 'c', 'd', 'e', 'f'};
+
+	private static final byte[] JSON_TAG = EventJsonWriter.encodeName("tag");
+	private static final byte[] JSON_TAG_ID = EventJsonWriter.encodeName("tagId");
+
+	private OutputStream out;
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int position = 0;
+
+	/* Ids of tags defined in the dictionary of the message being written. Reused. */
+	private HashMap<String, Integer> tagIds = new HashMap<String, Integer>();
+	private boolean tagDictionary = false;
+
+
+	/**
+	 * Constructs a new JSON writer without an output stream. It must be set with
+	 * {@link #setOutput setOutput} before writing.
+	 */
+	public EventJsonWriter() {
+	}
+
+	/**
+	 * Constructs a new JSON writer that writes to the specified output stream.
+	 *
+	 * @param out output stream to write encoded JSON to.
+	 */
+	public EventJsonWriter(OutputStream out) {
+		this.setOutput(out);
+	}
+
+	/**
+	 * Replaces output stream. Data buffered for the previous stream is discarded, so the
+	 * writer should be {@link #flush flushed} before.
+	 *
+	 * @param out output stream to write encoded JSON to.
+	 */
+	public void setOutput(OutputStream out) {
+		if (out == null) {
+			throw new IllegalArgumentException("Output stream cannot be null.");
+		}
+
+		this.out = out;
+		this.position = 0;
+	}
+
+	/**
+	 * Encodes JSON property name to the form that is accepted by {@link #writeName writeName}.
+	 * Meant to be used for static constants.
+	 *
+	 * @param name ASCII property name.
+	 * @return encoded property name including quotes and colon.
+	 */
+	public static byte[] encodeName(String name) {
+		byte[] result = new byte[name.length() + 3];
+		result[0] = '"';
+		for (int i = 0; i < name.length(); i++) {
+			result[i + 1] = (byte)name.charAt(i);
+		}
+		result[result.length - 2] = '"';
+		result[result.length - 1] = ':';
+
+		return result;
+	}
+
+	/**
+	 * Writes property name encoded with {@link #encodeName encodeName}, preceded by a comma if
+	 * requested.
+	 *
+	 * @param name encoded property name.
+	 * @param comma true if property is not the first one in the object.
+	 */
+	public void writeName(byte[] name, boolean comma) throws IOException {
+		this.ensureCapacity(name.length + 1);
+
+		if (comma) {
+			this.buffer[this.position++] = ',';
+		}
+
+		System.arraycopy(name, 0, this.buffer, this.position, name.length);
+		this.position += name.length;
+	}
+
+	/**
+	 * Writes a single structural character, e.g. bracket or comma.
+	 *
+	 * @param c ASCII character to write.
+	 */
+	public void writeChar(char c) throws IOException {
+		this.ensureCapacity(1);
+		this.buffer[this.position++] = (byte)c;
+	}
+
+	/**
+	 * Writes integer JSON value.
+	 *
+	 * @param value number to write.
+	 */
+	public void writeLong(long value) throws IOException {
+		this.ensureCapacity(MAX_LONG_SIZE);
+
+		if (value == Long.MIN_VALUE) {
+			/* Cannot be negated, happens rarely enough to allocate. */
+			byte[] digits = Long.toString(value).getBytes("US-ASCII");
+			System.arraycopy(digits, 0, this.buffer, this.position, digits.length);
+			this.position += digits.length;
+			return;
+		}
+
+		if (value < 0) {
+			this.buffer[this.position++] = '-';
+			value = -value;
+		}
+
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+
+		int end = this.position + digits;
+		for (int i = end - 1; i >= this.position; i--) {
+			this.buffer[i] = (byte)('0' + (value % 10));
+			value /= 10;
+		}
+
+		this.position = end;
+	}
+
+	/**
+	 * Writes quoted and escaped JSON string value encoded in UTF-8.
+	 *
+	 * @param value string to write.
+	 */
+	public void writeString(String value) throws IOException {
+		this.ensureCapacity(1);
+		this.buffer[this.position++] = '"';
+
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			this.ensureCapacity(MAX_CHAR_SIZE);
+			char c = value.charAt(i);
+
+			if (c == '"' || c == '\\') {
+				this.buffer[this.position++] = '\\';
+				this.buffer[this.position++] = (byte)c;
+
+			} else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+				this.writeEscaped(c);
+
+			} else if (c < 0x80) {
+				this.buffer[this.position++] = (byte)c;
+
+			} else if (c < 0x800) {
+				this.buffer[this.position++] = (byte)(0xc0 | (c >> 6));
+				this.buffer[this.position++] = (byte)(0x80 | (c & 0x3f));
+
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+				&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(i + 1));
+				this.buffer[this.position++] = (byte)(0xf0 | (codePoint >> 18));
+				this.buffer[this.position++] = (byte)(0x80 | ((codePoint >> 12) & 0x3f));
+				this.buffer[this.position++] = (byte)(0x80 | ((codePoint >> 6) & 0x3f));
+				this.buffer[this.position++] = (byte)(0x80 | (codePoint & 0x3f));
+				i++;
+
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				/* Lone surrogate cannot be encoded to UTF-8. */
+				this.writeEscaped(c);
+
+			} else {
+				this.buffer[this.position++] = (byte)(0xe0 | (c >> 12));
+				this.buffer[this.position++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+				this.buffer[this.position++] = (byte)(0x80 | (c & 0x3f));
+			}
+		}
+
+		this.ensureCapacity(1);
+		this.buffer[this.position++] = '"';
+	}
+
+	/**
+	 * Writes event tag property, the first property of an event object. If the tag is defined
+	 * in the current tag dictionary, its id is written instead of the tag name.
+	 *
+	 * @param tag event tag name.
+	 */
+	public void writeTag(String tag) throws IOException {
+		Integer id = this.tagDictionary ? this.tagIds.get(tag) : null;
+		if (id != null) {
+			this.writeName(JSON_TAG_ID, false);
+			this.writeLong(id.intValue());
+		} else {
+			this.writeName(JSON_TAG, false);
+			this.writeString(tag);
+		}
+	}
+
+	/**
+	 * Writes buffered data to the output stream and flushes it.
+	 */
+	public void flush() throws IOException {
+		this.flushBuffer();
+		this.out.flush();
+	}
+
+	/**
+	 * Starts a new empty tag dictionary. Tags defined afterwards are written by their ids
+	 * until {@link #endTagDictionary endTagDictionary} is called.
+	 */
+	void beginTagDictionary() {
+		this.tagIds.clear();
+		this.tagDictionary = true;
+	}
+
+	/**
+	 * Adds tag to the current tag dictionary. Ids are assigned in the order tags are defined,
+	 * starting from 0.
+	 *
+	 * @param tag event tag name.
+	 * @return true if tag was not defined before and has to be written to the dictionary.
+	 */
+	boolean defineTag(String tag) {
+		if (this.tagIds.containsKey(tag)) {
+			return false;
+		}
+
+		this.tagIds.put(tag, Integer.valueOf(this.tagIds.size()));
+		return true;
+	}
+
+	/**
+	 * Stops using the current tag dictionary, tags are written by their names again.
+	 */
+	void endTagDictionary() {
+		this.tagDictionary = false;
+		this.tagIds.clear();
+	}
+
+
+	// Private methods.
+
+	/**
+	 * Writes character as \\uXXXX escape sequence or as a short escape if there is one.
+	 *
+	 * @param c character to escape.
+	 */
+	private void writeEscaped(char c) {
+		this.buffer[this.position++] = '\\';
+
+		switch (c) {
+		case '\b':
+			this.buffer[this.position++] = 'b';
+			break;
+		case '\t':
+			this.buffer[this.position++] = 't';
+			break;
+		case '\n':
+			this.buffer[this.position++] = 'n';
+			break;
+		case '\f':
+			this.buffer[this.position++] = 'f';
+			break;
+		case '\r':
+			this.buffer[this.position++] = 'r';
+			break;
+		default:
+			this.buffer[this.position++] = 'u';
+			this.buffer[this.position++] = HEX_DIGITS[(c >> 12) & 0xf];
+			this.buffer[this.position++] = HEX_DIGITS[(c >> 8) & 0xf];
+			this.buffer[this.position++] = HEX_DIGITS[(c >> 4) & 0xf];
+			this.buffer[this.position++] = HEX_DIGITS[c & 0xf];
+		}
+	}
+
+	/**
+	 * Makes sure buffer has room for the specified number of bytes by writing buffered data
+	 * out if necessary.
+	 *
+	 * @param bytes number of bytes about to be written.
+	 */
+	private void ensureCapacity(int bytes) throws IOException {
+		if (this.position + bytes > this.buffer.length) {
+			this.flushBuffer();
+		}
+	}
+
+	/**
+	 * Writes buffered data to the output stream.
+	 */
+	private void flushBuffer() throws IOException {
+		if (this.out == null) {
+			throw new IllegalStateException("Output stream is not set.");
+		}
+
+		if (this.position > 0) {
+			this.out.write(this.buffer, 0, this.position);
+			this.position = 0;
+		}
+	}
+}
@@ -1,8 +1,9 @@
 package com.qmonix.sdk;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import org.json.JSONObject;
-import org.json.JSONArray;
 import org.json.JSONException;
 
 import com.qmonix.sdk.utils.Utils;
@@ -12,11 +13,28 @@ import com.qmonix.sdk.utils.Utils;
  * Holds all information that is necessary to send a valid event message to the Server.
  * <p>
  * {@code EventMessage} collects event objects with a method {@code addEvent} and is able to
- * encode JSON formated legal event message with {@code toJson}.
+ * encode JSON formated legal event message with {@code toJson}. {@code writeJson} streams the
+ * same message directly to an output stream which avoids holding encoded message copies in memory.
+ * <p>
+ * Optionally the message starts with a tag dictionary which lists every distinct tag of the
+ * message once, and events refer to tags by their position in the dictionary. Messages whose
+ * events share a few long tag names are much shorter this way:
+ * <pre>
+ * {"tags":["shop/checkout/open","shop/cart/add"],"events":[{"tagId":0,"whenArised":1400000000},
+ *	{"tagId":1,"whenArised":1400000001,"volume":2}],"whenSent":1400000005}
+ * </pre>
  */
 public class EventMessage {
 
+	private static final byte[] JSON_TAGS = EventJsonWriter.encodeName("tags");
+	private static final byte[] JSON_EVENTS = EventJsonWriter.encodeName("events");
+	private static final byte[] JSON_WHEN_SENT = EventJsonWriter.encodeName("whenSent");
+
 	private ArrayList<Event> eventList = new ArrayList<Event>();
+	private long estimatedJsonSize = 0;
+
+	/* Journal regions holding events of this message as {start, end} offset pairs. */
+	private ArrayList<long[]> journalRanges;
 
 
 	/**
@@ -31,6 +49,200 @@ public class EventMessage {
 		}
 
 		this.eventList.add(event);
+		this.estimatedJsonSize += event.estimateJsonSize();
+	}
+
+	/**
+	 * Appends all events of the specified message to the end of this message's event list.
+	 * The specified message is left unchanged.
+	 *
+	 * @param message event message whose events to add.
+	 */
+	public void addEvents(EventMessage message) {
+		if (message == null) {
+			throw new IllegalArgumentException("Event message cannot be null.");
+		}
+
+		this.eventList.addAll(message.eventList);
+		this.estimatedJsonSize += message.estimatedJsonSize;
+
+		if (message.journalRanges != null) {
+			if (this.journalRanges == null) {
+				this.journalRanges = new ArrayList<long[]>();
+			}
+
+			this.journalRanges.addAll(message.journalRanges);
+		}
+	}
+
+	/**
+	 * @return number of events in the message.
+	 */
+	public int getEventCount() {
+		return this.eventList.size();
+	}
+
+	/**
+	 * Returns event at the specified position.
+	 *
+	 * @param index event index.
+	 * @return event object.
+	 */
+	Event getEvent(int index) {
+		return this.eventList.get(index);
+	}
+
+	/**
+	 * Removes the oldest events until the rest fits the specified limits. Journal regions
+	 * are kept, so removed events are acknowledged together with the rest.
+	 *
+	 * @param maxEvents number of events to keep, 0 if not limited.
+	 * @param maxBytes estimated size of events to keep, 0 if not limited.
+	 * @return number of removed events.
+	 */
+	int removeOldestEvents(int maxEvents, long maxBytes) {
+		int count = this.eventList.size();
+		int removed = 0;
+		long bytes = this.estimatedJsonSize;
+
+		while (removed < count && ((maxEvents > 0 && count - removed > maxEvents)
+			|| (maxBytes > 0 && bytes > maxBytes))) {
+			bytes -= this.eventList.get(removed).estimateJsonSize();
+			removed++;
+		}
+
+		this.eventList.subList(0, removed).clear();
+		this.estimatedJsonSize = bytes;
+
+		return removed;
+	}
+
+	/**
+	 * Removes every second event, starting from the oldest one. Journal regions are kept, so
+	 * removed events are acknowledged together with the rest.
+	 *
+	 * @return number of removed events.
+	 */
+	int removeEverySecondEvent() {
+		int count = this.eventList.size();
+		int kept = 0;
+		long bytes = 0;
+
+		for (int i = 1; i < count; i += 2) {
+			Event event = this.eventList.get(i);
+			this.eventList.set(kept++, event);
+			bytes += event.estimateJsonSize();
+		}
+
+		this.eventList.subList(kept, count).clear();
+		this.estimatedJsonSize = bytes;
+
+		return count - kept;
+	}
+
+	/**
+	 * Finds where a chunk of consecutive events starting at the specified position ends, so
+	 * the chunk fits the specified limits. Chunk holds at least one event, even if that event
+	 * alone exceeds the size limit.
+	 *
+	 * @param start index of the first event of the chunk.
+	 * @param maxEvents maximum number of events in a chunk, 0 if not limited.
+	 * @param maxBytes maximum estimated JSON size of a chunk, 0 if not limited.
+	 * @return index after the last event of the chunk.
+	 */
+	int getChunkEnd(int start, int maxEvents, long maxBytes) {
+		int count = this.eventList.size();
+		int end = start + 1;
+		long bytes = this.eventList.get(start).estimateJsonSize();
+
+		while (end < count && (maxEvents <= 0 || end - start < maxEvents)) {
+			bytes += this.eventList.get(end).estimateJsonSize();
+			if (maxBytes > 0 && bytes > maxBytes) {
+				break;
+			}
+
+			end++;
+		}
+
+		return end;
+	}
+
+	/**
+	 * Copies a range of events to a new message. Journal regions are not copied.
+	 *
+	 * @param start index of the first event to copy.
+	 * @param end index after the last event to copy.
+	 * @return message holding the copied events.
+	 */
+	EventMessage copyEvents(int start, int end) {
+		EventMessage message = new EventMessage();
+		message.eventList.addAll(this.eventList.subList(start, end));
+		for (int i = start; i < end; i++) {
+			message.estimatedJsonSize += this.eventList.get(i).estimateJsonSize();
+		}
+
+		return message;
+	}
+
+	/**
+	 * Removes a range of events. Journal regions are kept, so removed events are
+	 * acknowledged together with the rest.
+	 *
+	 * @param start index of the first event to remove.
+	 * @param end index after the last event to remove.
+	 */
+	void removeEvents(int start, int end) {
+		for (int i = start; i < end; i++) {
+			this.estimatedJsonSize -= this.eventList.get(i).estimateJsonSize();
+		}
+
+		this.eventList.subList(start, end).clear();
+	}
+
+	/**
+	 * Moves journal regions of this message to a new message without events, so the events
+	 * might be journaled elsewhere while their original records are still acknowledged.
+	 *
+	 * @return empty message holding journal regions of this message.
+	 */
+	EventMessage detachJournalRanges() {
+		EventMessage ranges = new EventMessage();
+		ranges.journalRanges = this.journalRanges;
+		this.journalRanges = null;
+
+		return ranges;
+	}
+
+	/**
+	 * Remembers journal region where events of this message are stored.
+	 *
+	 * @param start journal offset of the first event.
+	 * @param end journal offset after the last event.
+	 * @see EventJournal
+	 */
+	void addJournalRange(long start, long end) {
+		if (this.journalRanges == null) {
+			this.journalRanges = new ArrayList<long[]>();
+		}
+
+		this.journalRanges.add(new long[] {start, end});
+	}
+
+	/**
+	 * @return journal regions holding events of this message or null if events are not
+	 *	journaled.
+	 */
+	ArrayList<long[]> getJournalRanges() {
+		return this.journalRanges;
+	}
+
+	/**
+	 * Returns approximate number of bytes this message takes when encoded to JSON.
+	 *
+	 * @return estimated encoded message size in bytes.
+	 */
+	long estimateJsonSize() {
+		return this.estimatedJsonSize;
 	}
 
 	/**
@@ -41,17 +253,107 @@ public class EventMessage {
 	 * @throws JSONException if fails to encode event message to JSON formatted string.
 	 */
 	public String toJson() throws JSONException {
-		JSONObject json = new JSONObject();
-		JSONArray jsonEvents = new JSONArray();
-		for (Event e : this.eventList) {
-			jsonEvents.put(e.toJson());
+		return this.toJson(false);
+	}
+
+	/**
+	 * Encodes event message to JSON string, optionally with a tag dictionary.
+	 *
+	 * @param tagDictionary true if events should refer to tags by dictionary ids.
+	 * @return event message in JSON format.
+	 * @throws JSONException if fails to encode event message to JSON formatted string.
+	 * @see #toJson()
+	 */
+	public String toJson(boolean tagDictionary) throws JSONException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		try {
+			this.writeJson(new EventJsonWriter(out), tagDictionary);
+			return out.toString("UTF-8");
+
+		} catch (IOException e) {
+			throw new JSONException("Failed to encode event message: " + e.toString());
 		}
+	}
+
+	/**
+	 * Streams event message encoded in UTF-8 JSON to the specified output stream. Produces the
+	 * same message as {@link #toJson toJson}. Stream is flushed but not closed.
+	 *
+	 * @param out output stream to write message to.
+	 * @throws IOException if fails to write to the output stream.
+	 */
+	public void writeJson(OutputStream out) throws IOException {
+		this.writeJson(new EventJsonWriter(out), false);
+	}
+
+	/**
+	 * Streams event message to the specified JSON writer and flushes it. Reusing the same
+	 * writer for consecutive messages avoids allocating its buffer every time.
+	 *
+	 * @param writer JSON writer to write message to.
+	 * @throws IOException if fails to write to the underlying stream.
+	 * @see #writeJson(OutputStream)
+	 */
+	public void writeJson(EventJsonWriter writer) throws IOException {
+		this.writeJson(writer, false);
+	}
+
+	/**
+	 * Streams event message to the specified JSON writer, optionally with a tag dictionary,
+	 * and flushes it.
+	 *
+	 * @param writer JSON writer to write message to.
+	 * @param tagDictionary true if events should refer to tags by dictionary ids.
+	 * @throws IOException if fails to write to the underlying stream.
+	 * @see #toJson(boolean)
+	 */
+	public void writeJson(EventJsonWriter writer, boolean tagDictionary) throws IOException {
+		int count = this.eventList.size();
+		writer.writeChar('{');
+
+		try {
+			if (tagDictionary) {
+				writer.beginTagDictionary();
+				writer.writeName(JSON_TAGS, false);
+				writer.writeChar('[');
+
+				boolean first = true;
+				for (int i = 0; i < count; i++) {
+					String tag = this.eventList.get(i).getTag();
+					if (writer.defineTag(tag)) {
+						if (!first) {
+							writer.writeChar(',');
+						}
+						writer.writeString(tag);
+						first = false;
+					}
+				}
+
+				writer.writeChar(']');
+			}
 
-		json.put("events", jsonEvents);
+			writer.writeName(JSON_EVENTS, tagDictionary);
+			writer.writeChar('[');
 
-		long time_now = Utils.getUnixTime();
-		json.put("whenSent", time_now);
+			for (int i = 0; i < count; i++) {
+				if (i > 0) {
+					writer.writeChar(',');
+				}
+
+				this.eventList.get(i).writeJson(writer);
+			}
+
+		} finally {
+			if (tagDictionary) {
+				writer.endTagDictionary();
+			}
+		}
 
-		return json.toString();
+		writer.writeChar(']');
+		writer.writeName(JSON_WHEN_SENT, true);
+		writer.writeLong(Utils.getUnixTime());
+		writer.writeChar('}');
+		writer.flush();
 	}
 }
@@ -0,0 +1,42 @@
+package com.qmonix.sdk;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Encodes event messages to the wire format sent to the Server. {@link HttpEventDispatcher}
+ * sends encoded messages with the Content-Type the serializer reports, see
+ * {@link HttpEventDispatcher#setSerializer setSerializer}.
+ * <p>
+ * Serializers might keep reusable buffers, so they are not required to be thread safe.
+ * Dispatcher uses its serializer from one thread at a time.
+ *
+ * @see JsonEventMessageSerializer
+ * @see BinaryEventMessageSerializer
+ */
+public interface EventMessageSerializer {
+
+	/**
+	 * @return MIME type of encoded messages, sent as Content-Type header.
+	 */
+	public String getContentType();
+
+	/**
+	 * Returns approximate number of bytes the specified message takes when encoded. Used to
+	 * decide whether message is worth compressing.
+	 *
+	 * @param message event message.
+	 * @return estimated encoded message size in bytes.
+	 */
+	public long estimateSize(EventMessage message);
+
+	/**
+	 * Encodes event message to the specified output stream. Stream is flushed but not closed.
+	 *
+	 * @param message event message to encode.
+	 * @param out output stream to write encoded message to.
+	 * @throws IOException if fails to write to the output stream.
+	 */
+	public void write(EventMessage message, OutputStream out) throws IOException;
+}
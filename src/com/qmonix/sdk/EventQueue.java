@@ -0,0 +1,480 @@
+package com.qmonix.sdk;
+
+import java.lang.ref.WeakReference;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Lock-free multi-producer, single-consumer event queue. Any number of threads might
+ * {@link #offer offer} events concurrently without ever blocking each other. Collected events are
+ * moved to an {@link EventMessage} with {@link #drainTo drainTo} which must be invoked by one
+ * thread at a time, e.g. while holding dispatcher lock.
+ * <p>
+ * Queue is striped per producer thread: every thread that offers events gets its own buffer, so
+ * producers do not even share a cache line with each other. Events submitted by the same thread
+ * are drained in the same order they were offered. Order of events submitted by different threads
+ * is not preserved, events carry their own fire time anyway.
+ * <p>
+ * Producers never wait for the consumer: an event which is being inserted while the queue is
+ * drained is simply left for the next {@link #drainTo drainTo} call.
+ * <p>
+ * Single and volume events might also be offered as a tag, fire time and volume without an
+ * {@link Event} object, see {@link #offer(String, long) offer}; sampled events also carry the
+ * number of events they stand for. Such events are written to preallocated primitive arrays with
+ * an interned tag id and event objects are created only when they are drained to a message; when
+ * drained to an aggregator, no objects are created at all.
+ * Buffer chunks that were drained are handed back to their producer, so a thread that keeps
+ * firing events reuses the same memory instead of allocating.
+ *
+ * @see EventDispatcher
+ */
+public class EventQueue {
+
+	/* Number of events in a single stripe buffer chunk. */
+	private static final int CHUNK_SIZE = 256;
+
+	/* Kinds of buffer entries. */
+	private static final byte KIND_OBJECT = 0;
+	private static final byte KIND_SINGLE = 1;
+	private static final byte KIND_VOLUME = 2;
+
+	private ThreadLocal<Stripe> localStripe = new ThreadLocal<Stripe>();
+	private AtomicReference<Stripe> stripes = new AtomicReference<Stripe>();
+	private TagTable tagTable = TagTable.getDefault();
+	/* Events offered to stripes that were unlinked. Written by consumer only. */
+	private volatile long retiredOffered = 0;
+
+
+	/**
+	 * Inserts event to the end of the calling thread buffer. Thread safe and lock-free.
+	 *
+	 * @param event event to insert.
+	 */
+	public void offer(Event event) {
+		if (event == null) {
+			throw new IllegalArgumentException("Event cannot be null.");
+		}
+
+		Stripe stripe = this.localStripe.get();
+		if (stripe == null) {
+			stripe = this.registerStripe();
+		}
+
+		stripe.offer(event);
+	}
+
+	/**
+	 * Inserts single event to the end of the calling thread buffer without creating event
+	 * object. Thread safe and lock-free. Unless tag limit is reached, does not allocate.
+	 *
+	 * @param tag event tag name.
+	 * @param timeArised Unix time stamp when event was fired.
+	 */
+	public void offer(String tag, long timeArised) {
+		this.offer(tag, timeArised, 1, 0, KIND_SINGLE);
+	}
+
+	/**
+	 * Inserts volume event to the end of the calling thread buffer without creating event
+	 * object. Thread safe and lock-free. Unless tag limit is reached, does not allocate.
+	 *
+	 * @param tag event tag name.
+	 * @param timeArised Unix time stamp when event was fired.
+	 * @param volume event volume. Positive number.
+	 */
+	public void offer(String tag, long timeArised, long volume) {
+		if (volume < 0) {
+			throw new IllegalArgumentException("Event volume must be positive integer.");
+		}
+
+		this.offer(tag, timeArised, 1, volume, KIND_VOLUME);
+	}
+
+	/**
+	 * Inserts event that stands for a number of events, e.g. a sampled event, without creating
+	 * event object. Event is drained as {@link AggregatedEvent} unless count is 1. Thread safe
+	 * and lock-free. Unless tag limit is reached, does not allocate.
+	 *
+	 * @param tag event tag name.
+	 * @param timeArised Unix time stamp when event was fired.
+	 * @param count number of events the event stands for. Positive number.
+	 * @param volume total volume of the events, 0 for single events.
+	 * @param volumeKind true for volume events.
+	 */
+	void offer(String tag, long timeArised, long count, long volume, boolean volumeKind) {
+		if (count <= 0) {
+			throw new IllegalArgumentException("Event count must be positive integer.");
+		}
+		if (volume < 0) {
+			throw new IllegalArgumentException("Event volume must be positive integer.");
+		}
+
+		this.offer(tag, timeArised, count, volume, volumeKind ? KIND_VOLUME : KIND_SINGLE);
+	}
+
+	/**
+	 * Moves all queued events to the end of the specified event message. Must not be invoked
+	 * concurrently by more than one thread.
+	 *
+	 * @param message event message to add events to. If null, events are discarded.
+	 * @return number of events moved.
+	 */
+	public int drainTo(EventMessage message) {
+		return this.drainTo(message, null);
+	}
+
+	/**
+	 * Moves all queued events to the aggregator, if any, or to the event message. Histogram
+	 * events cannot be merged, so they are always moved to the event message. Must not be
+	 * invoked concurrently by more than one thread.
+	 *
+	 * @param message event message to add events to or null.
+	 * @param aggregator aggregator to add events to or null. If both are null, events are
+	 *	discarded.
+	 * @return number of events moved.
+	 */
+	int drainTo(EventMessage message, EventAggregator aggregator) {
+		int drained = 0;
+		Stripe previous = null;
+		Stripe stripe = this.stripes.get();
+
+		while (stripe != null) {
+			/* Owner must be checked before draining so no event would be left behind. */
+			boolean abandoned = stripe.isAbandoned();
+			drained += stripe.drainTo(message, aggregator, this.tagTable);
+
+			Stripe next = stripe.next;
+			if (abandoned && previous != null) {
+				/* Producers only replace the first stripe, so others are safe to unlink. */
+				previous.next = next;
+				this.retiredOffered += stripe.offered.get();
+
+			} else {
+				previous = stripe;
+			}
+
+			stripe = next;
+		}
+
+		return drained;
+	}
+
+	/**
+	 * Removes all queued events. Must not be invoked concurrently with
+	 * {@link #drainTo drainTo}.
+	 */
+	public void clear() {
+		this.drainTo(null, null);
+	}
+
+	/**
+	 * Returns approximate number of queued events. Value might be slightly off while events
+	 * are being inserted or drained concurrently.
+	 *
+	 * @return number of queued events.
+	 */
+	public int size() {
+		long size = 0;
+		for (Stripe stripe = this.stripes.get(); stripe != null; stripe = stripe.next) {
+			size += stripe.size();
+		}
+
+		return (int)Math.min(size, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns number of events offered since queue was created, including those already
+	 * drained. Value might be slightly off while events are being inserted concurrently.
+	 *
+	 * @return number of offered events.
+	 */
+	public long getOfferedCount() {
+		long offered = this.retiredOffered;
+		for (Stripe stripe = this.stripes.get(); stripe != null; stripe = stripe.next) {
+			offered += stripe.offered.get();
+		}
+
+		return offered;
+	}
+
+	/**
+	 * Returns approximate size in bytes queued events would take when encoded to JSON.
+	 *
+	 * @return estimated encoded size of queued events.
+	 * @see #size
+	 */
+	public long estimatedJsonSize() {
+		long bytes = 0;
+		for (Stripe stripe = this.stripes.get(); stripe != null; stripe = stripe.next) {
+			bytes += stripe.estimatedJsonSize();
+		}
+
+		return bytes;
+	}
+
+
+	// Private methods.
+
+	/**
+	 * Inserts event given by its fields to the calling thread buffer. Falls back to event
+	 * object if tag table is full.
+	 *
+	 * @param tag event tag name.
+	 * @param timeArised Unix time stamp when event was fired.
+	 * @param count number of events the event stands for.
+	 * @param volume event volume, 0 for single events.
+	 * @param kind entry kind.
+	 */
+	private void offer(String tag, long timeArised, long count, long volume, byte kind) {
+		if (tag == null) {
+			throw new IllegalArgumentException("Tag name cannot be null.");
+		}
+
+		int tagId = this.tagTable.intern(tag);
+		if (tagId < 0) {
+			this.offer(EventQueue.createEvent(tag, timeArised, count, volume, kind));
+			return;
+		}
+
+		Stripe stripe = this.localStripe.get();
+		if (stripe == null) {
+			stripe = this.registerStripe();
+		}
+
+		stripe.offer(tagId, timeArised, count, volume, kind,
+			EventQueue.estimateJsonSize(tag, count, kind));
+	}
+
+	/**
+	 * Creates event object for an event offered by its fields.
+	 *
+	 * @param tag event tag name.
+	 * @param timeArised Unix time stamp when event was fired.
+	 * @param count number of events the event stands for.
+	 * @param volume event volume, 0 for single events.
+	 * @param kind entry kind.
+	 * @return event object.
+	 */
+	private static Event createEvent(String tag, long timeArised, long count, long volume,
+		byte kind) {
+		if (count > 1) {
+			return new AggregatedEvent(tag, timeArised, count, volume, kind == KIND_VOLUME);
+		} else if (kind == KIND_VOLUME) {
+			return new VolumeEvent(tag, timeArised, volume);
+		}
+
+		return new Event(tag, timeArised);
+	}
+
+	/**
+	 * Returns estimated encoded size of an event offered without event object.
+	 *
+	 * @param tag event tag name.
+	 * @param count number of events the event stands for.
+	 * @param kind entry kind.
+	 * @return estimated encoded size.
+	 */
+	private static int estimateJsonSize(String tag, long count, byte kind) {
+		int size = Event.JSON_SIZE_ESTIMATE + tag.length();
+		if (kind == KIND_VOLUME) {
+			size += VolumeEvent.JSON_VOLUME_SIZE_ESTIMATE;
+		}
+		if (count > 1) {
+			size += AggregatedEvent.JSON_COUNT_SIZE_ESTIMATE;
+		}
+
+		return size;
+	}
+
+	/**
+	 * Creates a buffer for the calling thread and links it to the stripe list.
+	 *
+	 * @return calling thread buffer.
+	 */
+	private Stripe registerStripe() {
+		Stripe stripe = new Stripe(Thread.currentThread());
+
+		Stripe first;
+		do {
+			first = this.stripes.get();
+			stripe.next = first;
+		} while (!this.stripes.compareAndSet(first, stripe));
+
+		this.localStripe.set(stripe);
+		return stripe;
+	}
+
+
+	/**
+	 * Single producer, single consumer buffer owned by one producer thread. Events are stored
+	 * in a linked list of fixed size chunks. Producer publishes events by increasing
+	 * {@code offered} counter which is never decreased, consumer remembers how many events it
+	 * has taken. Estimated encoded size is accounted the same way. Chunks the consumer has
+	 * moved past are passed back to the producer through {@code spare}, so in a steady state
+	 * the buffer works as a ring of two chunks.
+	 */
+	private static class Stripe {
+
+		private WeakReference<Thread> owner;
+		private volatile Stripe next;
+
+		private AtomicLong offered = new AtomicLong();
+		private volatile long taken;
+
+		private AtomicLong offeredBytes = new AtomicLong();
+		private volatile long takenBytes;
+
+		/* Drained chunk ready to be reused by the producer. */
+		private AtomicReference<Chunk> spare = new AtomicReference<Chunk>();
+
+		/* Producer side. */
+		private Chunk tail;
+		private int writeIndex;
+
+		/* Consumer side. */
+		private Chunk head;
+		private int readIndex;
+
+
+		public Stripe(Thread owner) {
+			this.owner = new WeakReference<Thread>(owner);
+			this.tail = new Chunk();
+			this.head = this.tail;
+		}
+
+		public void offer(Event event) {
+			this.nextSlot();
+			this.tail.kinds[this.writeIndex] = KIND_OBJECT;
+			this.tail.events[this.writeIndex] = event;
+			this.publish(event.estimateJsonSize());
+		}
+
+		public void offer(int tagId, long timeArised, long count, long volume, byte kind,
+			int bytes) {
+			this.nextSlot();
+			Chunk chunk = this.tail;
+			int index = this.writeIndex;
+			chunk.kinds[index] = kind;
+			chunk.tagIds[index] = tagId;
+			chunk.times[index] = timeArised;
+			chunk.counts[index] = count;
+			chunk.volumes[index] = volume;
+			this.publish(bytes);
+		}
+
+		public int drainTo(EventMessage message, EventAggregator aggregator,
+			TagTable tagTable) {
+			long available = this.offered.get() - this.taken;
+			long bytes = 0;
+
+			for (long i = 0; i < available; i++) {
+				if (this.readIndex == CHUNK_SIZE) {
+					Chunk drained = this.head;
+					this.head = drained.next;
+					this.readIndex = 0;
+
+					drained.next = null;
+					this.spare.set(drained);
+				}
+
+				Chunk chunk = this.head;
+				int index = this.readIndex++;
+				byte kind = chunk.kinds[index];
+
+				if (kind == KIND_OBJECT) {
+					Event event = chunk.events[index];
+					chunk.events[index] = null;
+					bytes += event.estimateJsonSize();
+
+					if (aggregator != null && !(event instanceof HistogramEvent)) {
+						aggregator.add(event);
+					} else if (message != null) {
+						message.addEvent(event);
+					}
+					continue;
+				}
+
+				String tag = tagTable.getTag(chunk.tagIds[index]);
+				long count = chunk.counts[index];
+				bytes += EventQueue.estimateJsonSize(tag, count, kind);
+
+				if (aggregator != null) {
+					aggregator.add(tag, chunk.times[index], count, chunk.volumes[index],
+						kind == KIND_VOLUME);
+				} else if (message != null) {
+					message.addEvent(EventQueue.createEvent(tag, chunk.times[index], count,
+						chunk.volumes[index], kind));
+				}
+			}
+
+			this.takenBytes = this.takenBytes + bytes;
+			this.taken = this.taken + available;
+			return (int)available;
+		}
+
+		public long size() {
+			return this.offered.get() - this.taken;
+		}
+
+		public long estimatedJsonSize() {
+			return this.offeredBytes.get() - this.takenBytes;
+		}
+
+		/**
+		 * @return true if owner thread has terminated and will not offer events anymore.
+		 */
+		public boolean isAbandoned() {
+			Thread thread = this.owner.get();
+			return thread == null || !thread.isAlive();
+		}
+
+		/**
+		 * Moves write position to the next free slot, linking a new chunk if necessary.
+		 */
+		private void nextSlot() {
+			if (this.writeIndex < CHUNK_SIZE) {
+				return;
+			}
+
+			Chunk chunk = this.spare.getAndSet(null);
+			if (chunk == null) {
+				chunk = new Chunk();
+			}
+
+			this.tail.next = chunk;
+			this.tail = chunk;
+			this.writeIndex = 0;
+		}
+
+		/**
+		 * Publishes the entry at write position to the consumer.
+		 *
+		 * @param bytes estimated encoded size of the entry.
+		 */
+		private void publish(int bytes) {
+			this.writeIndex++;
+
+			this.offeredBytes.lazySet(this.offeredBytes.get() + bytes);
+			/* Ordered store publishes event and chunk link to the consumer. */
+			this.offered.lazySet(this.offered.get() + 1);
+		}
+	}
+
+
+	/**
+	 * Fixed size part of stripe buffer. Every entry is either an event object or event fields
+	 * stored in primitive arrays, as told by its kind.
+	 */
+	private static class Chunk {
+
+		private byte[] kinds = new byte[CHUNK_SIZE];
+		private Event[] events = new Event[CHUNK_SIZE];
+		private int[] tagIds = new int[CHUNK_SIZE];
+		private long[] times = new long[CHUNK_SIZE];
+		private long[] counts = new long[CHUNK_SIZE];
+		private long[] volumes = new long[CHUNK_SIZE];
+		private Chunk next;
+	}
+}
@@ -0,0 +1,300 @@
+package com.qmonix.sdk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Applies {@link SamplingPolicy} to submitted events. Every limited tag has its own state: a
+ * sequence number that drives sampling, a token bucket and number of discarded events the next
+ * kept event is weighted by. Token bucket is kept as a single theoretical arrival time, as in
+ * generic cell rate algorithm, so taking a token is a single compare-and-set.
+ * <p>
+ * {@link #admit admit} is lock-free and, once the tag was seen, does not allocate. Only limited
+ * tags get a state and number of tag states is limited; tags beyond the limit share the state of
+ * their rule. Shared state cannot tell which tag discarded events belonged to, so instead of
+ * carrying them over it weights kept events by the inverse of the sample rate, rounded at random
+ * so the expected weight is exact. Events discarded by the shared token bucket are not
+ * compensated.
+ */
+class EventSampler {
+
+	/* Maximum number of tags with their own state. */
+	static final int MAX_TAG_STATES = TagTable.DEFAULT_MAX_TAGS;
+
+	/* Sampling compares 53 random bits with the sample rate. */
+	private static final int RANDOM_BITS = 53;
+	private static final long SAMPLE_ALL = 1L << RANDOM_BITS;
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private HashMap<String, SamplingPolicy.Rule> tagRules;
+	/* Prefix rules, longest prefix first. */
+	private String[] prefixes;
+	private SamplingPolicy.Rule[] prefixRules;
+
+	private ConcurrentHashMap<String, TagState> states =
+		new ConcurrentHashMap<String, TagState>();
+	private IdentityHashMap<SamplingPolicy.Rule, TagState> sharedStates =
+		new IdentityHashMap<SamplingPolicy.Rule, TagState>();
+	private Random random = new Random();
+
+
+	/**
+	 * Constructs a new sampler that applies a copy of the specified policy.
+	 *
+	 * @param policy sampling policy.
+	 */
+	public EventSampler(SamplingPolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException("Sampling policy cannot be null.");
+		}
+
+		this.tagRules = new HashMap<String, SamplingPolicy.Rule>(policy.getTagRules());
+
+		ArrayList<Map.Entry<String, SamplingPolicy.Rule>> prefixRules =
+			new ArrayList<Map.Entry<String, SamplingPolicy.Rule>>(
+			policy.getPrefixRules().entrySet());
+		Collections.sort(prefixRules, new Comparator<Map.Entry<String, SamplingPolicy.Rule>>() {
+			@Override
+			public int compare(Map.Entry<String, SamplingPolicy.Rule> a,
+				Map.Entry<String, SamplingPolicy.Rule> b) {
+				return b.getKey().length() - a.getKey().length();
+			}
+		});
+
+		this.prefixes = new String[prefixRules.size()];
+		this.prefixRules = new SamplingPolicy.Rule[prefixRules.size()];
+		for (int i = 0; i < this.prefixes.length; i++) {
+			this.prefixes[i] = prefixRules.get(i).getKey();
+			this.prefixRules[i] = prefixRules.get(i).getValue();
+			this.getSharedState(this.prefixRules[i]);
+		}
+		for (SamplingPolicy.Rule rule : this.tagRules.values()) {
+			this.getSharedState(rule);
+		}
+	}
+
+	/**
+	 * Decides whether event of the specified tag is kept. Thread safe and lock-free.
+	 *
+	 * @param tag event tag name.
+	 * @return weight of kept event, i.e. number of events it stands for, or 0 if event is
+	 *	discarded.
+	 */
+	public long admit(String tag) {
+		TagState state = this.states.get(tag);
+		if (state == null) {
+			state = this.createState(tag);
+		}
+
+		return state == null ? 1 : state.admit();
+	}
+
+	/**
+	 * Returns number of discarded events. Value might be slightly off while events are being
+	 * submitted concurrently.
+	 *
+	 * @return number of events discarded since sampler was created.
+	 */
+	public long getSuppressedCount() {
+		long suppressed = 0;
+		for (TagState state : this.states.values()) {
+			suppressed += state.suppressed.get();
+		}
+		for (TagState state : this.sharedStates.values()) {
+			suppressed += state.suppressed.get();
+		}
+
+		return suppressed;
+	}
+
+	/**
+	 * Creates event that stands for the specified event and a number of discarded ones.
+	 *
+	 * @param event kept event.
+	 * @param weight number of events kept event stands for.
+	 * @return aggregated event with count and volume multiplied by the weight.
+	 */
+	public static Event weigh(Event event, long weight) {
+		return new AggregatedEvent(event.getTag(), event.getTimeArised(),
+			EventAggregator.getCount(event) * weight, EventAggregator.getVolume(event) * weight,
+			EventAggregator.hasVolume(event));
+	}
+
+
+	// Private methods.
+
+	/**
+	 * Creates state of a limited tag seen for the first time. Tags without a rule get no state,
+	 * so they do not take up the state table. Once state limit is reached, tags share the state
+	 * of their rule and are not added to the state table.
+	 *
+	 * @param tag event tag name.
+	 * @return tag state or null if tag is not limited.
+	 */
+	private TagState createState(String tag) {
+		SamplingPolicy.Rule rule = this.findRule(tag);
+		if (rule == null) {
+			return null;
+		}
+		if (this.states.size() >= MAX_TAG_STATES) {
+			return this.sharedStates.get(rule);
+		}
+
+		long seed;
+		synchronized (this.random) {
+			seed = this.random.nextLong();
+		}
+
+		TagState state = new TagState(rule, seed, false);
+		TagState previous = this.states.putIfAbsent(TagTable.getDefault().canonicalize(tag),
+			state);
+
+		return previous == null ? state : previous;
+	}
+
+	/**
+	 * Finds rule of the specified tag without allocating.
+	 *
+	 * @param tag event tag name.
+	 * @return rule of the tag, rule of the longest matching prefix or null.
+	 */
+	private SamplingPolicy.Rule findRule(String tag) {
+		SamplingPolicy.Rule rule = this.tagRules.get(tag);
+		if (rule != null) {
+			return rule;
+		}
+
+		for (int i = 0; i < this.prefixes.length; i++) {
+			if (tag.startsWith(this.prefixes[i])) {
+				return this.prefixRules[i];
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns state shared by tags of the specified rule, creating it if necessary. Called from
+	 * the constructor only, so the table is read-only afterwards.
+	 */
+	private TagState getSharedState(SamplingPolicy.Rule rule) {
+		TagState state = this.sharedStates.get(rule);
+		if (state == null) {
+			state = new TagState(rule, this.random.nextLong(), true);
+			this.sharedStates.put(rule, state);
+		}
+
+		return state;
+	}
+
+
+	/**
+	 * Sampling and rate limit state of a single tag.
+	 */
+	private static class TagState {
+
+		/* Kept events are those whose random bits are below the threshold. */
+		private long sampleThreshold;
+		private long seed;
+		/* Shared state weights kept events by the inverse sample rate: the whole part, plus one
+		 * for kept events whose random bits are below the rounding threshold. */
+		private boolean shared;
+		private long inverseRate;
+		private long roundingThreshold;
+		/* Token bucket emission interval and burst tolerance, 0 interval if not limited. */
+		private long intervalNanos;
+		private long toleranceNanos;
+
+		private AtomicLong sequence = new AtomicLong();
+		private AtomicLong arrival;
+		/* Events discarded since the last kept event. */
+		private AtomicLong carried = new AtomicLong();
+		private AtomicLong suppressed = new AtomicLong();
+
+
+		public TagState(SamplingPolicy.Rule rule, long seed, boolean shared) {
+			this.seed = seed;
+			this.shared = shared;
+			this.sampleThreshold = (long)(rule.getSampleRate() * SAMPLE_ALL);
+			if (shared && rule.getSampleRate() > 0) {
+				double inverse = 1 / rule.getSampleRate();
+				this.inverseRate = (long)inverse;
+				this.roundingThreshold = (long)((inverse - this.inverseRate)
+					* this.sampleThreshold);
+			}
+
+			if (rule.getEventsPerSecond() > 0) {
+				this.intervalNanos = Math.max(1,
+					(long)(NANOS_PER_SECOND / rule.getEventsPerSecond()));
+				this.toleranceNanos = this.intervalNanos * (rule.getBurst() - 1);
+				this.arrival = new AtomicLong(System.nanoTime());
+			}
+		}
+
+		/**
+		 * @return weight of kept event or 0 if event is discarded.
+		 */
+		public long admit() {
+			long bits = 0;
+			if (this.sampleThreshold < SAMPLE_ALL) {
+				bits = TagState.mix(this.seed
+					+ this.sequence.incrementAndGet() * GOLDEN_GAMMA) >>> (64 - RANDOM_BITS);
+				if (bits >= this.sampleThreshold) {
+					return this.suppress();
+				}
+			}
+
+			if (this.intervalNanos > 0) {
+				long now = System.nanoTime();
+				long arrival;
+				long start;
+				do {
+					arrival = this.arrival.get();
+					start = arrival - now > 0 ? arrival : now;
+					if (start - now > this.toleranceNanos) {
+						return this.suppress();
+					}
+				} while (!this.arrival.compareAndSet(arrival, start + this.intervalNanos));
+			}
+
+			if (this.shared) {
+				/* Kept bits are uniform below the sample threshold. */
+				return bits < this.roundingThreshold ? this.inverseRate + 1 : this.inverseRate;
+			}
+
+			long carried = this.carried.get();
+			if (carried > 0) {
+				carried = this.carried.getAndSet(0);
+			}
+
+			return 1 + carried;
+		}
+
+		private long suppress() {
+			if (!this.shared) {
+				this.carried.incrementAndGet();
+			}
+			this.suppressed.incrementAndGet();
+			return 0;
+		}
+
+		/**
+		 * Mixes bits of a sequence value into uniformly distributed random bits, as
+		 * SplitMix64 does.
+		 */
+		private static long mix(long z) {
+			z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+			z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+			return z ^ (z >>> 31);
+		}
+	}
+}
@@ -0,0 +1,470 @@
+package com.qmonix.sdk;
+
+import java.util.ArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Dispatcher that delivers the same events to several sink dispatchers, e.g. to both
+ * {@link LogEventDispatcher} and {@link HttpEventDispatcher} or to two collectors, while events
+ * are buffered only once:
+ * <pre>
+ * FanOutEventDispatcher dispatcher = new FanOutEventDispatcher();
+ * dispatcher.addSink(new HttpEventDispatcher(uri));
+ * dispatcher.addSink(new LogEventDispatcher());
+ * Tracker.setDispatcher(dispatcher);
+ * </pre>
+ * Events are submitted to the lock-free queue of this dispatcher. When a sink takes events for
+ * dispatch, queued events are moved to a shared log and the sink reads events past its own
+ * cursor. Log keeps event references only until every sink has read them, so sinks share event
+ * objects instead of copying them.
+ * <p>
+ * Every sink is an ordinary {@link AbstractEventDispatcher} and keeps its own flush policy,
+ * retry policy, journal and overflow policy; its flush thresholds count events available in the
+ * shared log as well. Failures are isolated: a sink that fails requeues events to itself and
+ * retries on its own schedule without affecting other sinks. A sink never slows down submits,
+ * which do not take any lock. A sink that falls more than the maximum lag behind the others
+ * skips the oldest events it has not read, which are counted as dropped by that sink, so a stuck
+ * sink would not make the log grow without bound.
+ * <p>
+ * Sampling, aggregation, timing histograms and overflow policy set on this dispatcher apply once
+ * to all events before they reach the sinks. Events are taken by this dispatcher as soon as they
+ * are handed to the log, so a journal set on this dispatcher has no effect; set journals on the
+ * sinks instead.
+ * <p>
+ * {@link #dispatch dispatch} dispatches every sink on its own scheduler thread, so a slow sink
+ * does not delay the others, and returns without waiting.
+ * <p>
+ * All methods are thread safe. {@link #submit submit} never blocks.
+ */
+public class FanOutEventDispatcher extends AbstractEventDispatcher {
+
+	/* Default maximum number of events a sink might lag behind. */
+	public static final int DEFAULT_MAX_LAG = 10000;
+
+	private int maxLag;
+
+	/* Events some sink has not read yet. Guarded by dispatcher lock. */
+	private ArrayList<Event> log = new ArrayList<Event>();
+	/* Position of the first log event among all events appended to the log. */
+	private long logStart = 0;
+	/* Number and estimated size of all events appended to the log. Written with lock held. */
+	private volatile long appendedEvents = 0;
+	private volatile long appendedBytes = 0;
+
+	/* Replaced on change, so submits iterate it without lock. */
+	private volatile Sink[] sinks = new Sink[0];
+
+
+	/**
+	 * Constructs a new fan-out dispatcher without sinks and with the default maximum lag.
+	 */
+	public FanOutEventDispatcher() {
+		this(DEFAULT_MAX_LAG);
+	}
+
+	/**
+	 * Constructs a new fan-out dispatcher without sinks.
+	 *
+	 * @param maxLag maximum number of events a sink might lag behind the newest event taken
+	 *	by any sink. Positive number.
+	 */
+	public FanOutEventDispatcher(int maxLag) {
+		if (maxLag <= 0) {
+			throw new IllegalArgumentException("Maximum lag must be positive.");
+		}
+
+		this.maxLag = maxLag;
+	}
+
+	/**
+	 * Adds sink that receives events submitted from now on. Dispatcher might be a sink of a
+	 * single fan-out dispatcher only.
+	 *
+	 * @param sink dispatcher to deliver events to.
+	 */
+	synchronized public void addSink(AbstractEventDispatcher sink) {
+		if (sink == null) {
+			throw new IllegalArgumentException("Sink cannot be null.");
+		}
+		if (sink == this || sink.getSource() != null) {
+			throw new IllegalArgumentException("Dispatcher is already a sink.");
+		}
+
+		Sink[] sinks = new Sink[this.sinks.length + 1];
+		System.arraycopy(this.sinks, 0, sinks, 0, this.sinks.length);
+		sinks[this.sinks.length] = new Sink(sink, this.appendedEvents, this.appendedBytes);
+
+		this.sinks = sinks;
+		sink.setSource(this);
+	}
+
+	/**
+	 * Removes sink. Events the sink has not read yet are not delivered to it. Events it has
+	 * already taken stay collected by the sink.
+	 *
+	 * @param sink dispatcher to remove.
+	 * @return true if dispatcher was a sink of this dispatcher.
+	 */
+	synchronized public boolean removeSink(AbstractEventDispatcher sink) {
+		int index = FanOutEventDispatcher.indexOf(this.sinks, sink);
+		if (index < 0) {
+			return false;
+		}
+
+		Sink[] sinks = new Sink[this.sinks.length - 1];
+		System.arraycopy(this.sinks, 0, sinks, 0, index);
+		System.arraycopy(this.sinks, index + 1, sinks, index, sinks.length - index);
+
+		this.sinks = sinks;
+		sink.setSource(null);
+		this.trimLog();
+		return true;
+	}
+
+	/**
+	 * Adds event to the collected event list. Thread safe and lock-free.
+	 *
+	 * @param event event object.
+	 */
+	@Override
+	public void submit(Event event) {
+		super.submit(event);
+		this.notifySinks();
+	}
+
+	/**
+	 * Adds single event to the collected event list without creating event object. Thread
+	 * safe, lock-free and in a steady state allocation-free.
+	 *
+	 * @param tag event tag name.
+	 * @param timeArised Unix time stamp when event was fired.
+	 */
+	@Override
+	public void submit(String tag, long timeArised) {
+		super.submit(tag, timeArised);
+		this.notifySinks();
+	}
+
+	/**
+	 * Adds volume event to the collected event list without creating event object. Thread
+	 * safe, lock-free and in a steady state allocation-free.
+	 *
+	 * @param tag event tag name.
+	 * @param timeArised Unix time stamp when event was fired.
+	 * @param volume event volume. Positive number.
+	 */
+	@Override
+	public void submit(String tag, long timeArised, long volume) {
+		super.submit(tag, timeArised, volume);
+		this.notifySinks();
+	}
+
+	/**
+	 * Dispatches every sink on its scheduler thread. Returns without waiting for sinks.
+	 * Handler is notified once, on the thread of the last sink to finish: of success if every
+	 * sink succeeded, otherwise of all sink errors.
+	 *
+	 * @param handler successful or failed dispatch handler.
+	 */
+	@Override
+	public void dispatch(EventDispatchHandler handler) {
+		Sink[] sinks = this.sinks;
+		if (sinks.length == 0) {
+			handler.onError("Fan-out dispatcher has no sinks.");
+			return;
+		}
+
+		FanOutHandler fanOutHandler = new FanOutHandler(handler, sinks.length);
+		for (Sink sink : sinks) {
+			try {
+				sink.dispatcher.getScheduler().execute(
+					new SinkDispatch(sink.dispatcher, fanOutHandler));
+
+			} catch (RejectedExecutionException e) {
+				fanOutHandler.onError("Sink is shut down.");
+			}
+		}
+	}
+
+	/**
+	 * Stops automatic dispatching of this dispatcher and shuts every sink down.
+	 */
+	@Override
+	public void shutdown() {
+		super.shutdown();
+
+		for (Sink sink : this.sinks) {
+			sink.dispatcher.shutdown();
+		}
+	}
+
+	/**
+	 * Returns number of events the specified sink has not read yet. Lock-free, value might be
+	 * slightly off while events are being read concurrently.
+	 *
+	 * @param sink sink dispatcher.
+	 * @return number of events available to the sink.
+	 */
+	long getBacklog(AbstractEventDispatcher sink) {
+		Sink state = this.findSink(sink);
+		if (state == null) {
+			return 0;
+		}
+
+		return this.appendedEvents - state.cursor + this.getQueuedEventCount();
+	}
+
+	/**
+	 * Returns estimated encoded size of events the specified sink has not read yet.
+	 *
+	 * @param sink sink dispatcher.
+	 * @return estimated size of events available to the sink in bytes.
+	 */
+	long getBacklogBytes(AbstractEventDispatcher sink) {
+		Sink state = this.findSink(sink);
+		if (state == null) {
+			return 0;
+		}
+
+		return this.appendedBytes - state.readBytes + this.getQueuedEventBytes();
+	}
+
+	/**
+	 * Moves queued events to the log and passes events the specified sink has not read yet to
+	 * the aggregator, if any, or to the event message. Histogram events cannot be merged, so
+	 * they are always passed to the event message. Called by the sink with its lock held.
+	 *
+	 * @param sink sink dispatcher.
+	 * @param message event message to add events to.
+	 * @param aggregator aggregator to add events to or null.
+	 */
+	synchronized void readEvents(AbstractEventDispatcher sink, EventMessage message,
+		EventAggregator aggregator) {
+		Sink state = this.findSink(sink);
+		if (state == null) {
+			return;
+		}
+
+		this.appendQueuedEvents();
+
+		int end = this.log.size();
+		long bytes = 0;
+		for (int i = (int)(state.cursor - this.logStart); i < end; i++) {
+			Event event = this.log.get(i);
+			bytes += event.estimateJsonSize();
+
+			if (aggregator != null && !(event instanceof HistogramEvent)) {
+				aggregator.add(event);
+			} else {
+				message.addEvent(event);
+			}
+		}
+
+		state.readBytes = state.readBytes + bytes;
+		state.cursor = this.appendedEvents;
+		this.trimLog();
+	}
+
+
+	// Private methods.
+
+	/**
+	 * Checks automatic dispatch thresholds of every sink. Lock-free.
+	 */
+	private void notifySinks() {
+		for (Sink sink : this.sinks) {
+			sink.dispatcher.onSourceSubmit();
+		}
+	}
+
+	/**
+	 * @return state of the specified sink or null if it is not a sink of this dispatcher.
+	 */
+	private Sink findSink(AbstractEventDispatcher sink) {
+		Sink[] sinks = this.sinks;
+		int index = FanOutEventDispatcher.indexOf(sinks, sink);
+
+		return index < 0 ? null : sinks[index];
+	}
+
+	/**
+	 * @return index of the specified dispatcher in sink array or -1 if it is not there.
+	 */
+	private static int indexOf(Sink[] sinks, AbstractEventDispatcher sink) {
+		for (int i = 0; i < sinks.length; i++) {
+			if (sinks[i].dispatcher == sink) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Takes collected events and appends them to the log. Events are acknowledged at once, so
+	 * this dispatcher counts events handed to sinks as dispatched. Must be called with
+	 * dispatcher lock held.
+	 */
+	private void appendQueuedEvents() {
+		EventMessage message = this.takePendingEvents();
+		int count = message.getEventCount();
+		if (count == 0) {
+			return;
+		}
+
+		long bytes = 0;
+		this.log.ensureCapacity(this.log.size() + count);
+		for (int i = 0; i < count; i++) {
+			Event event = message.getEvent(i);
+			bytes += event.estimateJsonSize();
+			this.log.add(event);
+		}
+
+		this.appendedBytes = this.appendedBytes + bytes;
+		this.appendedEvents = this.appendedEvents + count;
+		this.acknowledgeEvents(message);
+
+		this.enforceMaxLag();
+	}
+
+	/**
+	 * Moves cursors of sinks that lag too far behind, counting skipped events as dropped by
+	 * the sink. Must be called with dispatcher lock held.
+	 */
+	private void enforceMaxLag() {
+		long oldest = this.appendedEvents - this.maxLag;
+
+		for (Sink sink : this.sinks) {
+			if (sink.cursor >= oldest) {
+				continue;
+			}
+
+			long bytes = 0;
+			for (long i = sink.cursor; i < oldest; i++) {
+				bytes += this.log.get((int)(i - this.logStart)).estimateJsonSize();
+			}
+
+			long skipped = oldest - sink.cursor;
+			sink.dispatcher.addDroppedEvents(skipped);
+			sink.readBytes = sink.readBytes + bytes;
+			sink.cursor = oldest;
+
+			QLog.warning("Sink lags behind, " + skipped + " events were dropped.");
+		}
+
+		this.trimLog();
+	}
+
+	/**
+	 * Releases events every sink has read. Log is compacted only once at least half of it
+	 * might be released, so compaction cost stays proportional to the number of appended
+	 * events. Must be called with dispatcher lock held.
+	 */
+	private void trimLog() {
+		long read = this.appendedEvents;
+		for (Sink sink : this.sinks) {
+			read = Math.min(read, sink.cursor);
+		}
+
+		int released = (int)(read - this.logStart);
+		if (released > 0 && released * 2 >= this.log.size()) {
+			this.log.subList(0, released).clear();
+			this.logStart = read;
+		}
+	}
+
+
+	/**
+	 * Sink dispatcher and its position in the log.
+	 */
+	private static class Sink {
+
+		private AbstractEventDispatcher dispatcher;
+
+		/* Written with fan-out dispatcher lock held. */
+		private volatile long cursor;
+		private volatile long readBytes;
+
+
+		public Sink(AbstractEventDispatcher dispatcher, long cursor, long readBytes) {
+			this.dispatcher = dispatcher;
+			this.cursor = cursor;
+			this.readBytes = readBytes;
+		}
+	}
+
+
+	/**
+	 * Dispatches a single sink on its scheduler thread.
+	 */
+	private static class SinkDispatch implements Runnable {
+
+		private AbstractEventDispatcher dispatcher;
+		private EventDispatchHandler handler;
+
+
+		public SinkDispatch(AbstractEventDispatcher dispatcher, EventDispatchHandler handler) {
+			this.dispatcher = dispatcher;
+			this.handler = handler;
+		}
+
+		@Override
+		public void run() {
+			try {
+				this.dispatcher.dispatch(this.handler);
+
+			} catch (RuntimeException e) {
+				this.handler.onError("Sink dispatch failed: " + e.toString());
+			}
+		}
+	}
+
+
+	/**
+	 * Collects results of sink dispatches and notifies the caller handler once all sinks are
+	 * done.
+	 */
+	private static class FanOutHandler implements EventDispatchHandler {
+
+		private EventDispatchHandler handler;
+		private AtomicInteger remaining;
+		private StringBuffer errors = new StringBuffer();
+
+
+		public FanOutHandler(EventDispatchHandler handler, int sinks) {
+			this.handler = handler;
+			this.remaining = new AtomicInteger(sinks);
+		}
+
+		@Override
+		public void onSuccess() {
+			this.finish();
+		}
+
+		@Override
+		public void onError(String errorMessage) {
+			synchronized (this.errors) {
+				if (this.errors.length() > 0) {
+					this.errors.append("; ");
+				}
+				this.errors.append(errorMessage);
+			}
+
+			this.finish();
+		}
+
+		private void finish() {
+			if (this.remaining.decrementAndGet() > 0) {
+				return;
+			}
+
+			if (this.errors.length() == 0) {
+				this.handler.onSuccess();
+			} else {
+				this.handler.onError(this.errors.toString());
+			}
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package com.qmonix.sdk;
 
+import java.util.concurrent.TimeUnit;
 
 /**
  * Extends timing event so that it would be easier to fire it to the dispatcher. Adds fire() method.
@@ -15,7 +16,18 @@ public class FireableTimingEvent extends TimingEvent {
 	 * @param dispatcher event dispatcher that accepts event after fire() is invoked.
 	 */
 	public FireableTimingEvent(String tag, EventDispatcher dispatcher) {
-		super(tag);
+		this(tag, TimeUnit.SECONDS, dispatcher);
+	}
+
+	/**
+	 * Constructs new fireable timing event which measures duration in the specified unit.
+	 *
+	 * @param tag event name.
+	 * @param unit unit of event duration, see {@link TimingEvent#TimingEvent(String, TimeUnit)}.
+	 * @param dispatcher event dispatcher that accepts event after fire() is invoked.
+	 */
+	public FireableTimingEvent(String tag, TimeUnit unit, EventDispatcher dispatcher) {
+		super(tag, unit);
 
 		if (dispatcher == null) {
 			throw new IllegalArgumentException("Event dispatcher cannot be null.");
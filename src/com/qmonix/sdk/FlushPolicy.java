@@ -0,0 +1,77 @@
+package com.qmonix.sdk;
+
+
+/**
+ * Describes when collected events are dispatched automatically. Dispatch is triggered when any of
+ * the following thresholds is reached:
+ * <ul>
+ * <li>number of collected events reaches {@link #getMaxEvents maxEvents};
+ * <li>the oldest collected event is {@link #getMaxAgeSeconds maxAgeSeconds} old;
+ * <li>estimated size of event message JSON reaches {@link #getMaxBytes maxBytes}.
+ * </ul>
+ * Zero value disables the corresponding threshold. Thresholds that trigger at about the same time
+ * are coalesced into a single dispatch, so it is advised to prefer larger batches: each dispatch
+ * costs an HTTP request and, on mobile devices, a radio wakeup.
+ *
+ * @see AbstractEventDispatcher#setFlushPolicy
+ */
+public class FlushPolicy {
+
+	private int maxEvents;
+	private long maxAgeSeconds;
+	private long maxBytes;
+
+
+	/**
+	 * Constructs a new flush policy.
+	 *
+	 * @param maxEvents number of collected events that triggers dispatch. 0 disables.
+	 * @param maxAgeSeconds age of the oldest collected event in seconds that triggers dispatch.
+	 *	0 disables.
+	 * @param maxBytes estimated size of event message in bytes that triggers dispatch. 0
+	 *	disables.
+	 */
+	public FlushPolicy(int maxEvents, long maxAgeSeconds, long maxBytes) {
+		if (maxEvents < 0 || maxAgeSeconds < 0 || maxBytes < 0) {
+			throw new IllegalArgumentException("Flush thresholds cannot be negative.");
+		}
+
+		this.maxEvents = maxEvents;
+		this.maxAgeSeconds = maxAgeSeconds;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return number of collected events that triggers dispatch, 0 if disabled.
+	 */
+	public int getMaxEvents() {
+		return this.maxEvents;
+	}
+
+	/**
+	 * @return age of the oldest collected event in seconds that triggers dispatch, 0 if
+	 *	disabled.
+	 */
+	public long getMaxAgeSeconds() {
+		return this.maxAgeSeconds;
+	}
+
+	/**
+	 * @return estimated size of event message in bytes that triggers dispatch, 0 if disabled.
+	 */
+	public long getMaxBytes() {
+		return this.maxBytes;
+	}
+
+	/**
+	 * Checks whether collected events exceed event count or size threshold.
+	 *
+	 * @param events number of collected events.
+	 * @param bytes estimated size of collected events.
+	 * @return true if dispatch should be triggered, otherwise false.
+	 */
+	public boolean isExceeded(int events, long bytes) {
+		return (this.maxEvents > 0 && events >= this.maxEvents)
+			|| (this.maxBytes > 0 && bytes >= this.maxBytes);
+	}
+}
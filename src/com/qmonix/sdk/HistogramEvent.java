@@ -0,0 +1,284 @@
+package com.qmonix.sdk;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONException;
+
+
+/**
+ * Event holding distribution of timing event durations with the same tag collected between two
+ * dispatches, see {@link TimingHistogram}. Depending on {@link Format} event is encoded either
+ * with non-empty histogram buckets, which allows the server to merge distributions, or with
+ * a few precomputed percentiles only. Both encodings include number of measurements, their sum,
+ * minimum, maximum and unit.
+ * <p>
+ * Buckets are encoded as a flat array of lower bound and count pairs:
+ * <pre>
+ * {"tag":"load","whenArised":1400000000,"unit":"ms","count":3,"sum":95,"min":20,"max":45,
+ *	"buckets":[20,1,30,1,45,1]}
+ * </pre>
+ * Minimum, maximum and percentiles are bucket bounds, so they are accurate to about 3%.
+ *
+ * @see AbstractEventDispatcher#setTimingHistograms
+ */
+public class HistogramEvent extends Event {
+
+	/**
+	 * Histogram event encoding.
+	 */
+	public enum Format {
+		/* Non-empty buckets as lower bound and count pairs. */
+		BUCKETS,
+		/* 50th, 90th, 95th and 99th percentiles. */
+		PERCENTILES
+	}
+
+	/* Approximate size of encoded properties shared by both formats. */
+	private static final int JSON_SUMMARY_SIZE_ESTIMATE = 90;
+	private static final int JSON_BUCKET_SIZE_ESTIMATE = 12;
+	private static final int JSON_PERCENTILES_SIZE_ESTIMATE = 60;
+
+	private static final double[] PERCENTILES = {50, 90, 95, 99};
+	private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p95", "p99"};
+	private static final byte[][] JSON_PERCENTILE_NAMES = {
+		EventJsonWriter.encodeName("p50"), EventJsonWriter.encodeName("p90"),
+		EventJsonWriter.encodeName("p95"), EventJsonWriter.encodeName("p99")};
+
+	private static final byte[] JSON_UNIT = EventJsonWriter.encodeName("unit");
+	private static final byte[] JSON_COUNT = EventJsonWriter.encodeName("count");
+	private static final byte[] JSON_SUM = EventJsonWriter.encodeName("sum");
+	private static final byte[] JSON_MIN = EventJsonWriter.encodeName("min");
+	private static final byte[] JSON_MAX = EventJsonWriter.encodeName("max");
+	private static final byte[] JSON_BUCKETS = EventJsonWriter.encodeName("buckets");
+
+	private TimeUnit unit;
+	private Format format;
+
+	/* Non-empty buckets in ascending order. */
+	private int[] bucketIndexes;
+	private long[] bucketCounts;
+
+	private long count;
+	private long sum;
+
+
+	/**
+	 * Constructs a new histogram event. Meant to be used by {@link TimingHistogram}.
+	 *
+	 * @param tag event tag name.
+	 * @param timeArised Unix time stamp of the event.
+	 * @param unit unit of durations.
+	 * @param format how the event is encoded.
+	 * @param bucketIndexes indexes of non-empty buckets in ascending order.
+	 * @param bucketCounts number of durations in each bucket.
+	 * @param sum sum of durations.
+	 */
+	HistogramEvent(String tag, long timeArised, TimeUnit unit, Format format,
+		int[] bucketIndexes, long[] bucketCounts, long sum) {
+		super(tag, timeArised);
+
+		if (unit == null || format == null) {
+			throw new IllegalArgumentException("Unit and format cannot be null.");
+		}
+		if (bucketIndexes.length == 0 || bucketIndexes.length != bucketCounts.length) {
+			throw new IllegalArgumentException("Invalid histogram buckets.");
+		}
+
+		this.unit = unit;
+		this.format = format;
+		this.bucketIndexes = bucketIndexes;
+		this.bucketCounts = bucketCounts;
+		this.sum = sum;
+
+		for (int i = 0; i < bucketCounts.length; i++) {
+			this.count += bucketCounts[i];
+		}
+	}
+
+	/**
+	 * @return unit of durations.
+	 */
+	public TimeUnit getUnit() {
+		return this.unit;
+	}
+
+	/**
+	 * @return encoding of the event.
+	 */
+	public Format getFormat() {
+		return this.format;
+	}
+
+	/**
+	 * @return number of measured durations.
+	 */
+	public long getCount() {
+		return this.count;
+	}
+
+	/**
+	 * @return sum of measured durations.
+	 */
+	public long getSum() {
+		return this.sum;
+	}
+
+	/**
+	 * @return approximate shortest duration.
+	 */
+	public long getMin() {
+		return TimingHistogram.getBucketLowerBound(this.bucketIndexes[0]);
+	}
+
+	/**
+	 * @return approximate longest duration.
+	 */
+	public long getMax() {
+		return TimingHistogram.getBucketUpperBound(
+			this.bucketIndexes[this.bucketIndexes.length - 1]);
+	}
+
+	/**
+	 * Returns duration which the specified percentage of measured durations do not exceed.
+	 *
+	 * @param percentile percentile from 0 to 100.
+	 * @return upper bound of the bucket holding the percentile.
+	 */
+	public long getPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("Invalid percentile: " + percentile);
+		}
+
+		long rank = (long)Math.ceil(percentile / 100 * this.count);
+		long seen = 0;
+		for (int i = 0; i < this.bucketIndexes.length; i++) {
+			seen += this.bucketCounts[i];
+			if (seen >= rank) {
+				return TimingHistogram.getBucketUpperBound(this.bucketIndexes[i]);
+			}
+		}
+
+		return this.getMax();
+	}
+
+	/**
+	 * Serializes event to JSON object in the event format.
+	 *
+	 * @return event encoded in JSON format.
+	 * @throws JSONException if fails to encode event message to JSON object.
+	 */
+	@Override
+	public JSONObject toJson() throws JSONException {
+		JSONObject json = super.toJson();
+		json.put("unit", HistogramEvent.getUnitName(this.unit));
+		json.put("count", this.count);
+		json.put("sum", this.sum);
+		json.put("min", this.getMin());
+		json.put("max", this.getMax());
+
+		if (this.format == Format.BUCKETS) {
+			JSONArray buckets = new JSONArray();
+			for (int i = 0; i < this.bucketIndexes.length; i++) {
+				buckets.put(TimingHistogram.getBucketLowerBound(this.bucketIndexes[i]));
+				buckets.put(this.bucketCounts[i]);
+			}
+			json.put("buckets", buckets);
+
+		} else {
+			for (int i = 0; i < PERCENTILES.length; i++) {
+				json.put(PERCENTILE_NAMES[i], this.getPercentile(PERCENTILES[i]));
+			}
+		}
+
+		return json;
+	}
+
+	/**
+	 * Writes histogram JSON properties in the event format.
+	 *
+	 * @param writer JSON writer to write properties to.
+	 * @throws IOException if fails to write to the underlying stream.
+	 */
+	@Override
+	protected void writeJsonProperties(EventJsonWriter writer) throws IOException {
+		super.writeJsonProperties(writer);
+		writer.writeName(JSON_UNIT, true);
+		writer.writeString(HistogramEvent.getUnitName(this.unit));
+		writer.writeName(JSON_COUNT, true);
+		writer.writeLong(this.count);
+		writer.writeName(JSON_SUM, true);
+		writer.writeLong(this.sum);
+		writer.writeName(JSON_MIN, true);
+		writer.writeLong(this.getMin());
+		writer.writeName(JSON_MAX, true);
+		writer.writeLong(this.getMax());
+
+		if (this.format == Format.BUCKETS) {
+			writer.writeName(JSON_BUCKETS, true);
+			writer.writeChar('[');
+			for (int i = 0; i < this.bucketIndexes.length; i++) {
+				if (i > 0) {
+					writer.writeChar(',');
+				}
+				writer.writeLong(TimingHistogram.getBucketLowerBound(this.bucketIndexes[i]));
+				writer.writeChar(',');
+				writer.writeLong(this.bucketCounts[i]);
+			}
+			writer.writeChar(']');
+
+		} else {
+			for (int i = 0; i < PERCENTILES.length; i++) {
+				writer.writeName(JSON_PERCENTILE_NAMES[i], true);
+				writer.writeLong(this.getPercentile(PERCENTILES[i]));
+			}
+		}
+	}
+
+	@Override
+	int estimateJsonSize() {
+		int size = super.estimateJsonSize() + JSON_SUMMARY_SIZE_ESTIMATE;
+		if (this.format == Format.BUCKETS) {
+			size += this.bucketIndexes.length * JSON_BUCKET_SIZE_ESTIMATE;
+		} else {
+			size += JSON_PERCENTILES_SIZE_ESTIMATE;
+		}
+
+		return size;
+	}
+
+	/**
+	 * @return non-empty bucket indexes, shared with the event.
+	 */
+	int[] getBucketIndexes() {
+		return this.bucketIndexes;
+	}
+
+	/**
+	 * @return non-empty bucket counts, shared with the event.
+	 */
+	long[] getBucketCounts() {
+		return this.bucketCounts;
+	}
+
+	/**
+	 * Returns short name of time unit used in JSON encoding.
+	 *
+	 * @param unit time unit.
+	 * @return unit name, e.g. "ms".
+	 */
+	private static String getUnitName(TimeUnit unit) {
+		if (unit == TimeUnit.SECONDS) {
+			return "s";
+		} else if (unit == TimeUnit.MILLISECONDS) {
+			return "ms";
+		} else if (unit == TimeUnit.MICROSECONDS) {
+			return "us";
+		} else {
+			return unit.toString().toLowerCase(Locale.US);
+		}
+	}
+}
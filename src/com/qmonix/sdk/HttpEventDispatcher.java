@@ -2,12 +2,28 @@ package com.qmonix.sdk;
 
 import java.lang.String;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
 
-import org.json.JSONException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
+import com.qmonix.sdk.helpers.CompressingOutputStream;
+import com.qmonix.sdk.helpers.ContentEncoding;
 import com.qmonix.sdk.helpers.HttpHelper;
+import com.qmonix.sdk.helpers.HttpTransport;
 import com.qmonix.sdk.helpers.exceptions.HttpHelperException;
+import com.qmonix.sdk.utils.DaemonThreadFactory;
+import com.qmonix.sdk.utils.ReusableByteArrayOutputStream;
 
 
 /**
@@ -18,9 +34,33 @@ import com.qmonix.sdk.helpers.exceptions.HttpHelperException;
  * be used as an address, e.g. example.com.
  * <p>
  * {@link #submit submit} inserts new event to the collected event list. It accepts {@link Event}
- * object which describes specific event. {@link #dispatch dispatch} sends those collected
- * events to the Server and clears event list. {@link #clear clear} clears collected event
- * list without dispatching them to the Server.
+ * object which describes specific event. Submitting events never blocks, not even while events are
+ * being dispatched. {@link #dispatch dispatch} sends those collected events to the Server and
+ * clears event list. {@link #clear clear} clears collected event list without dispatching them to
+ * the Server.
+ * <p>
+ * Dispatcher works either in synchronous or in asynchronous mode. In synchronous mode (default)
+ * {@link #dispatch dispatch} blocks until events are sent. In asynchronous mode collected events
+ * are handed to a dedicated sender thread and {@link #dispatch dispatch} returns immediately.
+ * Dispatch handler is then invoked on the sender thread when HTTP POST completes.
+ * <p>
+ * Events are encoded to JSON straight into a reusable buffer which is then sent without copying, so
+ * large batches do not produce intermediate JSON objects and strings. Optionally encoded events
+ * are compressed while being written, see {@link #setCompression setCompression}. Events might be
+ * encoded to another format, e.g. compact binary one, see {@link #setSerializer setSerializer}.
+ * <p>
+ * Large batches, e.g. those collected while device was offline, might be split into chunks sent
+ * as separate HTTP requests, several of them at once, see {@link #setChunking setChunking}.
+ * Delivered chunks are not sent again if other chunks of the same batch fail.
+ * <p>
+ * Failed dispatches might be retried automatically with exponential backoff, see
+ * {@link #setRetryPolicy setRetryPolicy}. Events of a failed dispatch are returned to the
+ * dispatcher and are sent by the retry together with events submitted in the meantime, so
+ * submitting events is never held back by retries.
+ * <p>
+ * On mobile devices dispatches might be deferred until sending is cheap in terms of battery: the
+ * device is on Wi-Fi, is charging or the radio is already active, see
+ * {@link #setDeferral setDeferral}. Deferred dispatches are coalesced into a single one.
  * <p>
  * Before sending events out {@code DefaultEventDispatcher} encodes current time to the message that
  * is going to bet sent to the server. Using this time stamp server is able to ajust collected
@@ -32,73 +72,1102 @@ import com.qmonix.sdk.helpers.exceptions.HttpHelperException;
  * @see EventDispatcher
  * @see Event
  */
-public class HttpEventDispatcher implements EventDispatcher {
+public class HttpEventDispatcher extends AbstractEventDispatcher {
+
+	private static final int MESSAGE_BUFFER_SIZE = 16 * 1024;
+	private static final int MAX_RETAINED_MESSAGE_BUFFER_SIZE = 256 * 1024;
+
+	private HttpTransport transport;
+	private ExecutorService senderExecutor;
+
+	/* Encoded message buffer and message serializer. Guarded by buffer lock. */
+	private ReusableByteArrayOutputStream messageBuffer = new ReusableByteArrayOutputStream(
+		MESSAGE_BUFFER_SIZE, MAX_RETAINED_MESSAGE_BUFFER_SIZE);
+	private EventMessageSerializer serializer = new JsonEventMessageSerializer();
+
+	/* Compression settings. Guarded by buffer lock. */
+	private ContentEncoding contentEncoding = ContentEncoding.IDENTITY;
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private long compressionThreshold = 0;
+	private Deflater deflater;
+
+	/* Chunking settings and encoded chunk buffers. Guarded by buffer lock. */
+	private int chunkMaxEvents = 0;
+	private long chunkMaxBytes = 0;
+	private int chunkMaxInFlight = 1;
+	private ExecutorService chunkExecutor;
+	private ArrayList<ReusableByteArrayOutputStream> chunkBuffers =
+		new ArrayList<ReusableByteArrayOutputStream>();
+
+	private volatile RetryPolicy retryPolicy;
+	/* Guarded by dispatcher lock. */
+	private boolean retryScheduled = false;
+	private boolean shutDown = false;
+	/* Number of messages being sent on calling threads in synchronous mode. */
+	private int activeSends = 0;
 
-	private EventMessage eventMessage;
-	private HttpHelper httpHelper;
+	/* Deferral settings and handlers of deferred dispatches. Guarded by dispatcher lock. */
+	private DeferralPolicy deferralPolicy;
+	private DeviceConditions deviceConditions;
+	private ArrayList<EventDispatchHandler> deferredHandlers =
+		new ArrayList<EventDispatchHandler>();
+	private long deferredSince;
+	/* Incremented whenever deferral ends, so checks of earlier deferrals are ignored. */
+	private long deferralGeneration = 0;
+	/* Scheduler deferral checks run on while dispatch is deferred, otherwise null. */
+	private volatile ScheduledExecutorService deferralScheduler;
+	private DeviceConditions.Listener deferralListener = new DeferralListener();
 
 
 	/**
 	 * Creates new dispatcher object which sends collected events to the Server.
-	 * Uri to which events are sent must be specified in the parameters.
+	 * Uri to which events are sent must be specified in the parameters. Dispatcher works in
+	 * synchronous mode.
 	 *
 	 * @param eventUri server uri to which events must be posted. E.g.
 	 *	http://qmonix.com:8337/event/. qmonix.com should be replaced with your server
 	 *	hostname.
 	 */
 	public HttpEventDispatcher(String eventUri) throws URISyntaxException {
-		this.eventMessage = new EventMessage();
-		this.httpHelper = new HttpHelper(eventUri);
+		this(eventUri, false);
 	}
 
 	/**
-	 * Adds event to the collected event list. Does not send events to the server. To send
-	 * collected events use {@code dispatch}.
+	 * Creates new dispatcher object which sends collected events to the Server either
+	 * synchronously or asynchronously.
 	 *
-	 * @param event event object.
+	 * @param eventUri server uri to which events must be posted.
+	 * @param asynchronous if true, events are sent on a dedicated sender thread and
+	 *	{@link #dispatch dispatch} does not wait for HTTP POST to complete.
+	 * @see #HttpEventDispatcher(String)
+	 */
+	public HttpEventDispatcher(String eventUri, boolean asynchronous)
+		throws URISyntaxException {
+		this(Platform.get().createHttpTransport(eventUri), asynchronous);
+	}
+
+	/**
+	 * Creates new dispatcher object which sends collected events with the specified HTTP
+	 * transport, e.g. a custom one in tests.
+	 *
+	 * @param transport HTTP transport which posts events to the server.
+	 * @param asynchronous if true, events are sent on a dedicated sender thread and
+	 *	{@link #dispatch dispatch} does not wait for HTTP POST to complete.
+	 * @see Platform#createHttpTransport
+	 */
+	public HttpEventDispatcher(HttpTransport transport, boolean asynchronous) {
+		if (transport == null) {
+			throw new IllegalArgumentException("HTTP transport cannot be null.");
+		}
+
+		this.transport = transport;
+
+		if (asynchronous) {
+			this.senderExecutor = Executors.newSingleThreadExecutor(
+				new DaemonThreadFactory("QmonixSender"));
+		}
+	}
+
+	/**
+	 * Sends all events to the Server, clears dispatcher event list. On failure
+	 * {@link EventDispatchHandler#onError onError} is called. In such case events are not
+	 * cleared, but one can do it manually with {@link #clear clear}.
+	 *
+	 * In synchronous mode events are sent over HTTP syncrhonously, meaning this method will
+	 * block until it finishes sendind or an error happens. In asynchronous mode collected
+	 * events are passed to the sender thread and this method returns immediately. Handler is
+	 * invoked on the sender thread then.
+	 *
+	 * If retry policy is set, failed dispatch is retried on the dispatcher scheduler thread and
+	 * handler is invoked once the final attempt completes. While a retry is scheduled, events
+	 * are not sent: dispatch fails immediately and events are left for the retry.
+	 *
+	 * If deferral policy is set and device conditions do not allow sending now, this method
+	 * returns immediately and handler is invoked on the dispatcher scheduler thread once
+	 * deferred events are sent.
 	 */
 	@Override
-	synchronized public void submit(Event event) {
-		this.eventMessage.addEvent(event);
+	public void dispatch(EventDispatchHandler handler) {
+		this.deferDispatch(handler);
+	}
+
+	/**
+	 * Sets retry policy for failed dispatches. Passing null disables retries, which is the
+	 * default. Retries already scheduled are not affected.
+	 *
+	 * @param policy retry policy or null.
+	 */
+	public void setRetryPolicy(RetryPolicy policy) {
+		this.retryPolicy = policy;
+	}
+
+	/**
+	 * Defers dispatches until device conditions make sending cheap, e.g. until the device is on
+	 * Wi-Fi or the radio is active anyway, so that events do not wake the radio up on their
+	 * own. Deferred dispatches are coalesced: events collected meanwhile are sent by a single
+	 * dispatch on the scheduler thread and handlers of all deferred dispatches are notified
+	 * about its result. Conditions are checked whenever they change and periodically. Retries
+	 * are not deferred. Passing null disables deferral, which is the default; already deferred
+	 * dispatches are then sent right away.
+	 *
+	 * @param policy deferral policy or null.
+	 * @param conditions device conditions, e.g. {@link AndroidDeviceConditions}. Ignored if
+	 *	policy is null.
+	 */
+	public void setDeferral(DeferralPolicy policy, DeviceConditions conditions) {
+		if (policy != null && conditions == null) {
+			throw new IllegalArgumentException("Device conditions cannot be null.");
+		}
+
+		synchronized (this) {
+			if (this.deviceConditions != null) {
+				this.deviceConditions.removeListener(this.deferralListener);
+			}
+
+			this.deferralPolicy = policy;
+			this.deviceConditions = policy == null ? null : conditions;
+			if (policy != null) {
+				conditions.addListener(this.deferralListener);
+			}
+		}
+
+		this.requestDeferralCheck();
+	}
+
+	/**
+	 * Sets event message compression. Messages are compressed while they are being encoded, so
+	 * uncompressed message is never held in memory. Messages whose estimated size is smaller
+	 * than the specified threshold are sent uncompressed, since compressing them costs more
+	 * than it saves. By default messages are not compressed.
+	 *
+	 * @param encoding compression format. {@link ContentEncoding#IDENTITY IDENTITY} disables
+	 *	compression.
+	 * @param level compression level from 0 to 9 or {@link Deflater#DEFAULT_COMPRESSION}.
+	 * @param threshold minimum estimated uncompressed message size in bytes to compress.
+	 */
+	public void setCompression(ContentEncoding encoding, int level, long threshold) {
+		if (encoding == null) {
+			throw new IllegalArgumentException("Content encoding cannot be null.");
+		}
+		if ((level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+			&& level != Deflater.DEFAULT_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		if (threshold < 0) {
+			throw new IllegalArgumentException("Compression threshold cannot be negative.");
+		}
+
+		synchronized (this.messageBuffer) {
+			if (this.deflater != null) {
+				this.deflater.end();
+				this.deflater = null;
+			}
+
+			this.contentEncoding = encoding;
+			this.compressionLevel = level;
+			this.compressionThreshold = threshold;
+		}
+	}
+
+	/**
+	 * Enables tag dictionary in sent event messages: every distinct tag is sent once per
+	 * message and events refer to it by a small integer id, see {@link EventMessage}. Saves
+	 * a lot of bandwidth when events have long tag names. Server must support the dictionary,
+	 * so it is disabled by default. Shortcut for setting {@link JsonEventMessageSerializer}.
+	 *
+	 * @param enabled true to send messages with tag dictionary.
+	 */
+	public void setTagDictionary(boolean enabled) {
+		this.setSerializer(new JsonEventMessageSerializer(enabled));
 	}
 
 	/**
-	 * Sends all events to the Server, clears dispatcher event list. On failure throws
-	 * an exception. In such case events are not cleared, but one can do it manually with
-	 * {@link #clear clear}.
+	 * Sets format event messages are encoded to. Messages are sent with the Content-Type of
+	 * the serializer. If server rejects the type with status 415, dispatcher falls back to
+	 * plain JSON for the rest of its lifetime and resends the message. JSON is used by default.
 	 *
-	 * Events are sent over HTTP syncrhonously, meaning this method will block until it finishes
-	 * sendind or an error happens.
+	 * @param serializer event message serializer.
+	 * @see BinaryEventMessageSerializer
+	 */
+	public void setSerializer(EventMessageSerializer serializer) {
+		if (serializer == null) {
+			throw new IllegalArgumentException("Serializer cannot be null.");
+		}
+
+		synchronized (this.messageBuffer) {
+			this.serializer = serializer;
+		}
+	}
+
+	/**
+	 * Splits event messages exceeding the specified limits into chunks which are sent as
+	 * separate HTTP requests over pooled keep-alive connections. Up to {@code maxInFlight}
+	 * chunks are sent at once; the next chunk is encoded while previous ones are in flight.
+	 * Every chunk is acknowledged separately: if some chunks fail, only events of failed and
+	 * unsent chunks are returned to the dispatcher and retried. Journaled events of such a
+	 * batch are acknowledged in the journal once all of its chunks are delivered. By default
+	 * messages are not split.
+	 *
+	 * @param maxEvents maximum number of events in a chunk, 0 if not limited.
+	 * @param maxBytes maximum estimated uncompressed JSON size of a chunk in bytes, 0 if not
+	 *	limited. Both limits set to 0 disable chunking.
+	 * @param maxInFlight maximum number of chunks sent at once, from 1 to
+	 *	{@link HttpHelper#MAX_CONNECTIONS}.
+	 */
+	public void setChunking(int maxEvents, long maxBytes, int maxInFlight) {
+		if (maxEvents < 0 || maxBytes < 0) {
+			throw new IllegalArgumentException("Chunk limits cannot be negative.");
+		}
+		if (maxInFlight < 1 || maxInFlight > HttpHelper.MAX_CONNECTIONS) {
+			throw new IllegalArgumentException("Invalid number of chunks in flight: "
+				+ maxInFlight);
+		}
+
+		synchronized (this.messageBuffer) {
+			if (this.chunkExecutor != null) {
+				this.chunkExecutor.shutdown();
+				this.chunkExecutor = null;
+			}
+
+			this.chunkMaxEvents = maxEvents;
+			this.chunkMaxBytes = maxBytes;
+			this.chunkMaxInFlight = maxInFlight;
+			this.chunkBuffers.clear();
+			if (maxInFlight > 1 && (maxEvents > 0 || maxBytes > 0)) {
+				this.chunkExecutor = Executors.newFixedThreadPool(maxInFlight,
+					new DaemonThreadFactory("QmonixChunkSender"));
+			}
+		}
+	}
+
+	/**
+	 * Sets executor HTTP requests of synchronous dispatches made from the main UI thread are
+	 * sent on. By default they are sent on a dedicated low priority thread. Has effect with
+	 * {@link HttpHelper} transport only, other transports send on the calling thread.
+	 *
+	 * @param executor executor or null to use the dedicated thread.
+	 * @see HttpHelper#setExecutor
+	 */
+	public void setHttpExecutor(Executor executor) {
+		if (this.transport instanceof HttpHelper) {
+			((HttpHelper)this.transport).setExecutor(executor);
+		}
+	}
+
+	/**
+	 * Sets HTTP timeouts for subsequent dispatches.
+	 *
+	 * @param connectTimeout connection establishment timeout in milliseconds, 0 means infinite.
+	 * @param readTimeout socket read timeout in milliseconds, 0 means infinite.
+	 * @see HttpTransport#setTimeouts
+	 */
+	public void setTimeouts(int connectTimeout, int readTimeout) {
+		this.transport.setTimeouts(connectTimeout, readTimeout);
+	}
+
+	/**
+	 * Stops automatic dispatching and closes pooled HTTP connections. Event messages already
+	 * being sent, either on the sender thread or on calling threads, are sent before
+	 * connections are closed. Deferred dispatches fail and their events are left collected.
+	 * Dispatcher cannot send events after it is shut down.
 	 */
 	@Override
-	synchronized public void dispatch(EventDispatchHandler handler) {
+	public void shutdown() {
+		ArrayList<EventDispatchHandler> deferred;
+		boolean closeTransport = false;
+		synchronized (this) {
+			super.shutdown();
+			this.shutDown = true;
+			deferred = this.cancelDeferral();
+
+			if (this.senderExecutor == null) {
+				/* Otherwise the last message being sent closes it. */
+				closeTransport = this.activeSends == 0;
+
+			} else if (!this.senderExecutor.isShutdown()) {
+				this.senderExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						HttpEventDispatcher.this.transport.shutdown();
+					}
+				});
+				this.senderExecutor.shutdown();
+			}
+		}
+
+		/* Buffer lock is held while a message is sent, so it is not taken with dispatcher lock. */
+		synchronized (this.messageBuffer) {
+			if (this.chunkExecutor != null) {
+				this.chunkExecutor.shutdown();
+			}
+		}
+
+		if (closeTransport) {
+			this.transport.shutdown();
+		}
+
+		for (EventDispatchHandler handler : deferred) {
+			handler.onError("Dispatcher was shut down before deferred dispatch.");
+		}
+	}
+
+	/**
+	 * Clears collected event list. In no case collected events are sent to the server. So
+	 * {@link #submit submit} is not invoked.
+	 */
+	synchronized public void clear() {
+		this.clearEvents();
+	}
+
+
+	// Private methods.
+
+	/**
+	 * Dispatches collected events unless deferral policy holds them back. While dispatch is
+	 * deferred, collected events are moved to pending ones, so that automatic dispatch
+	 * thresholds are not exceeded over and over, and the handler is added to those notified
+	 * once events are sent. Conditions are not checked again for a handler that is already
+	 * waiting, since checking them might be expensive.
+	 *
+	 * @param handler successful or failed dispatch handler.
+	 */
+	private void deferDispatch(EventDispatchHandler handler) {
 		if (handler == null) {
 			throw new IllegalArgumentException("Dispatch handler cannot be null.");
 		}
 
+		DeferralPolicy policy;
+		DeviceConditions conditions;
+		long deferred = 0;
+		synchronized (this) {
+			policy = this.deferralPolicy;
+			conditions = this.deviceConditions;
+			if (policy != null && this.deferredHandlers.contains(handler)) {
+				this.requeueEvents(this.takePendingEvents());
+				return;
+			}
+			if (!this.deferredHandlers.isEmpty()) {
+				deferred = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+					- this.deferredSince);
+			}
+		}
+
+		if (policy == null || policy.allowsDispatch(conditions, deferred)) {
+			this.flushDeferred(handler);
+			return;
+		}
+
+		synchronized (this) {
+			if (this.deferralPolicy == null || this.shutDown) {
+				policy = null;
+
+			} else {
+				this.requeueEvents(this.takePendingEvents());
+				this.deferredHandlers.add(handler);
+				if (this.deferredHandlers.size() == 1) {
+					this.deferredSince = System.nanoTime();
+					this.deferralScheduler = this.getScheduler();
+					this.scheduleDeferralCheck(Math.min(policy.getCheckInterval(),
+						policy.getMaxDelay()));
+				}
+			}
+		}
+
+		if (policy == null) {
+			this.flushDeferred(handler);
+		} else if (QLog.isLoggable(QLog.DEBUG_LEVEL)) {
+			QLog.debug("Dispatch deferred after {} ms.", deferred);
+		}
+	}
+
+	/**
+	 * Checks whether deferred dispatch might be sent now and sends it if so. Runs on the
+	 * scheduler thread. Check done by a timer reschedules itself until the dispatch is sent.
+	 *
+	 * @param generation deferral the timer was scheduled for, -1 if check is not done by a
+	 *	timer.
+	 */
+	private void checkDeferred(long generation) {
+		DeferralPolicy policy;
+		DeviceConditions conditions;
+		long deferred;
+		synchronized (this) {
+			if (this.deferredHandlers.isEmpty()
+				|| (generation >= 0 && generation != this.deferralGeneration)) {
+				return;
+			}
+
+			policy = this.deferralPolicy;
+			conditions = this.deviceConditions;
+			deferred = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.deferredSince);
+		}
+
+		if (policy == null || policy.allowsDispatch(conditions, deferred)) {
+			this.flushDeferred(null);
+			return;
+		}
+
+		synchronized (this) {
+			if (generation >= 0 && generation == this.deferralGeneration
+				&& !this.deferredHandlers.isEmpty()) {
+				long remaining = Math.max(1, policy.getMaxDelay() - deferred);
+				this.scheduleDeferralCheck(Math.min(policy.getCheckInterval(), remaining));
+			}
+		}
+	}
+
+	/**
+	 * Sends deferred dispatch together with the specified one, if any, and notifies handlers
+	 * of all of them.
+	 *
+	 * @param handler handler of dispatch being done now or null.
+	 */
+	private void flushDeferred(EventDispatchHandler handler) {
+		EventDispatchHandler combined;
+		synchronized (this) {
+			if (handler != null && !this.deferredHandlers.contains(handler)) {
+				this.deferredHandlers.add(handler);
+			}
+
+			int count = this.deferredHandlers.size();
+			if (count == 0) {
+				return;
+			}
+
+			combined = count == 1 ? this.deferredHandlers.get(0)
+				: new DeferredHandlers(new ArrayList<EventDispatchHandler>(
+				this.deferredHandlers));
+			this.deferredHandlers.clear();
+			this.deferralGeneration++;
+			this.deferralScheduler = null;
+		}
+
+		this.dispatch(combined, 1);
+	}
+
+	/**
+	 * Schedules timer check of the current deferral. Must be called with dispatcher lock held.
+	 *
+	 * @param delay delay of the check in milliseconds.
+	 */
+	private void scheduleDeferralCheck(long delay) {
 		try {
-			String jsonEvent = this.eventMessage.toJson();
-			QLog.debug(jsonEvent);
+			this.deferralScheduler.schedule(new DeferralCheck(this.deferralGeneration), delay,
+				TimeUnit.MILLISECONDS);
 
-			this.httpHelper.uiPostMessage(jsonEvent);
-			this.clear();
-			handler.onSuccess();
+		} catch (RejectedExecutionException e) {
+			QLog.error("Failed to schedule deferred dispatch: " + e.toString());
+		}
+	}
 
-		} catch (JSONException e) {
+	/**
+	 * Requests deferred dispatch to be checked on the scheduler thread, if a dispatch is
+	 * deferred. Does not block, so it might be called on the main UI thread.
+	 */
+	private void requestDeferralCheck() {
+		ScheduledExecutorService scheduler = this.deferralScheduler;
+		if (scheduler == null) {
+			return;
+		}
+
+		try {
+			scheduler.execute(new DeferralCheck(-1));
+
+		} catch (RejectedExecutionException e) {
+			/* Dispatcher was shut down, which fails deferred dispatches itself. */
+		}
+	}
+
+	/**
+	 * Drops deferred dispatches and stops checking device conditions. Must be called with
+	 * dispatcher lock held; handlers of dropped dispatches must be notified after it is
+	 * released.
+	 *
+	 * @return handlers of dropped dispatches.
+	 */
+	private ArrayList<EventDispatchHandler> cancelDeferral() {
+		if (this.deviceConditions != null) {
+			this.deviceConditions.removeListener(this.deferralListener);
+		}
+
+		ArrayList<EventDispatchHandler> handlers = new ArrayList<EventDispatchHandler>(
+			this.deferredHandlers);
+		this.deferredHandlers.clear();
+		this.deferralGeneration++;
+		this.deferralScheduler = null;
+
+		return handlers;
+	}
+
+	/**
+	 * Takes collected events and sends them either on the calling or on the sender thread.
+	 * Events are taken with the dispatcher lock held, but sent after it is released, so
+	 * submitting, persisting or dropping events is never held up by the network.
+	 *
+	 * @param handler successful or failed dispatch handler.
+	 * @param attempt attempt number, starting from 1.
+	 */
+	private void dispatch(EventDispatchHandler handler, int attempt) {
+		if (handler == null) {
+			throw new IllegalArgumentException("Dispatch handler cannot be null.");
+		}
+
+		EventMessage message = null;
+		long waitStart = System.nanoTime();
+		synchronized (this) {
+			this.getMetricsRecorder().addLockWait(System.nanoTime() - waitStart);
+			if (!this.shutDown) {
+				message = this.takePendingEvents();
+			}
+
+			if (message != null && this.senderExecutor != null) {
+				try {
+					this.senderExecutor.execute(new SendTask(message, handler, attempt));
+					return;
+
+				} catch (RejectedExecutionException e) {
+					this.requeueEvents(message);
+					message = null;
+				}
+			}
+
+			if (message != null) {
+				this.activeSends++;
+			}
+		}
+
+		if (message == null) {
+			handler.onError("Dispatcher was shut down.");
+			return;
+		}
+
+		boolean closeTransport;
+		try {
+			/* Retries run on the scheduler thread, never on the main UI thread. */
+			this.sendAndNotify(message, handler, attempt == 1, attempt);
+
+		} finally {
+			synchronized (this) {
+				this.activeSends--;
+				closeTransport = this.shutDown && this.activeSends == 0;
+			}
+		}
+
+		if (closeTransport) {
+			this.transport.shutdown();
+		}
+	}
+
+	/**
+	 * Sends events and notifies dispatch handler about the result. Delivered events are
+	 * acknowledged, events that failed to be sent are returned to the dispatcher. If the
+	 * failure is transient and retry policy allows, retry is scheduled instead of notifying
+	 * the handler. Events are not sent while a retry is scheduled, they are left for it.
+	 * Unexpected runtime failures, e.g. missing network permission or a faulty serializer, are
+	 * reported to the handler as well and never lose events.
+	 *
+	 * @param message events to send.
+	 * @param handler successful or failed dispatch handler.
+	 * @param fromUiThread true if method might be called from the main UI thread.
+	 * @param attempt attempt number, starting from 1.
+	 */
+	private void sendAndNotify(EventMessage message, EventDispatchHandler handler,
+		boolean fromUiThread, int attempt) {
+		synchronized (this) {
+			if (this.retryScheduled) {
+				this.requeueEvents(message);
+				message = null;
+			}
+		}
+		if (message == null) {
+			handler.onError("Dispatch deferred until scheduled retry.");
+			return;
+		}
+
+		try {
+			this.send(message, fromUiThread);
+
+		} catch (IOException e) {
+			this.requeueEvents(message);
+			this.getMetricsRecorder().addFailedDispatch();
 			String errMsg = "Failed to encode events to JSON: " + e.toString();
 			handler.onError(errMsg);
+			return;
 
 		} catch (HttpHelperException e) {
-			String errMsg = "Failed to send events to server: " + e.toString();
-			handler.onError(errMsg);
+			this.requeueEvents(message);
+			this.getMetricsRecorder().addFailedDispatch();
+			if (!this.scheduleRetry(handler, attempt, e)) {
+				String errMsg = "Failed to send events to server: " + e.toString();
+				handler.onError(errMsg);
+			}
+			return;
+
+		} catch (RuntimeException e) {
+			this.requeueEvents(message);
+			this.getMetricsRecorder().addFailedDispatch();
+			QLog.error("Unexpected dispatch failure: " + e.toString());
+			handler.onError("Failed to send events: " + e.toString());
+			return;
 		}
+
+		this.acknowledgeEvents(message);
+		handler.onSuccess();
 	}
 
 	/**
-	 * Clears collected event list. In no case collected events are sent to the server. So
-	 * {@link #submit submit} is not invoked.
+	 * Schedules another dispatch attempt after a failed one if retry policy allows it.
+	 *
+	 * @param handler dispatch handler to pass to the retry.
+	 * @param attempt number of the failed attempt.
+	 * @param error failure of the attempt.
+	 * @return true if retry was scheduled, otherwise false.
 	 */
-	synchronized public void clear() {
-		this.eventMessage = new EventMessage();
+	private boolean scheduleRetry(EventDispatchHandler handler, int attempt,
+		HttpHelperException error) {
+		RetryPolicy policy = this.retryPolicy;
+		if (policy == null || !policy.shouldRetry(attempt, error.getStatusCode())) {
+			return false;
+		}
+
+		long delay = policy.getDelay(attempt, error.getRetryAfter());
+
+		synchronized (this) {
+			/* Only one retry is scheduled at a time, it takes all pending events. */
+			if (this.shutDown || this.retryScheduled) {
+				return false;
+			}
+
+			try {
+				this.getScheduler().schedule(new RetryTask(handler, attempt + 1), delay,
+					TimeUnit.MILLISECONDS);
+
+			} catch (RejectedExecutionException e) {
+				return false;
+			}
+
+			this.retryScheduled = true;
+		}
+
+		this.getMetricsRecorder().addRetry();
+		QLog.warning("Dispatch attempt {} failed, retrying in {} ms.", attempt, delay);
+		return true;
+	}
+
+	/**
+	 * Encodes event message with the current serializer, compresses it if compression is
+	 * enabled and sends it to the server, split into chunks if chunking is enabled. Falls back
+	 * to JSON if server does not accept the serializer content type. On failure the message is
+	 * left holding only undelivered events.
+	 *
+	 * @param message events to send.
+	 * @param fromUiThread true if method might be called from the main UI thread.
+	 * @throws IOException if fails to encode events.
+	 * @throws HttpHelperException if fails to send events.
+	 */
+	private void send(EventMessage message, boolean fromUiThread)
+		throws IOException, HttpHelperException {
+		long waitStart = System.nanoTime();
+		synchronized (this.messageBuffer) {
+			this.getMetricsRecorder().addLockWait(System.nanoTime() - waitStart);
+			try {
+				this.sendChunks(message, fromUiThread);
+
+			} catch (HttpHelperException e) {
+				if (e.getStatusCode() != HttpHelper.STATUS_UNSUPPORTED_MEDIA_TYPE
+					|| this.serializer instanceof JsonEventMessageSerializer) {
+					throw e;
+				}
+
+				QLog.warning("Server does not accept {}, falling back to JSON.",
+					this.serializer.getContentType());
+				this.serializer = new JsonEventMessageSerializer();
+				this.sendChunks(message, fromUiThread);
+			}
+		}
+	}
+
+	/**
+	 * Splits event message into chunks and sends them, several at once if chunk executor is
+	 * set. Chunks are encoded one by one on the calling thread. Once a chunk fails, no more
+	 * chunks are started. Delivered chunks are removed from the message. Must be called with
+	 * buffer lock held.
+	 *
+	 * @param message events to send.
+	 * @param fromUiThread true if method might be called from the main UI thread.
+	 * @throws IOException if fails to encode events.
+	 * @throws HttpHelperException if fails to send events.
+	 */
+	private void sendChunks(EventMessage message, boolean fromUiThread)
+		throws IOException, HttpHelperException {
+		int count = message.getEventCount();
+		boolean chunked = this.chunkMaxEvents > 0 || this.chunkMaxBytes > 0;
+		if (!chunked || count == 0) {
+			this.sendChunk(new ChunkPost(message, 0, count, this.messageBuffer, fromUiThread));
+			return;
+		}
+
+		ArrayList<ChunkPost> delivered = new ArrayList<ChunkPost>();
+		LinkedBlockingQueue<ChunkPost> completed = new LinkedBlockingQueue<ChunkPost>();
+		Exception failure = null;
+		boolean interrupted = false;
+		int start = 0;
+		int inFlight = 0;
+		int chunks = 0;
+
+		while (inFlight > 0 || (failure == null && start < count)) {
+			if (failure == null && start < count && inFlight < this.chunkMaxInFlight) {
+				int end = message.getChunkEnd(start, this.chunkMaxEvents, this.chunkMaxBytes);
+				ChunkPost chunk = new ChunkPost(message.copyEvents(start, end), start, end,
+					this.takeChunkBuffer(), fromUiThread && this.chunkExecutor == null);
+				chunk.completed = completed;
+				start = end;
+				chunks++;
+
+				try {
+					this.encode(chunk);
+					if (this.chunkExecutor == null) {
+						chunk.run();
+					} else {
+						this.chunkExecutor.execute(chunk);
+					}
+					inFlight++;
+
+				} catch (IOException e) {
+					this.chunkBuffers.add(chunk.buffer);
+					failure = e;
+
+				} catch (RejectedExecutionException e) {
+					this.chunkBuffers.add(chunk.buffer);
+					failure = new HttpHelperException("Dispatcher was shut down.");
+
+				} catch (RuntimeException e) {
+					/* Faulty serializer; chunks in flight are still awaited below. */
+					chunk.buffer.reset();
+					this.chunkBuffers.add(chunk.buffer);
+					failure = new IOException("Failed to encode events: " + e.toString());
+				}
+				continue;
+			}
+
+			ChunkPost chunk;
+			try {
+				chunk = completed.take();
+
+			} catch (InterruptedException e) {
+				/* In-flight chunks still use their buffers, wait for them anyway. */
+				interrupted = true;
+				continue;
+			}
+
+			inFlight--;
+			chunk.buffer.reset();
+			this.chunkBuffers.add(chunk.buffer);
+			if (chunk.error == null) {
+				delivered.add(chunk);
+			} else if (failure == null) {
+				failure = chunk.error;
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (QLog.isLoggable(QLog.DEBUG_LEVEL)) {
+			QLog.debug("Sent {} of {} chunks.", delivered.size(), chunks);
+		}
+
+		if (failure == null) {
+			return;
+		}
+
+		/* Remove delivered chunks from the end, so indexes of the rest stay valid. */
+		Collections.sort(delivered);
+		for (int i = delivered.size() - 1; i >= 0; i--) {
+			ChunkPost chunk = delivered.get(i);
+			message.removeEvents(chunk.start, chunk.end);
+			this.getMetricsRecorder().addDispatched(chunk.end - chunk.start);
+		}
+
+		if (failure instanceof IOException) {
+			throw (IOException)failure;
+		}
+		throw (HttpHelperException)failure;
+	}
+
+	/**
+	 * Encodes and sends a single chunk on the calling thread. Must be called with buffer lock
+	 * held.
+	 *
+	 * @param chunk chunk to send.
+	 * @throws IOException if fails to encode events.
+	 * @throws HttpHelperException if fails to send events.
+	 */
+	private void sendChunk(ChunkPost chunk) throws IOException, HttpHelperException {
+		try {
+			this.encode(chunk);
+			chunk.post();
+
+		} finally {
+			chunk.buffer.reset();
+		}
+	}
+
+	/**
+	 * Encodes events of a chunk to its buffer with the current serializer, compressing them if
+	 * compression is enabled. Must be called with buffer lock held.
+	 *
+	 * @param chunk chunk to encode.
+	 * @throws IOException if fails to encode events.
+	 */
+	private void encode(ChunkPost chunk) throws IOException {
+		long start = System.nanoTime();
+		EventMessageSerializer serializer = this.serializer;
+		ContentEncoding encoding = ContentEncoding.IDENTITY;
+		if (this.contentEncoding != ContentEncoding.IDENTITY
+			&& serializer.estimateSize(chunk.message) >= this.compressionThreshold) {
+			encoding = this.contentEncoding;
+		}
+
+		OutputStream out = chunk.buffer;
+		CompressingOutputStream compressor = null;
+		if (encoding != ContentEncoding.IDENTITY) {
+			if (this.deflater == null) {
+				this.deflater = new Deflater(this.compressionLevel,
+					encoding == ContentEncoding.GZIP);
+			}
+
+			compressor = new CompressingOutputStream(out, this.deflater, encoding);
+			out = compressor;
+		}
+
+		try {
+			serializer.write(chunk.message, out);
+			if (compressor != null) {
+				compressor.finish();
+			}
+
+		} catch (IOException e) {
+			chunk.buffer.reset();
+			throw e;
+		}
+
+		chunk.encoding = encoding;
+		chunk.contentType = serializer.getContentType();
+
+		long sent = chunk.buffer.size();
+		long encoded = compressor != null ? this.deflater.getBytesRead() : sent;
+		this.getMetricsRecorder().addEncoded(encoded, sent, System.nanoTime() - start);
+	}
+
+	/**
+	 * Returns a free buffer to encode a chunk to. Must be called with buffer lock held.
+	 *
+	 * @return empty buffer.
+	 */
+	private ReusableByteArrayOutputStream takeChunkBuffer() {
+		int free = this.chunkBuffers.size();
+		if (free > 0) {
+			return this.chunkBuffers.remove(free - 1);
+		}
+
+		return new ReusableByteArrayOutputStream(MESSAGE_BUFFER_SIZE,
+			MAX_RETAINED_MESSAGE_BUFFER_SIZE);
+	}
+
+	/**
+	 * Sends a single event message on the sender thread and notifies dispatch handler about
+	 * the result. Events that failed to be sent are returned to the dispatcher.
+	 */
+	private class SendTask implements Runnable {
+
+		private EventMessage message;
+		private EventDispatchHandler handler;
+		private int attempt;
+
+
+		public SendTask(EventMessage message, EventDispatchHandler handler, int attempt) {
+			this.message = message;
+			this.handler = handler;
+			this.attempt = attempt;
+		}
+
+		@Override
+		public void run() {
+			HttpEventDispatcher.this.sendAndNotify(this.message, this.handler, false,
+				this.attempt);
+		}
+	}
+
+
+	/**
+	 * Encoded chunk of an event message, which is sent either on the calling thread or on a
+	 * chunk sender thread. Once sent, the chunk is put to the completion queue, if any.
+	 */
+	private class ChunkPost implements Runnable, Comparable<ChunkPost> {
+
+		private EventMessage message;
+		/* Range of chunk events in the whole message. */
+		private int start;
+		private int end;
+		private ReusableByteArrayOutputStream buffer;
+		private boolean fromUiThread;
+
+		private ContentEncoding encoding;
+		private String contentType;
+		private HttpHelperException error;
+		private LinkedBlockingQueue<ChunkPost> completed;
+
+
+		public ChunkPost(EventMessage message, int start, int end,
+			ReusableByteArrayOutputStream buffer, boolean fromUiThread) {
+			this.message = message;
+			this.start = start;
+			this.end = end;
+			this.buffer = buffer;
+			this.fromUiThread = fromUiThread;
+		}
+
+		/**
+		 * Sends encoded chunk.
+		 *
+		 * @throws HttpHelperException if fails to send events.
+		 */
+		public void post() throws HttpHelperException {
+			HttpTransport transport = HttpEventDispatcher.this.transport;
+			byte[] content = this.buffer.getBuffer();
+			int length = this.buffer.size();
+			if (QLog.isLoggable(QLog.DEBUG_LEVEL)) {
+				QLog.debug("Sending {} events, {} bytes.", this.message.getEventCount(),
+					length);
+			}
+
+			long start = System.nanoTime();
+			try {
+				if (this.fromUiThread) {
+					transport.uiPostMessage(content, length, this.encoding,
+						this.contentType);
+				} else {
+					transport.postMessage(content, length, this.encoding, this.contentType);
+				}
+
+			} finally {
+				HttpEventDispatcher.this.getMetricsRecorder().addHttpRequest(
+					System.nanoTime() - start);
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				this.post();
+
+			} catch (HttpHelperException e) {
+				this.error = e;
+
+			} catch (RuntimeException e) {
+				this.error = new HttpHelperException(e.toString());
+			}
+
+			this.completed.add(this);
+		}
+
+		@Override
+		public int compareTo(ChunkPost other) {
+			return this.start < other.start ? -1 : (this.start == other.start ? 0 : 1);
+		}
+	}
+
+
+	/**
+	 * Checks deferred dispatch on the scheduler thread.
+	 */
+	private class DeferralCheck implements Runnable {
+
+		private long generation;
+
+
+		public DeferralCheck(long generation) {
+			this.generation = generation;
+		}
+
+		@Override
+		public void run() {
+			HttpEventDispatcher.this.checkDeferred(this.generation);
+		}
+	}
+
+
+	/**
+	 * Requests deferred dispatch check when device conditions change.
+	 */
+	private class DeferralListener implements DeviceConditions.Listener {
+
+		@Override
+		public void onConditionsChanged() {
+			HttpEventDispatcher.this.requestDeferralCheck();
+		}
+	}
+
+
+	/**
+	 * Notifies handlers of all dispatches coalesced into a single one.
+	 */
+	private static class DeferredHandlers implements EventDispatchHandler {
+
+		private ArrayList<EventDispatchHandler> handlers;
+
+
+		public DeferredHandlers(ArrayList<EventDispatchHandler> handlers) {
+			this.handlers = handlers;
+		}
+
+		@Override
+		public void onSuccess() {
+			for (EventDispatchHandler handler : this.handlers) {
+				handler.onSuccess();
+			}
+		}
+
+		@Override
+		public void onError(String errorMessage) {
+			for (EventDispatchHandler handler : this.handlers) {
+				handler.onError(errorMessage);
+			}
+		}
+	}
+
+
+	/**
+	 * Retries failed dispatch on the scheduler thread. Sends all collected events, including
+	 * those submitted after the failure.
+	 */
+	private class RetryTask implements Runnable {
+
+		private EventDispatchHandler handler;
+		private int attempt;
+
+
+		public RetryTask(EventDispatchHandler handler, int attempt) {
+			this.handler = handler;
+			this.attempt = attempt;
+		}
+
+		@Override
+		public void run() {
+			HttpEventDispatcher dispatcher = HttpEventDispatcher.this;
+			boolean shutDown;
+			synchronized (dispatcher) {
+				dispatcher.retryScheduled = false;
+				shutDown = dispatcher.shutDown;
+			}
+
+			if (shutDown) {
+				this.handler.onError("Dispatcher was shut down before retry.");
+			} else {
+				dispatcher.dispatch(this.handler, this.attempt);
+			}
+		}
 	}
 }
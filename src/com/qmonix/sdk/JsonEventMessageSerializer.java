@@ -0,0 +1,58 @@
+package com.qmonix.sdk;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Encodes event messages to JSON, optionally with a tag dictionary, see {@link EventMessage}.
+ * This is the default format of {@link HttpEventDispatcher}. The same {@link EventJsonWriter}
+ * is reused for every message.
+ */
+public class JsonEventMessageSerializer implements EventMessageSerializer {
+
+	public static final String CONTENT_TYPE = "application/json";
+
+	private boolean tagDictionary;
+	private EventJsonWriter writer = new EventJsonWriter();
+
+
+	/**
+	 * Constructs a new serializer that writes tag names to every event.
+	 */
+	public JsonEventMessageSerializer() {
+		this(false);
+	}
+
+	/**
+	 * Constructs a new serializer.
+	 *
+	 * @param tagDictionary true if messages should start with a tag dictionary.
+	 */
+	public JsonEventMessageSerializer(boolean tagDictionary) {
+		this.tagDictionary = tagDictionary;
+	}
+
+	/**
+	 * @return true if messages start with a tag dictionary.
+	 */
+	public boolean isTagDictionary() {
+		return this.tagDictionary;
+	}
+
+	@Override
+	public String getContentType() {
+		return CONTENT_TYPE;
+	}
+
+	@Override
+	public long estimateSize(EventMessage message) {
+		return message.estimateJsonSize();
+	}
+
+	@Override
+	public void write(EventMessage message, OutputStream out) throws IOException {
+		this.writer.setOutput(out);
+		message.writeJson(this.writer, this.tagDictionary);
+	}
+}
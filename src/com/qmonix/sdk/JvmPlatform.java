@@ -0,0 +1,41 @@
+package com.qmonix.sdk;
+
+import java.net.URISyntaxException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.qmonix.sdk.helpers.HttpTransport;
+import com.qmonix.sdk.helpers.UrlConnectionTransport;
+
+
+/**
+ * Plain JVM bindings: logs to {@link java.util.logging} under the {@code com.qmonix.sdk} logger
+ * and sends events with {@link UrlConnectionTransport}, so Android is not needed at runtime.
+ * The org.json library is still required on the class path: Android has it built in, but events
+ * and event messages expose their JSON form with org.json types, so dispatchers cannot be loaded
+ * without it.
+ */
+public class JvmPlatform extends Platform {
+
+	private static final Level[] LEVELS = {Level.FINE, Level.INFO, Level.WARNING,
+		Level.SEVERE};
+
+	private Logger logger = Logger.getLogger("com.qmonix.sdk");
+
+
+	@Override
+	public int log(int level, String tag, String msg) {
+		Level julLevel = LEVELS[Math.max(0, Math.min(level, LEVELS.length - 1))];
+		if (!this.logger.isLoggable(julLevel)) {
+			return 0;
+		}
+
+		this.logger.log(julLevel, tag + ": " + msg);
+		return msg.length();
+	}
+
+	@Override
+	public HttpTransport createHttpTransport(String uri) throws URISyntaxException {
+		return new UrlConnectionTransport(uri);
+	}
+}
@@ -7,40 +7,29 @@ import org.json.JSONException;
  * Prints events to the log output. Good for testing or as a fallback default dispatcher when
  * other dispatchers fails or are not present.
  *
- * All methods are thread safe.
+ * All methods are thread safe. {@link #submit submit} never blocks.
  */
-public class LogEventDispatcher implements EventDispatcher {
-
-	private EventMessage eventMessage = new EventMessage();
-
+public class LogEventDispatcher extends AbstractEventDispatcher {
 
 	/**
-	 * Caches event. It will be dispatched explicitly with dispatch() method.
-	 *
-	 * @param event event to dispatch.
-	 */
-	@Override
-	synchronized public void submit(Event event) {
-		if (event == null) {
-			throw new IllegalArgumentException("Event cannot be null.");
-		}
-
-		this.eventMessage.addEvent(event);
-	}
-
-	/**
-	 * Sends events encoded to JSON to log output. Clears collected events on success.
+	 * Sends events encoded to JSON to log output. Clears collected events on success. Events
+	 * are not encoded at all if INFO level logging is off.
 	 *
 	 * @param handler success handler.
 	 */
 	@Override
 	synchronized public void dispatch(EventDispatchHandler handler) {
+		EventMessage message = this.takePendingEvents();
+
 		try {
-			QLog.info(this.eventMessage.toJson());
-			this.eventMessage = new EventMessage();
+			if (QLog.isLoggable(QLog.INFO_LEVEL)) {
+				QLog.info(message.toJson());
+			}
+			this.acknowledgeEvents(message);
 			handler.onSuccess();
 
 		} catch (JSONException e) {
+			this.requeueEvents(message);
 			String errMsg = "Failed to encode events to JSON: " + e.toString();
 			handler.onError(errMsg);
 		}
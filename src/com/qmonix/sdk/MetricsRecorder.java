@@ -0,0 +1,133 @@
+package com.qmonix.sdk;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Collects dispatcher self-instrumentation counters and timers. Updates are lock-free, so they
+ * might be done from any thread, including those submitting events.
+ *
+ * @see DispatcherMetrics
+ */
+class MetricsRecorder {
+
+	private AtomicLong timingsRecorded = new AtomicLong();
+	private AtomicLong dispatchedEvents = new AtomicLong();
+	private AtomicLong failedDispatches = new AtomicLong();
+	private AtomicLong retries = new AtomicLong();
+	private AtomicLong encodedBytes = new AtomicLong();
+	private AtomicLong sentBytes = new AtomicLong();
+
+	private TimerRecorder serialization = new TimerRecorder();
+	private TimerRecorder httpRequests = new TimerRecorder();
+	private TimerRecorder lockWait = new TimerRecorder();
+
+
+	/**
+	 * Counts timing event recorded into a histogram instead of being queued.
+	 */
+	public void addTimingRecorded() {
+		this.timingsRecorded.incrementAndGet();
+	}
+
+	/**
+	 * @return number of timing events recorded into histograms.
+	 */
+	public long getTimingsRecorded() {
+		return this.timingsRecorded.get();
+	}
+
+	/**
+	 * @param events number of delivered events.
+	 */
+	public void addDispatched(long events) {
+		this.dispatchedEvents.addAndGet(events);
+	}
+
+	/**
+	 * Counts failed dispatch attempt.
+	 */
+	public void addFailedDispatch() {
+		this.failedDispatches.incrementAndGet();
+	}
+
+	/**
+	 * Counts scheduled dispatch retry.
+	 */
+	public void addRetry() {
+		this.retries.incrementAndGet();
+	}
+
+	/**
+	 * Counts encoded event message.
+	 *
+	 * @param encoded message size before compression in bytes.
+	 * @param sent message size after compression in bytes.
+	 * @param nanos time taken to encode and compress the message.
+	 */
+	public void addEncoded(long encoded, long sent, long nanos) {
+		this.encodedBytes.addAndGet(encoded);
+		this.sentBytes.addAndGet(sent);
+		this.serialization.record(nanos);
+	}
+
+	/**
+	 * @param nanos HTTP request duration.
+	 */
+	public void addHttpRequest(long nanos) {
+		this.httpRequests.record(nanos);
+	}
+
+	/**
+	 * @param nanos time spent waiting for a lock.
+	 */
+	public void addLockWait(long nanos) {
+		this.lockWait.record(nanos);
+	}
+
+	/**
+	 * Takes snapshot of collected metrics.
+	 *
+	 * @param submitted number of submitted events.
+	 * @param dropped number of dropped events.
+	 * @param suppressed number of events discarded by sampling.
+	 * @param spilled number of spilled events.
+	 * @param queueDepth number of collected events not delivered yet.
+	 * @return metrics snapshot.
+	 */
+	public DispatcherMetrics snapshot(long submitted, long dropped, long suppressed,
+		long spilled, int queueDepth) {
+		return new DispatcherMetrics(submitted, dropped, suppressed, spilled,
+			this.dispatchedEvents.get(), this.failedDispatches.get(), this.retries.get(),
+			queueDepth, this.encodedBytes.get(), this.sentBytes.get(),
+			this.serialization.snapshot(), this.httpRequests.snapshot(),
+			this.lockWait.snapshot());
+	}
+
+
+	/**
+	 * Lock-free duration accumulator.
+	 */
+	private static class TimerRecorder {
+
+		private AtomicLong count = new AtomicLong();
+		private AtomicLong totalNanos = new AtomicLong();
+		private AtomicLong maxNanos = new AtomicLong();
+
+
+		public void record(long nanos) {
+			this.count.incrementAndGet();
+			this.totalNanos.addAndGet(nanos);
+
+			long max = this.maxNanos.get();
+			while (nanos > max && !this.maxNanos.compareAndSet(max, nanos)) {
+				max = this.maxNanos.get();
+			}
+		}
+
+		public DispatcherMetrics.Timer snapshot() {
+			return new DispatcherMetrics.Timer(this.count.get(), this.totalNanos.get(),
+				this.maxNanos.get());
+		}
+	}
+}
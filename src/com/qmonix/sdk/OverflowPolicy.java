@@ -0,0 +1,150 @@
+package com.qmonix.sdk;
+
+
+/**
+ * Limits memory taken by collected events and tells what happens to events beyond the limit.
+ * Limit applies to events submitted to a dispatcher and not delivered yet, including those
+ * waiting for a retry. It is given as number of events, as estimated size of their JSON encoding
+ * or both; zero value disables the corresponding limit. When the limit is exceeded:
+ * <ul>
+ * <li>{@link Action#DROP_NEWEST DROP_NEWEST} - newly submitted events are dropped;
+ * <li>{@link Action#DROP_OLDEST DROP_OLDEST} - the oldest collected events are dropped;
+ * <li>{@link Action#SAMPLE SAMPLE} - every second collected event is dropped, so the remaining
+ *	events still cover the whole period, only more sparsely;
+ * <li>{@link Action#SPILL_TO_DISK SPILL_TO_DISK} - collected events are moved to a spill
+ *	{@link EventJournal} and are read back a batch at a time by subsequent dispatches. Spill
+ *	journal must not be the one set with {@link AbstractEventDispatcher#setJournal setJournal}.
+ * </ul>
+ * Newest events are dropped without taking any lock, other actions are taken on the dispatcher
+ * scheduler thread shortly after the limit is exceeded. Events submitted meanwhile are kept, up to
+ * a quarter above the limit; events beyond that are dropped whatever the action is, so the limit
+ * is never exceeded by more than that.
+ *
+ * @see AbstractEventDispatcher#setOverflowPolicy
+ * @see AbstractEventDispatcher#getDroppedEventCount
+ */
+public class OverflowPolicy {
+
+	/**
+	 * What happens to collected events when the limit is exceeded.
+	 */
+	public enum Action {
+		/* Newly submitted events are dropped. */
+		DROP_NEWEST,
+		/* The oldest collected events are dropped. */
+		DROP_OLDEST,
+		/* Every second collected event is dropped. */
+		SAMPLE,
+		/* Collected events are moved to disk. */
+		SPILL_TO_DISK
+	}
+
+	private int maxEvents;
+	private long maxBytes;
+	private Action action;
+	private EventJournal spillJournal;
+
+
+	/**
+	 * Constructs a new overflow policy which drops events.
+	 *
+	 * @param maxEvents maximum number of collected events. 0 disables.
+	 * @param maxBytes maximum estimated size of collected events in bytes. 0 disables.
+	 * @param action what to drop when the limit is exceeded. Use {@link
+	 *	#OverflowPolicy(int, long, EventJournal)} to spill events to disk.
+	 */
+	public OverflowPolicy(int maxEvents, long maxBytes, Action action) {
+		this(maxEvents, maxBytes, action, null);
+
+		if (action == Action.SPILL_TO_DISK) {
+			throw new IllegalArgumentException("Spilling events requires spill journal.");
+		}
+	}
+
+	/**
+	 * Constructs a new overflow policy which moves events beyond the limit to disk.
+	 *
+	 * @param maxEvents maximum number of collected events kept in memory. 0 disables.
+	 * @param maxBytes maximum estimated size of collected events kept in memory in bytes. 0
+	 *	disables.
+	 * @param spillJournal journal to move events to.
+	 */
+	public OverflowPolicy(int maxEvents, long maxBytes, EventJournal spillJournal) {
+		this(maxEvents, maxBytes, Action.SPILL_TO_DISK, spillJournal);
+
+		if (spillJournal == null) {
+			throw new IllegalArgumentException("Spill journal cannot be null.");
+		}
+	}
+
+	private OverflowPolicy(int maxEvents, long maxBytes, Action action,
+		EventJournal spillJournal) {
+		if (maxEvents < 0 || maxBytes < 0) {
+			throw new IllegalArgumentException("Limits cannot be negative.");
+		}
+		if (maxEvents == 0 && maxBytes == 0) {
+			throw new IllegalArgumentException("At least one limit must be set.");
+		}
+		if (action == null) {
+			throw new IllegalArgumentException("Overflow action cannot be null.");
+		}
+
+		this.maxEvents = maxEvents;
+		this.maxBytes = maxBytes;
+		this.action = action;
+		this.spillJournal = spillJournal;
+	}
+
+	/**
+	 * @return maximum number of collected events, 0 if not limited.
+	 */
+	public int getMaxEvents() {
+		return this.maxEvents;
+	}
+
+	/**
+	 * @return maximum estimated size of collected events in bytes, 0 if not limited.
+	 */
+	public long getMaxBytes() {
+		return this.maxBytes;
+	}
+
+	/**
+	 * @return what happens to collected events when the limit is exceeded.
+	 */
+	public Action getAction() {
+		return this.action;
+	}
+
+	/**
+	 * @return journal events are spilled to or null if events are dropped.
+	 */
+	public EventJournal getSpillJournal() {
+		return this.spillJournal;
+	}
+
+	/**
+	 * Checks whether collected events exceed the limit.
+	 *
+	 * @param events number of collected events.
+	 * @param bytes estimated size of collected events.
+	 * @return true if the limit is exceeded.
+	 */
+	public boolean isExceeded(int events, long bytes) {
+		return (this.maxEvents > 0 && events > this.maxEvents)
+			|| (this.maxBytes > 0 && bytes > this.maxBytes);
+	}
+
+	/**
+	 * Checks whether collected events exceed the limit so much that new events must be
+	 * dropped whatever the action is.
+	 *
+	 * @param events number of collected events.
+	 * @param bytes estimated size of collected events.
+	 * @return true if hard limit is exceeded.
+	 */
+	boolean isHardLimitExceeded(int events, long bytes) {
+		return (this.maxEvents > 0 && events > this.maxEvents + this.maxEvents / 4)
+			|| (this.maxBytes > 0 && bytes > this.maxBytes + this.maxBytes / 4);
+	}
+}
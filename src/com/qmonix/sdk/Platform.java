@@ -0,0 +1,105 @@
+package com.qmonix.sdk;
+
+import java.lang.reflect.InvocationTargetException;
+import java.net.URISyntaxException;
+
+import com.qmonix.sdk.helpers.HttpTransport;
+
+
+/**
+ * Bindings of the SDK to the platform it runs on: where log messages go and how events are sent
+ * over HTTP. The rest of the SDK, i.e. {@link Tracker}, events, {@link EventMessage} and
+ * dispatchers, depends on this class only, so the same code runs on Android and on a plain JVM,
+ * e.g. on a server or in a load test with thousands of simulated clients in one process.
+ * <p>
+ * Platform is detected when first needed: {@link AndroidPlatform} if Android classes are
+ * available, otherwise {@link JvmPlatform}. Another platform might be set with
+ * {@link #set set} before the SDK is used.
+ */
+public abstract class Platform {
+
+	private static volatile Platform current;
+
+
+	/**
+	 * Returns platform the SDK runs on, detecting it if none was set.
+	 *
+	 * @return current platform.
+	 */
+	public static Platform get() {
+		Platform platform = Platform.current;
+		if (platform == null) {
+			platform = Platform.detect();
+			Platform.current = platform;
+		}
+
+		return platform;
+	}
+
+	/**
+	 * Replaces current platform. Dispatchers created before keep their HTTP transport.
+	 *
+	 * @param platform new platform.
+	 */
+	public static void set(Platform platform) {
+		if (platform == null) {
+			throw new IllegalArgumentException("Platform cannot be null.");
+		}
+
+		Platform.current = platform;
+	}
+
+	/**
+	 * Writes a log message which is already prefixed with level name and caller information.
+	 *
+	 * @param level log level, one of {@link QLog} levels.
+	 * @param tag application tag.
+	 * @param msg log message.
+	 * @return bytes written to output.
+	 */
+	public abstract int log(int level, String tag, String msg);
+
+	/**
+	 * Creates HTTP transport which posts event messages to the specified uri.
+	 *
+	 * @param uri server url.
+	 * @return new transport.
+	 */
+	public abstract HttpTransport createHttpTransport(String uri) throws URISyntaxException;
+
+
+	// Private methods.
+
+	/**
+	 * Chooses platform by classes available at runtime. Android platform is loaded by name,
+	 * so that its Android dependencies are never resolved on a plain JVM. If Android platform
+	 * cannot be created, plain JVM platform is used.
+	 *
+	 * @return detected platform.
+	 */
+	private static Platform detect() {
+		try {
+			Class.forName("android.os.Build");
+			return (Platform)Class.forName("com.qmonix.sdk.AndroidPlatform")
+				.getDeclaredConstructor().newInstance();
+
+		} catch (ClassNotFoundException e) {
+			return new JvmPlatform();
+
+		} catch (NoSuchMethodException e) {
+			return new JvmPlatform();
+
+		} catch (InstantiationException e) {
+			return new JvmPlatform();
+
+		} catch (IllegalAccessException e) {
+			return new JvmPlatform();
+
+		} catch (InvocationTargetException e) {
+			return new JvmPlatform();
+
+		} catch (LinkageError e) {
+			return new JvmPlatform();
+		}
+	}
+}
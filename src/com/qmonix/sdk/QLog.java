@@ -1,6 +1,6 @@
 package com.qmonix.sdk;
 
-import android.util.Log;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -10,6 +10,16 @@ import android.util.Log;
  *
  * Default logging level is INFO. You can change it with setLogLevel(). E.g.
  * QLog.setLogLevel(QLog.DEBUG_LEVEL);
+ * <p>
+ * Level is checked before anything else, so disabled messages cost nothing as long as they are
+ * not built by the caller. Messages with variable parts should be passed as templates, e.g.
+ * QLog.debug("Sent {} events.", count), or as {@link Message} which is built on demand.
+ * Caller information costs a stack walk for every logged message, so it is worth turning off
+ * class, method and line number logging where messages are frequent; stack is not inspected at
+ * all then.
+ * <p>
+ * Messages are written by the current {@link Platform}: to Android log on Android and to
+ * {@code java.util.logging} on a plain JVM.
  */
 public class QLog {
 	static public int DEBUG_LEVEL = 0;
@@ -25,15 +35,73 @@ public class QLog {
 
 	static private int logLevel = INFO_LEVEL;
 
+	/* Number of stack walks done for caller information. */
+	static final AtomicLong stackWalks = new AtomicLong();
+
+	static private final String[] LEVEL_NAMES = {"[DEBUG] ", "[INFO] ", "[WARNING] ",
+		"[ERROR] "};
+
+
+	/**
+	 * Message which is built only if it is going to be logged. Meant for messages that are
+	 * expensive to build, e.g. encoded events.
+	 */
+	public interface Message {
+
+		/**
+		 * @return log message.
+		 */
+		String build();
+	}
+
+
 	static public int debug(String msg) {
-		if (QLog.logLevel > DEBUG_LEVEL ) {
+		if (QLog.logLevel > DEBUG_LEVEL) {
 			return 0;
 		}
 
-		StringBuilder log = QLog.getCallerInfo(2);
-		log.insert(0, "[DEBUG] ");
-		log.append(msg);
-		return Log.d(QLog.applicationTag, log.toString());
+		return QLog.log(DEBUG_LEVEL, msg);
+	}
+
+	/**
+	 * Sends debug log message built from a template, see {@link #format format}. Message is
+	 * not formatted if debug logging is off.
+	 *
+	 * @param template message template.
+	 * @param arg value of the first placeholder.
+	 * @return bytes written to output.
+	 */
+	static public int debug(String template, Object arg) {
+		if (QLog.logLevel > DEBUG_LEVEL) {
+			return 0;
+		}
+
+		return QLog.log(DEBUG_LEVEL, QLog.format(template, arg, null));
+	}
+
+	/**
+	 * Same as {@link #debug(String, Object)} with two placeholders.
+	 */
+	static public int debug(String template, Object arg1, Object arg2) {
+		if (QLog.logLevel > DEBUG_LEVEL) {
+			return 0;
+		}
+
+		return QLog.log(DEBUG_LEVEL, QLog.format(template, arg1, arg2));
+	}
+
+	/**
+	 * Sends debug log message which is built only if debug logging is on.
+	 *
+	 * @param msg lazily built message.
+	 * @return bytes written to output.
+	 */
+	static public int debug(Message msg) {
+		if (QLog.logLevel > DEBUG_LEVEL) {
+			return 0;
+		}
+
+		return QLog.log(DEBUG_LEVEL, msg.build());
 	}
 
 	static public int info(String msg) {
@@ -41,10 +109,40 @@ public class QLog {
 			return 0;
 		}
 
-		StringBuilder log = QLog.getCallerInfo(2);
-		log.insert(0, "[INFO] ");
-		log.append(msg);
-		return Log.i(QLog.applicationTag, log.toString());
+		return QLog.log(INFO_LEVEL, msg);
+	}
+
+	/**
+	 * @see #debug(String, Object)
+	 */
+	static public int info(String template, Object arg) {
+		if (QLog.logLevel > INFO_LEVEL) {
+			return 0;
+		}
+
+		return QLog.log(INFO_LEVEL, QLog.format(template, arg, null));
+	}
+
+	/**
+	 * @see #debug(String, Object, Object)
+	 */
+	static public int info(String template, Object arg1, Object arg2) {
+		if (QLog.logLevel > INFO_LEVEL) {
+			return 0;
+		}
+
+		return QLog.log(INFO_LEVEL, QLog.format(template, arg1, arg2));
+	}
+
+	/**
+	 * @see #debug(QLog.Message)
+	 */
+	static public int info(Message msg) {
+		if (QLog.logLevel > INFO_LEVEL) {
+			return 0;
+		}
+
+		return QLog.log(INFO_LEVEL, msg.build());
 	}
 
 	static public int warning(String msg) {
@@ -52,10 +150,40 @@ public class QLog {
 			return 0;
 		}
 
-		StringBuilder log = QLog.getCallerInfo(2);
-		log.insert(0, "[WARNING] ");
-		log.append(msg);
-		return Log.w(QLog.applicationTag, log.toString());
+		return QLog.log(WARNING_LEVEL, msg);
+	}
+
+	/**
+	 * @see #debug(String, Object)
+	 */
+	static public int warning(String template, Object arg) {
+		if (QLog.logLevel > WARNING_LEVEL) {
+			return 0;
+		}
+
+		return QLog.log(WARNING_LEVEL, QLog.format(template, arg, null));
+	}
+
+	/**
+	 * @see #debug(String, Object, Object)
+	 */
+	static public int warning(String template, Object arg1, Object arg2) {
+		if (QLog.logLevel > WARNING_LEVEL) {
+			return 0;
+		}
+
+		return QLog.log(WARNING_LEVEL, QLog.format(template, arg1, arg2));
+	}
+
+	/**
+	 * @see #debug(QLog.Message)
+	 */
+	static public int warning(Message msg) {
+		if (QLog.logLevel > WARNING_LEVEL) {
+			return 0;
+		}
+
+		return QLog.log(WARNING_LEVEL, msg.build());
 	}
 
 	/**
@@ -70,10 +198,79 @@ public class QLog {
 			return 0;
 		}
 
-		StringBuilder log = QLog.getCallerInfo(2);
-		log.insert(0, "[ERROR] ");
-		log.append(msg);
-		return Log.e(QLog.applicationTag, log.toString());
+		return QLog.log(ERROR_LEVEL, msg);
+	}
+
+	/**
+	 * @see #debug(String, Object)
+	 */
+	static public int error(String template, Object arg) {
+		if (QLog.logLevel > ERROR_LEVEL) {
+			return 0;
+		}
+
+		return QLog.log(ERROR_LEVEL, QLog.format(template, arg, null));
+	}
+
+	/**
+	 * @see #debug(String, Object, Object)
+	 */
+	static public int error(String template, Object arg1, Object arg2) {
+		if (QLog.logLevel > ERROR_LEVEL) {
+			return 0;
+		}
+
+		return QLog.log(ERROR_LEVEL, QLog.format(template, arg1, arg2));
+	}
+
+	/**
+	 * @see #debug(QLog.Message)
+	 */
+	static public int error(Message msg) {
+		if (QLog.logLevel > ERROR_LEVEL) {
+			return 0;
+		}
+
+		return QLog.log(ERROR_LEVEL, msg.build());
+	}
+
+	/**
+	 * Checks whether messages of the specified level are logged. Meant to guard code that
+	 * prepares log messages.
+	 *
+	 * @param level log level.
+	 * @return true if messages of the level are logged.
+	 */
+	static public boolean isLoggable(int level) {
+		return level >= QLog.logLevel;
+	}
+
+	/**
+	 * Replaces {} placeholders in the template with string values of arguments, in order.
+	 * Placeholders without argument are left as they are.
+	 *
+	 * @param template message template, e.g. "Sending {} events."
+	 * @param arg1 value of the first placeholder.
+	 * @param arg2 value of the second placeholder.
+	 * @return formatted message.
+	 */
+	static public String format(String template, Object arg1, Object arg2) {
+		StringBuilder result = new StringBuilder(template.length() + 32);
+
+		int argIndex = 0;
+		int start = 0;
+		int placeholder = template.indexOf("{}");
+		while (placeholder >= 0 && argIndex < 2) {
+			result.append(template, start, placeholder);
+			result.append(argIndex == 0 ? arg1 : arg2);
+			argIndex++;
+
+			start = placeholder + 2;
+			placeholder = template.indexOf("{}", start);
+		}
+
+		result.append(template, start, template.length());
+		return result.toString();
 	}
 
 	/**
@@ -116,39 +313,64 @@ public class QLog {
 
 	// Private methods.
 
+	/**
+	 * Prefixes message with level name and caller information and writes it to platform log.
+	 * Must be called directly from public logging methods.
+	 *
+	 * @param level log level.
+	 * @param msg log message.
+	 * @return bytes written to output.
+	 */
+	static private int log(int level, String msg) {
+		String callerInfo = QLog.getCallerInfo();
+
+		StringBuilder log = new StringBuilder(LEVEL_NAMES[level].length() + callerInfo.length()
+			+ msg.length());
+		log.append(LEVEL_NAMES[level]);
+		log.append(callerInfo);
+		log.append(msg);
+
+		return Platform.get().log(level, QLog.applicationTag, log.toString());
+	}
+
 	/**
 	 * Depending on set features returns a log caller information: caller class and/or method
-	 * name.
+	 * name. Stack is not inspected at all if all caller features are turned off.
 	 *
-	 * @param level caller level in function call stack.
 	 * @return log caller information string.
 	 */
-	static private StringBuilder getCallerInfo(int level) {
-		StringBuilder result = new StringBuilder();
+	static private String getCallerInfo() {
+		if (!QLog.logClass && !QLog.logMethod && !QLog.logLineNr) {
+			return "";
+		}
 
-		try {
-			throw new Exception();
-		} catch (Exception e) {
-			StackTraceElement ste = e.getStackTrace()[level];
+		/* Stack: getCallerInfo(), log(), public logging method, caller. */
+		QLog.stackWalks.incrementAndGet();
+		StackTraceElement[] stack = new Throwable().getStackTrace();
+		if (stack.length < 4) {
+			return "";
+		}
 
-			if (QLog.logClass) {
-				result.append(ste.getClassName());
-			}
+		StackTraceElement ste = stack[3];
+		StringBuilder result = new StringBuilder();
 
-			if (QLog.logMethod) {
-				result.append(".");
-				result.append(ste.getMethodName());
-				result.append("()");
-			}
+		if (QLog.logClass) {
+			result.append(ste.getClassName());
+		}
 
-			if (QLog.logLineNr) {
-				result.append(":");
-				result.append(ste.getLineNumber());
-			}
+		if (QLog.logMethod) {
+			result.append(".");
+			result.append(ste.getMethodName());
+			result.append("()");
+		}
 
-			result.append(": ");
+		if (QLog.logLineNr) {
+			result.append(":");
+			result.append(ste.getLineNumber());
 		}
 
-		return result;
+		result.append(": ");
+
+		return result.toString();
 	}
 }
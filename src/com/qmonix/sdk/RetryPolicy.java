@@ -0,0 +1,114 @@
+package com.qmonix.sdk;
+
+import java.util.Random;
+
+
+/**
+ * Describes how failed dispatches are retried. Delay before each retry grows exponentially from
+ * {@link #getInitialDelay initialDelay}, doubling with every attempt, up to
+ * {@link #getMaxDelay maxDelay}. Delays are randomized ("equal jitter": half of the delay is
+ * fixed, the other half is random), so many devices that failed at the same time do not retry
+ * all at once. Dispatch is abandoned after {@link #getMaxAttempts maxAttempts} attempts.
+ * <p>
+ * Only transient failures are retried: network errors, request timeout (408), too many requests
+ * (429) and server errors (5xx). When server asks to wait with Retry-After header, retry is not
+ * done earlier than requested, but never later than {@link #getMaxDelay maxDelay}, since no
+ * events are sent while a retry is pending.
+ *
+ * @see HttpEventDispatcher#setRetryPolicy
+ */
+public class RetryPolicy {
+
+	private int maxAttempts;
+	private long initialDelay;
+	private long maxDelay;
+
+	private Random random = new Random();
+
+
+	/**
+	 * Constructs a new retry policy.
+	 *
+	 * @param maxAttempts maximum number of attempts including the first one. 1 disables
+	 *	retries.
+	 * @param initialDelay delay before the first retry in milliseconds.
+	 * @param maxDelay upper bound of delay between retries in milliseconds.
+	 */
+	public RetryPolicy(int maxAttempts, long initialDelay, long maxDelay) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("Max attempts must be positive.");
+		}
+		if (initialDelay <= 0 || maxDelay < initialDelay) {
+			throw new IllegalArgumentException("Invalid retry delays: " + initialDelay + ", "
+				+ maxDelay);
+		}
+
+		this.maxAttempts = maxAttempts;
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * @return maximum number of attempts including the first one.
+	 */
+	public int getMaxAttempts() {
+		return this.maxAttempts;
+	}
+
+	/**
+	 * @return delay before the first retry in milliseconds.
+	 */
+	public long getInitialDelay() {
+		return this.initialDelay;
+	}
+
+	/**
+	 * @return upper bound of delay between retries in milliseconds.
+	 */
+	public long getMaxDelay() {
+		return this.maxDelay;
+	}
+
+	/**
+	 * Checks whether a failed attempt should be retried.
+	 *
+	 * @param attempt number of the failed attempt, starting from 1.
+	 * @param statusCode HTTP response status code, 0 if no response was received.
+	 * @return true if another attempt should be made, otherwise false.
+	 */
+	public boolean shouldRetry(int attempt, int statusCode) {
+		return attempt < this.maxAttempts && RetryPolicy.isTransient(statusCode);
+	}
+
+	/**
+	 * Computes delay before the next attempt.
+	 *
+	 * @param attempt number of the failed attempt, starting from 1.
+	 * @param retryAfter delay in milliseconds requested by the server, -1 if none. Capped to
+	 *	the maximum delay.
+	 * @return delay in milliseconds.
+	 */
+	public long getDelay(int attempt, long retryAfter) {
+		long delay = this.initialDelay;
+		for (int i = 1; i < attempt && delay < this.maxDelay; i++) {
+			delay *= 2;
+		}
+		delay = Math.min(delay, this.maxDelay);
+
+		long half = delay / 2;
+		long jitter = (long)(this.random.nextDouble() * (delay - half + 1));
+
+		return Math.max(half + jitter, Math.min(retryAfter, this.maxDelay));
+	}
+
+	/**
+	 * Checks whether failure with the specified status code is likely to be temporary.
+	 *
+	 * @param statusCode HTTP response status code, 0 if no response was received.
+	 * @return true if failure is transient.
+	 */
+	public static boolean isTransient(int statusCode) {
+		return statusCode == 0 || statusCode == 408 || statusCode == 429
+			|| (statusCode >= 500 && statusCode < 600);
+	}
+}
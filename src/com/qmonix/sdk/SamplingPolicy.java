@@ -0,0 +1,176 @@
+package com.qmonix.sdk;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Limits how many events of hot tags reach the dispatcher queue, so a few tags fired in a tight
+ * loop would not crowd out all other events. Rules are set for a tag or for a tag name prefix;
+ * rule of the tag itself takes precedence, otherwise the rule of the longest matching prefix
+ * applies. Empty prefix matches every tag. Tags without a rule are not limited.
+ * <p>
+ * Every {@link Rule} samples events of a tag with the given probability and then limits the rate
+ * of sampled events with a token bucket of the given rate and burst size. Every tag the rule
+ * applies to is sampled and limited on its own, prefix rules do not share a bucket among tags.
+ * <p>
+ * Discarded events are not lost for aggregates: the next event of the same tag that passes the
+ * limit is weighted by the number of events it stands for and sent as an {@link AggregatedEvent}
+ * with that count, volume is multiplied by the weight. Sum of weights thus equals the number of
+ * submitted events, except for events discarded after the last passed one. Only a few thousand
+ * limited tags are tracked one by one; further tags of a rule share its state and their kept
+ * events are weighted by the inverse of the sample rate instead, which is exact on average.
+ * <p>
+ * Policy is copied when it is set to a dispatcher, so changing it afterwards has no effect until
+ * it is set again.
+ *
+ * @see AbstractEventDispatcher#setSampling
+ * @see AbstractEventDispatcher#getSuppressedEventCount
+ */
+public class SamplingPolicy {
+
+	private HashMap<String, Rule> tagRules = new HashMap<String, Rule>();
+	private HashMap<String, Rule> prefixRules = new HashMap<String, Rule>();
+
+
+	/**
+	 * Sets rule for events with the specified tag, replacing previous rule of the tag.
+	 *
+	 * @param tag event tag name.
+	 * @param rule sampling and rate limit or null to remove the rule.
+	 */
+	synchronized public void setTagRule(String tag, Rule rule) {
+		if (tag == null) {
+			throw new IllegalArgumentException("Tag name cannot be null.");
+		}
+
+		if (rule == null) {
+			this.tagRules.remove(tag);
+		} else {
+			this.tagRules.put(tag, rule);
+		}
+	}
+
+	/**
+	 * Sets rule for events with tags starting with the specified prefix, replacing previous
+	 * rule of the prefix.
+	 *
+	 * @param prefix tag name prefix, empty prefix matches every tag.
+	 * @param rule sampling and rate limit or null to remove the rule.
+	 */
+	synchronized public void setPrefixRule(String prefix, Rule rule) {
+		if (prefix == null) {
+			throw new IllegalArgumentException("Tag prefix cannot be null.");
+		}
+
+		if (rule == null) {
+			this.prefixRules.remove(prefix);
+		} else {
+			this.prefixRules.put(prefix, rule);
+		}
+	}
+
+	/**
+	 * Finds rule that applies to the specified tag.
+	 *
+	 * @param tag event tag name.
+	 * @return rule of the tag, rule of the longest matching prefix or null if tag is not
+	 *	limited.
+	 */
+	synchronized public Rule getRule(String tag) {
+		Rule rule = this.tagRules.get(tag);
+		if (rule != null) {
+			return rule;
+		}
+
+		String longest = null;
+		for (String prefix : this.prefixRules.keySet()) {
+			if (tag.startsWith(prefix)
+				&& (longest == null || prefix.length() > longest.length())) {
+				longest = prefix;
+			}
+		}
+
+		return longest == null ? null : this.prefixRules.get(longest);
+	}
+
+	/**
+	 * @return copy of rules by tag.
+	 */
+	synchronized Map<String, Rule> getTagRules() {
+		return new HashMap<String, Rule>(this.tagRules);
+	}
+
+	/**
+	 * @return copy of rules by tag prefix.
+	 */
+	synchronized Map<String, Rule> getPrefixRules() {
+		return new HashMap<String, Rule>(this.prefixRules);
+	}
+
+
+	/**
+	 * Sampling probability and rate limit applied to events of a single tag.
+	 */
+	public static class Rule {
+
+		private double sampleRate;
+		private double eventsPerSecond;
+		private int burst;
+
+
+		/**
+		 * Constructs a new rule which only samples events.
+		 *
+		 * @param sampleRate probability an event is kept, from 0 to 1.
+		 */
+		public Rule(double sampleRate) {
+			this(sampleRate, 0, 0);
+		}
+
+		/**
+		 * Constructs a new rule which samples events and limits their rate.
+		 *
+		 * @param sampleRate probability an event is kept, from 0 to 1.
+		 * @param eventsPerSecond maximum sustained rate of kept events. 0 disables.
+		 * @param burst number of events kept in a burst above the rate. Positive number
+		 *	if rate is limited.
+		 */
+		public Rule(double sampleRate, double eventsPerSecond, int burst) {
+			if (!(sampleRate >= 0 && sampleRate <= 1)) {
+				throw new IllegalArgumentException("Sample rate must be from 0 to 1.");
+			}
+			if (!(eventsPerSecond >= 0) || Double.isInfinite(eventsPerSecond)) {
+				throw new IllegalArgumentException("Event rate must not be negative.");
+			}
+			if (eventsPerSecond > 0 && burst <= 0) {
+				throw new IllegalArgumentException("Burst size must be positive.");
+			}
+
+			this.sampleRate = sampleRate;
+			this.eventsPerSecond = eventsPerSecond;
+			this.burst = burst;
+		}
+
+		/**
+		 * @return probability an event is kept.
+		 */
+		public double getSampleRate() {
+			return this.sampleRate;
+		}
+
+		/**
+		 * @return maximum sustained rate of kept events, 0 if rate is not limited.
+		 */
+		public double getEventsPerSecond() {
+			return this.eventsPerSecond;
+		}
+
+		/**
+		 * @return number of events kept in a burst above the rate.
+		 */
+		public int getBurst() {
+			return this.burst;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package com.qmonix.sdk;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * Device conditions set by hand, so that network and battery aware dispatching might be tested
+ * or simulated on a plain JVM. Setters notify listeners whenever a condition changes. Initially
+ * the device is connected to a metered network, not charging and the radio is idle.
+ * <p>
+ * All methods are thread safe.
+ */
+public class SimulatedDeviceConditions implements DeviceConditions {
+
+	private volatile boolean connected = true;
+	private volatile boolean unmetered = false;
+	private volatile boolean charging = false;
+	private volatile boolean radioActive = false;
+
+	private CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+
+	@Override
+	public boolean isConnected() {
+		return this.connected;
+	}
+
+	@Override
+	public boolean isUnmetered() {
+		return this.connected && this.unmetered;
+	}
+
+	@Override
+	public boolean isCharging() {
+		return this.charging;
+	}
+
+	@Override
+	public boolean isRadioActive() {
+		return this.connected && this.radioActive;
+	}
+
+	@Override
+	public void addListener(Listener listener) {
+		if (listener == null) {
+			throw new IllegalArgumentException("Listener cannot be null.");
+		}
+
+		this.listeners.addIfAbsent(listener);
+	}
+
+	@Override
+	public void removeListener(Listener listener) {
+		this.listeners.remove(listener);
+	}
+
+	/**
+	 * Sets network connectivity.
+	 *
+	 * @param connected true if connected to a network.
+	 * @param unmetered true if the network is unmetered, e.g. Wi-Fi.
+	 */
+	public void setNetwork(boolean connected, boolean unmetered) {
+		this.connected = connected;
+		this.unmetered = unmetered;
+		this.notifyListeners();
+	}
+
+	/**
+	 * @param charging true if the device is charging.
+	 */
+	public void setCharging(boolean charging) {
+		this.charging = charging;
+		this.notifyListeners();
+	}
+
+	/**
+	 * @param radioActive true if the radio is active because of other traffic.
+	 */
+	public void setRadioActive(boolean radioActive) {
+		this.radioActive = radioActive;
+		this.notifyListeners();
+	}
+
+
+	// Private methods.
+
+	private void notifyListeners() {
+		for (Listener listener : this.listeners) {
+			listener.onConditionsChanged();
+		}
+	}
+}
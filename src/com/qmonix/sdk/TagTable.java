@@ -0,0 +1,152 @@
+package com.qmonix.sdk;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Assigns small integer identifiers to event tag names, so queued events might refer to their
+ * tag by a primitive id. Ids are dense, start from 0 and are never reused. Looking up a tag
+ * which already has an id is lock-free and does not allocate; assigning a new id takes a lock.
+ * <p>
+ * The {@link #getDefault default} table is shared by all events and queues, so every event
+ * refers to the same canonical tag string instance: comparing tags of two events is mostly a
+ * reference comparison and tag hash code is computed once per tag.
+ * <p>
+ * Number of tags is limited, so that applications which build tag names dynamically would not
+ * grow the table without bound. Once the limit is reached, {@link #intern intern} returns -1
+ * and callers fall back to storing the tag itself.
+ */
+class TagTable {
+
+	/* Default maximum number of tags. */
+	static final int DEFAULT_MAX_TAGS = 4096;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static final TagTable DEFAULT = new TagTable();
+
+	private int maxTags;
+	private volatile boolean full = false;
+
+	private ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	/* Tags by id. Replaced when grown, written under lock before id is published. */
+	private volatile String[] tags = new String[INITIAL_CAPACITY];
+	private int size = 0;
+
+
+	/**
+	 * Constructs a new table with the default tag limit.
+	 */
+	public TagTable() {
+		this(DEFAULT_MAX_TAGS);
+	}
+
+	/**
+	 * Constructs a new table.
+	 *
+	 * @param maxTags maximum number of tags. Positive number.
+	 */
+	public TagTable(int maxTags) {
+		if (maxTags <= 0) {
+			throw new IllegalArgumentException("Maximum number of tags must be positive.");
+		}
+
+		this.maxTags = maxTags;
+	}
+
+	/**
+	 * @return table shared by all events.
+	 */
+	static TagTable getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns id of the specified tag, assigning a new one if necessary. Thread safe.
+	 *
+	 * @param tag event tag name.
+	 * @return tag id or -1 if table is full.
+	 */
+	public int intern(String tag) {
+		Integer id = this.ids.get(tag);
+		if (id != null) {
+			return id.intValue();
+		}
+		if (this.full) {
+			return -1;
+		}
+
+		return this.add(tag);
+	}
+
+	/**
+	 * Returns canonical instance of the specified tag, i.e. the one stored in the table.
+	 * Thread safe.
+	 *
+	 * @param tag event tag name.
+	 * @return canonical tag instance or the specified tag itself if table is full.
+	 */
+	public String canonicalize(String tag) {
+		int id = this.intern(tag);
+		if (id < 0) {
+			return tag;
+		}
+
+		return this.getTag(id);
+	}
+
+	/**
+	 * Returns tag name of the specified id. Id must have been returned by {@link #intern
+	 * intern}.
+	 *
+	 * @param id tag id.
+	 * @return event tag name.
+	 */
+	public String getTag(int id) {
+		return this.tags[id];
+	}
+
+	/**
+	 * @return number of interned tags.
+	 */
+	synchronized public int size() {
+		return this.size;
+	}
+
+
+	// Private methods.
+
+	/**
+	 * Assigns id to a tag that was not found in the table.
+	 *
+	 * @param tag event tag name.
+	 * @return tag id or -1 if table is full.
+	 */
+	synchronized private int add(String tag) {
+		Integer id = this.ids.get(tag);
+		if (id != null) {
+			return id.intValue();
+		}
+
+		if (this.size == this.maxTags) {
+			this.full = true;
+			return -1;
+		}
+
+		String[] tags = this.tags;
+		if (this.size == tags.length) {
+			/* Arrays.copyOf is not available on older Android versions. */
+			String[] grown = new String[Math.min(tags.length * 2, this.maxTags)];
+			System.arraycopy(tags, 0, grown, 0, this.size);
+			tags = grown;
+		}
+
+		int index = this.size++;
+		tags[index] = tag;
+		this.tags = tags;
+		/* Map publishes the id only after its tag is stored. */
+		this.ids.put(tag, Integer.valueOf(index));
+
+		return index;
+	}
+}
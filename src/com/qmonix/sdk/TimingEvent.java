@@ -1,5 +1,7 @@
 package com.qmonix.sdk;
 
+import java.util.concurrent.TimeUnit;
+
 import com.qmonix.sdk.utils.Utils;
 
 
@@ -15,6 +17,13 @@ import com.qmonix.sdk.utils.Utils;
  * <p>
  * Timing event is created with a specified tag name. Event is started on creation. Later it can be
  * paused, resumed, and stopped. timeArised value is the same as timing event construction time.
+ * <p>
+ * Duration is measured with monotonic {@link System#nanoTime} clock, so it is not affected by
+ * wall clock adjustments, and is reported as event volume in the unit chosen on construction:
+ * seconds by default, milliseconds or microseconds for short activities like screen loads or
+ * network calls. Duration is truncated to whole units. Unit is not sent with the event, so
+ * events with the same tag should always use the same unit. timeArised stays a wall clock Unix
+ * time stamp in seconds.
  * <ul>
  * <li>{@link #pause pause} pauses timing event. Later it can be resumed. E.g. this might be used
  * when application is minimized and one does not want to include this time into measurements. If
@@ -30,21 +39,53 @@ import com.qmonix.sdk.utils.Utils;
 public class TimingEvent extends VolumeEvent {
 
 	private State state;
+	private TimeUnit unit;
+
+	/* Monotonic clock reading when event was last started or resumed. */
 	private long timeStarted;
+	/* Tracked time before the last pause. */
+	private long elapsedNanos = 0;
 
 
 	/**
-	 * Creates a new timing event object by a specified event tag name.
+	 * Creates a new timing event object by a specified event tag name. Duration is measured in
+	 * seconds.
 	 *
 	 * @param tag even tag name. This is a unique name for every different event. It is used
 	 *	as event ID in database. User is responsible to make sure different events
 	 *	have different names.
 	 */
 	public TimingEvent(String tag) {
+		this(tag, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Creates a new timing event object which measures duration in the specified unit.
+	 *
+	 * @param tag event tag name.
+	 * @param unit unit of event duration: {@link TimeUnit#SECONDS SECONDS},
+	 *	{@link TimeUnit#MILLISECONDS MILLISECONDS} or {@link TimeUnit#MICROSECONDS
+	 *	MICROSECONDS}.
+	 * @see #TimingEvent(String)
+	 */
+	public TimingEvent(String tag, TimeUnit unit) {
 		super(tag, Utils.getUnixTime(), 0);
 
+		if (unit != TimeUnit.SECONDS && unit != TimeUnit.MILLISECONDS
+			&& unit != TimeUnit.MICROSECONDS) {
+			throw new IllegalArgumentException("Unsupported timing unit: " + unit);
+		}
+
+		this.unit = unit;
 		this.state = State.STARTED;
-		this.timeStarted = this.timeArised;
+		this.timeStarted = System.nanoTime();
+	}
+
+	/**
+	 * @return unit event duration is measured in.
+	 */
+	public TimeUnit getUnit() {
+		return this.unit;
 	}
 
 	/**
@@ -54,7 +95,7 @@ public class TimingEvent extends VolumeEvent {
 	 */
 	public void pause() {
 		if (this.state == State.STARTED) {
-			this.volume = this.volume + (Utils.getUnixTime() - this.timeStarted);
+			this.addElapsed();
 			this.state = State.PAUSED;
 		}
 	}
@@ -66,7 +107,7 @@ public class TimingEvent extends VolumeEvent {
 	 */
 	public void resume() {
 		if (this.state == State.PAUSED) {
-			this.timeStarted = Utils.getUnixTime();
+			this.timeStarted = System.nanoTime();
 			this.state = State.STARTED;
 		}
 	}
@@ -77,7 +118,7 @@ public class TimingEvent extends VolumeEvent {
 	public void stop() {
 		if (this.state != State.STOPPED) {
 			if (this.state != State.PAUSED) {
-				this.volume = this.volume + (Utils.getUnixTime() - this.timeStarted);
+				this.addElapsed();
 			}
 
 			this.state = State.STOPPED;
@@ -85,6 +126,17 @@ public class TimingEvent extends VolumeEvent {
 	}
 
 
+	// Private methods.
+
+	/**
+	 * Adds time since the last start to tracked time and updates event volume.
+	 */
+	private void addElapsed() {
+		this.elapsedNanos += System.nanoTime() - this.timeStarted;
+		this.volume = this.unit.convert(this.elapsedNanos, TimeUnit.NANOSECONDS);
+	}
+
+
 	private enum State {
 		STARTED, PAUSED, STOPPED
 	}
@@ -0,0 +1,220 @@
+package com.qmonix.sdk;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Lock-free histogram of durations with logarithmic buckets, in the manner of HdrHistogram.
+ * Values below 64 have their own buckets; larger values fall into one of 32 linear sub-buckets
+ * of their power of two range, so a bucket is never wider than about 3% of the values it holds.
+ * Values up to 2^40 are tracked, larger ones are counted in the last bucket.
+ * <p>
+ * {@link #record record} is O(1), does not allocate and might be called from any number of
+ * threads concurrently. {@link #takeSnapshot takeSnapshot} moves recorded values to a
+ * {@link HistogramEvent} and resets the histogram. Values are recorded to one of two
+ * recordings which a snapshot swaps, waiting for values being recorded to the old one, so a
+ * value recorded while a snapshot is taken goes, with both its count and its sum, either to
+ * that snapshot or to the next one.
+ *
+ * @see AbstractEventDispatcher#setTimingHistograms
+ */
+public class TimingHistogram {
+
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+	private static final int MAX_VALUE_BITS = 40;
+	private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+
+	static final int BUCKET_COUNT = TimingHistogram.getBucketIndex(MAX_VALUE) + 1;
+
+	private TimeUnit unit;
+
+	/* Recording values go to and the one a snapshot swaps in. Spare is guarded by this. */
+	private volatile Recording active = new Recording();
+	private Recording spare = new Recording();
+
+
+	/**
+	 * Constructs a new empty histogram.
+	 *
+	 * @param unit unit of recorded values.
+	 */
+	public TimingHistogram(TimeUnit unit) {
+		if (unit == null) {
+			throw new IllegalArgumentException("Unit cannot be null.");
+		}
+
+		this.unit = unit;
+	}
+
+	/**
+	 * @return unit of recorded values.
+	 */
+	public TimeUnit getUnit() {
+		return this.unit;
+	}
+
+	/**
+	 * @return true if nothing was recorded since the last snapshot.
+	 */
+	public boolean isEmpty() {
+		return this.active.recorded.get() == 0;
+	}
+
+	/**
+	 * Records a single value. Thread safe, lock-free and allocation-free.
+	 *
+	 * @param value duration. Negative values are recorded as 0.
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+
+		Recording recording = this.enterRecording();
+		recording.counts.incrementAndGet(TimingHistogram.getBucketIndex(value));
+		recording.sum.addAndGet(value);
+		recording.recorded.incrementAndGet();
+		recording.writers.decrementAndGet();
+	}
+
+	/**
+	 * Moves recorded values to a new histogram event and resets this histogram. Waits for
+	 * values that are being recorded.
+	 *
+	 * @param tag event tag name.
+	 * @param timeArised Unix time stamp of the event.
+	 * @param format how the event is encoded.
+	 * @return histogram event or null if nothing was recorded since the last snapshot.
+	 */
+	synchronized public HistogramEvent takeSnapshot(String tag, long timeArised,
+		HistogramEvent.Format format) {
+		if (this.isEmpty()) {
+			return null;
+		}
+
+		Recording recording = this.active;
+		this.active = this.spare;
+		this.spare = recording;
+		while (recording.writers.get() != 0) {
+			Thread.yield();
+		}
+
+		recording.recorded.set(0);
+
+		int buckets = 0;
+		long[] snapshot = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			if (recording.counts.get(i) != 0) {
+				snapshot[i] = recording.counts.getAndSet(i, 0);
+				buckets++;
+			}
+		}
+
+		if (buckets == 0) {
+			return null;
+		}
+
+		int[] indexes = new int[buckets];
+		long[] counts = new long[buckets];
+		int next = 0;
+		for (int i = 0; i < BUCKET_COUNT && next < buckets; i++) {
+			if (snapshot[i] != 0) {
+				indexes[next] = i;
+				counts[next] = snapshot[i];
+				next++;
+			}
+		}
+
+		return new HistogramEvent(tag, timeArised, this.unit, format, indexes, counts,
+			recording.sum.getAndSet(0));
+	}
+
+	/**
+	 * Returns index of the bucket which holds the specified value.
+	 *
+	 * @param value non-negative value.
+	 * @return bucket index.
+	 */
+	static int getBucketIndex(long value) {
+		if (value > MAX_VALUE) {
+			value = MAX_VALUE;
+		}
+
+		if (value < SUB_BUCKET_COUNT) {
+			return (int)value;
+		}
+
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKET_HALF_COUNT + (int)(value >>> shift);
+	}
+
+	/**
+	 * Returns the smallest value which falls into the specified bucket.
+	 *
+	 * @param index bucket index.
+	 * @return bucket lower bound.
+	 */
+	static long getBucketLowerBound(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+
+		int shift = index / SUB_BUCKET_HALF_COUNT - 1;
+		return (long)(index - shift * SUB_BUCKET_HALF_COUNT) << shift;
+	}
+
+	/**
+	 * Returns the largest value which falls into the specified bucket.
+	 *
+	 * @param index bucket index.
+	 * @return bucket upper bound.
+	 */
+	static long getBucketUpperBound(int index) {
+		if (index + 1 >= BUCKET_COUNT) {
+			return MAX_VALUE;
+		}
+
+		return TimingHistogram.getBucketLowerBound(index + 1) - 1;
+	}
+
+
+	// Private methods.
+
+	/**
+	 * Registers a writer of the active recording. Writer must be unregistered once it is done.
+	 * A snapshot that swapped the recording meanwhile does not wait for the writer, so it
+	 * retries with the new one.
+	 *
+	 * @return active recording.
+	 */
+	private Recording enterRecording() {
+		while (true) {
+			Recording recording = this.active;
+			recording.writers.incrementAndGet();
+			if (recording == this.active) {
+				return recording;
+			}
+
+			recording.writers.decrementAndGet();
+		}
+	}
+
+
+	/**
+	 * Bucket counts and sum of values recorded since a snapshot.
+	 */
+	private static class Recording {
+
+		AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+		AtomicLong sum = new AtomicLong();
+		/* Values recorded, tells whether buckets are worth scanning. */
+		AtomicLong recorded = new AtomicLong();
+		/* Threads recording values right now. */
+		AtomicLong writers = new AtomicLong();
+	}
+}
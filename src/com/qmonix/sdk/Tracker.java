@@ -1,5 +1,7 @@
 package com.qmonix.sdk;
 
+import java.util.concurrent.TimeUnit;
+
 import com.qmonix.sdk.utils.Utils;
 
 
@@ -26,14 +28,16 @@ import com.qmonix.sdk.utils.Utils;
  * paused, resumed and fired. More detailed description is in {@link FireableTimingEvent} class.
  * <p>
  * The smallest unit of time is a second. Every event represents a corresponding second - time
- * when it was fired (single events) or started (timing events).
+ * when it was fired (single events) or started (timing events). Timing event duration might be
+ * measured in finer units, see {@link #start(String, TimeUnit) start}.
  * <p>
  * By default {@link LogEventDispatcher} is assigned to {@code Tracker}. You can change dispatcher
  * with {@link #setDispatcher}. An actually when using Tracker in production it is advised to set it
  * to {@link HttpEventDispatcher} which sends events to Qmonix Web service.
  * <p>
  * NOTE. You must explicitly tell EventDispatcher to {@link EventDispatcher#dispatch dispatch}
- * events. E.g. Tracker.getDispatcher().dispatch();
+ * events. E.g. Tracker.getDispatcher().dispatch(); Unless dispatcher is configured to dispatch
+ * events automatically, see {@link AbstractEventDispatcher#setFlushPolicy setFlushPolicy}.
  *
  * @see Event
  * @see TimingEvent
@@ -58,8 +62,13 @@ public class Tracker {
 	 * @param volume event volume.
 	 */
 	public static void fire(String tag, long volume) {
-		VolumeEvent event = new VolumeEvent(tag, Utils.getUnixTime(), volume);
-		Tracker.dispatcher.submit(event);
+		EventDispatcher dispatcher = Tracker.dispatcher;
+		if (dispatcher instanceof AbstractEventDispatcher) {
+			/* Collecting dispatchers store event fields without creating event object. */
+			((AbstractEventDispatcher)dispatcher).submit(tag, Utils.getUnixTime(), volume);
+		} else {
+			dispatcher.submit(new VolumeEvent(tag, Utils.getUnixTime(), volume));
+		}
 	}
 
 	/**
@@ -69,8 +78,12 @@ public class Tracker {
 	 * @param tag unique event tag name.
 	 */
 	public static void fire(String tag) {
-		Event event = new Event(tag, Utils.getUnixTime());
-		Tracker.dispatcher.submit(event);
+		EventDispatcher dispatcher = Tracker.dispatcher;
+		if (dispatcher instanceof AbstractEventDispatcher) {
+			((AbstractEventDispatcher)dispatcher).submit(tag, Utils.getUnixTime());
+		} else {
+			dispatcher.submit(new Event(tag, Utils.getUnixTime()));
+		}
 	}
 
 	/**
@@ -86,6 +99,18 @@ public class Tracker {
 		return result;
 	}
 
+	/**
+	 * Creates and returns a new started timing event which measures duration in the
+	 * specified unit, e.g. milliseconds for screen loads or network calls.
+	 *
+	 * @param tag event tag name.
+	 * @param unit unit of event duration, see {@link TimingEvent#TimingEvent(String, TimeUnit)}.
+	 * @return new timing event object associated with specified tag.
+	 */
+	public static FireableTimingEvent start(String tag, TimeUnit unit) {
+		return new FireableTimingEvent(tag, unit, Tracker.dispatcher);
+	}
+
 	/**
 	 * Replaces current dispatcher. Does not execute old dispatcher finalization process. E.g.
 	 * in default event dispatcher case, user should manually submit it's events before setting
@@ -106,4 +131,20 @@ public class Tracker {
 	public static EventDispatcher getDispatcher() {
 		return Tracker.dispatcher;
 	}
+
+	/**
+	 * Returns self-instrumentation metrics of the current dispatcher, so SDK overhead might be
+	 * reported alongside application metrics.
+	 *
+	 * @return metrics snapshot or null if current dispatcher does not collect metrics.
+	 * @see AbstractEventDispatcher#getMetrics
+	 */
+	public static DispatcherMetrics getMetrics() {
+		EventDispatcher dispatcher = Tracker.dispatcher;
+		if (dispatcher instanceof AbstractEventDispatcher) {
+			return ((AbstractEventDispatcher)dispatcher).getMetrics();
+		}
+
+		return null;
+	}
 }
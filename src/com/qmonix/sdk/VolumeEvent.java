@@ -1,5 +1,7 @@
 package com.qmonix.sdk;
 
+import java.io.IOException;
+
 import org.json.JSONObject;
 import org.json.JSONException;
 
@@ -18,6 +20,11 @@ import com.qmonix.sdk.utils.Utils;
  */
 public class VolumeEvent extends Event {
 
+	/* Approximate size of encoded volume property. */
+	static final int JSON_VOLUME_SIZE_ESTIMATE = 16;
+
+	private static final byte[] JSON_VOLUME = EventJsonWriter.encodeName("volume");
+
 	protected long volume;
 
 
@@ -59,4 +66,22 @@ public class VolumeEvent extends Event {
 
 		return json;
 	}
+
+	/**
+	 * Writes event fire time, volume and tag name JSON properties.
+	 *
+	 * @param writer JSON writer to write properties to.
+	 * @throws IOException if fails to write to the underlying stream.
+	 */
+	@Override
+	protected void writeJsonProperties(EventJsonWriter writer) throws IOException {
+		super.writeJsonProperties(writer);
+		writer.writeName(JSON_VOLUME, true);
+		writer.writeLong(this.volume);
+	}
+
+	@Override
+	int estimateJsonSize() {
+		return super.estimateJsonSize() + JSON_VOLUME_SIZE_ESTIMATE;
+	}
 }
@@ -0,0 +1,70 @@
+package com.qmonix.sdk.helpers;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+
+/**
+ * Repeatable HTTP entity which sends a region of byte array without copying it.
+ */
+class ByteArrayRegionEntity extends AbstractHttpEntity {
+
+	private byte[] content;
+	private int offset;
+	private int length;
+
+
+	/**
+	 * Constructs a new entity.
+	 *
+	 * @param content array holding entity content.
+	 * @param offset content start offset.
+	 * @param length content length.
+	 */
+	public ByteArrayRegionEntity(byte[] content, int offset, int length) {
+		if (content == null) {
+			throw new IllegalArgumentException("Content cannot be null.");
+		}
+		if (offset < 0 || length < 0 || offset + length > content.length) {
+			throw new IllegalArgumentException("Content region is out of bounds.");
+		}
+
+		this.content = content;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public long getContentLength() {
+		return this.length;
+	}
+
+	@Override
+	public InputStream getContent() {
+		return new ByteArrayInputStream(this.content, this.offset, this.length);
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		if (out == null) {
+			throw new IllegalArgumentException("Output stream cannot be null.");
+		}
+
+		out.write(this.content, this.offset, this.length);
+		out.flush();
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+}
@@ -0,0 +1,95 @@
+package com.qmonix.sdk.helpers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+
+/**
+ * Output stream that compresses data written to it to gzip or zlib format using the specified
+ * {@link Deflater}. Unlike {@link java.util.zip.GZIPOutputStream} it does not allocate a new
+ * deflater for every stream, so a single deflater might be reused for consecutive messages. Deflater
+ * is reset when stream is constructed and is not ended when stream is closed.
+ * <p>
+ * Deflater must be created with {@code nowrap} parameter set to true for {@link
+ * ContentEncoding#GZIP GZIP} and to false for {@link ContentEncoding#DEFLATE DEFLATE} encoding.
+ * {@link #finish finish} must be called to complete compressed data.
+ */
+public class CompressingOutputStream extends DeflaterOutputStream {
+
+	private static final int BUFFER_SIZE = 4096;
+
+	/* Gzip member header: magic, deflate method, no flags, no time, no extra flags, unknown OS. */
+	private static final byte[] GZIP_HEADER = {0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0,
+		(byte)0xff};
+
+	private CRC32 crc;
+
+
+	/**
+	 * Constructs a new compressing stream and writes format header to the underlying stream.
+	 *
+	 * @param out stream to write compressed data to.
+	 * @param deflater deflater to compress data with.
+	 * @param encoding {@link ContentEncoding#GZIP GZIP} or {@link ContentEncoding#DEFLATE
+	 *	DEFLATE}.
+	 */
+	public CompressingOutputStream(OutputStream out, Deflater deflater,
+		ContentEncoding encoding) throws IOException {
+		super(out, deflater, BUFFER_SIZE);
+
+		if (encoding == ContentEncoding.IDENTITY || encoding == null) {
+			throw new IllegalArgumentException("Compressing content encoding is required.");
+		}
+
+		deflater.reset();
+		if (encoding == ContentEncoding.GZIP) {
+			this.crc = new CRC32();
+			out.write(GZIP_HEADER);
+		}
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		super.write(buffer, offset, length);
+
+		if (this.crc != null) {
+			this.crc.update(buffer, offset, length);
+		}
+	}
+
+	/**
+	 * Finishes compressed data and writes format trailer without closing the underlying stream.
+	 */
+	@Override
+	public void finish() throws IOException {
+		if (this.def.finished()) {
+			return;
+		}
+
+		super.finish();
+
+		if (this.crc != null) {
+			this.writeIntLittleEndian((int)this.crc.getValue());
+			this.writeIntLittleEndian(this.def.getTotalIn());
+		}
+	}
+
+
+	// Private methods.
+
+	/**
+	 * Writes 32 bit integer to the underlying stream in little endian byte order as required by
+	 * gzip trailer.
+	 *
+	 * @param value integer to write.
+	 */
+	private void writeIntLittleEndian(int value) throws IOException {
+		this.out.write(value & 0xff);
+		this.out.write((value >> 8) & 0xff);
+		this.out.write((value >> 16) & 0xff);
+		this.out.write((value >> 24) & 0xff);
+	}
+}
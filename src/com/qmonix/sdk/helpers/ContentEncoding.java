@@ -0,0 +1,34 @@
+package com.qmonix.sdk.helpers;
+
+
+/**
+ * HTTP message body encodings supported by {@link HttpHelper}.
+ *
+ * @see CompressingOutputStream
+ */
+public enum ContentEncoding {
+
+	/** Body is sent as is. */
+	IDENTITY(null),
+
+	/** Body is compressed to gzip format (RFC 1952). */
+	GZIP("gzip"),
+
+	/** Body is compressed to zlib format (RFC 1950). */
+	DEFLATE("deflate");
+
+
+	private String headerValue;
+
+
+	private ContentEncoding(String headerValue) {
+		this.headerValue = headerValue;
+	}
+
+	/**
+	 * @return value of Content-Encoding HTTP header or null if header is not sent.
+	 */
+	public String getHeaderValue() {
+		return this.headerValue;
+	}
+}
@@ -3,51 +3,167 @@ package com.qmonix.sdk.helpers;
 import java.net.URI;
 import java.net.URISyntaxException;
 
-import org.apache.http.client.HttpClient;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
-import org.apache.http.impl.client.BasicResponseHandler;
-import org.apache.http.entity.StringEntity;
-
-import android.os.AsyncTask;
-
-/* AsyncTask.execute() generated exceptions */
-import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutionException;
-import java.lang.InterruptedException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.util.EntityUtils;
 
 import java.io.UnsupportedEncodingException;
 import java.io.IOException;
 
 import com.qmonix.sdk.helpers.exceptions.HttpHelperException;
-import com.qmonix.sdk.utils.AsyncTaskResult;
+import com.qmonix.sdk.utils.DaemonThreadFactory;
 import com.qmonix.sdk.QLog;
 
 
 /**
- * HTTP helper class that deals with HTTP message transmission. If it is used from the main UI
- * thread {@link #uiPostMessage uiPostMessage} should be used. It uses {@link AsyncTask} to avoid
- * {@link android.os.NetworkOnMainThreadException NetworkOnMainThreadException}. Otherwise it is
- * advised to use {@link #postMessage postMessage}.
+ * HTTP helper class that deals with HTTP message transmission on Android, built on the Apache
+ * HTTP client bundled with the platform. If it is used from the main UI
+ * thread {@link #uiPostMessage uiPostMessage} should be used. It sends the message on a
+ * background thread to avoid {@link android.os.NetworkOnMainThreadException
+ * NetworkOnMainThreadException}. Otherwise it is advised to use {@link #postMessage postMessage}.
+ * <p>
+ * By default helper owns a single low priority daemon thread with its own queue, so messages are
+ * neither queued behind application tasks, as they would be on the shared {@code AsyncTask}
+ * executor, nor hold those tasks back. Another executor might be set with {@link #setExecutor
+ * setExecutor}. Helper does not depend on Android classes, so it also works on a plain JVM.
+ * <p>
+ * Helper holds a single long-lived HTTP client with a thread safe, keep-alive connection pool, so
+ * consecutive messages reuse already established TCP and TLS connections. Connections that stay
+ * idle longer than server would keep them are closed before sending. Connect and read timeouts
+ * might be set with {@link #setTimeouts setTimeouts}. Once helper is not needed anymore, its
+ * connections should be released with {@link #shutdown shutdown}.
+ * <p>
+ * Error responses (status 300 and above) are reported with {@link HttpHelperException} which
+ * carries response status code and the delay requested by Retry-After header, if any.
+ * <p>
+ * Messages are sent as JSON unless another Content-Type is specified. Server that does not
+ * accept the specified type responds with status 415, which callers might use to fall back to
+ * JSON.
  */
-public class HttpHelper {
+public class HttpHelper implements HttpTransport {
+
+	public static final int DEFAULT_CONNECT_TIMEOUT_MS = 15000;
+	public static final int DEFAULT_READ_TIMEOUT_MS = 30000;
+
+	public static final String JSON_CONTENT_TYPE = "application/json";
+	public static final int STATUS_UNSUPPORTED_MEDIA_TYPE = 415;
+
+	/* Maximum number of pooled connections, so as many messages might be sent at once. */
+	public static final int MAX_CONNECTIONS = 4;
+	private static final long MAX_IDLE_TIME_MS = 30000;
 
-	private String hostname;
-	private int port;
 	private URI httpPostUri;
+	private HttpHost httpHost;
+
+	private ClientConnectionManager connectionManager;
+	private DefaultHttpClient httpClient;
+
+	/* Executor UI thread messages are sent on. Own executor is created when first needed. */
+	private volatile Executor executor;
+	private ExecutorService ownExecutor;
 
 
 	/**
-	 * Constructs a new http helper object using a specified server uri.
+	 * Constructs a new http helper object using a specified server uri and default timeouts.
 	 *
 	 * @param uri server url.
 	 */
 	public HttpHelper(String uri) throws URISyntaxException {
+		this(uri, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS);
+	}
+
+	/**
+	 * Constructs a new http helper object using a specified server uri and timeouts.
+	 *
+	 * @param uri server url.
+	 * @param connectTimeout connection establishment timeout in milliseconds, 0 means infinite.
+	 * @param readTimeout socket read timeout in milliseconds, 0 means infinite.
+	 */
+	public HttpHelper(String uri, int connectTimeout, int readTimeout)
+		throws URISyntaxException {
 		this.httpPostUri = new URI(uri);
-		this.hostname = this.httpPostUri.getHost();
-		this.port = this.httpPostUri.getPort();
+		this.httpHost = new HttpHost(this.httpPostUri.getHost(), this.httpPostUri.getPort(),
+			this.httpPostUri.getScheme());
+
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setContentCharset(params, "UTF-8");
+		/* Expect: 100-continue costs an extra round trip per message. */
+		HttpProtocolParams.setUseExpectContinue(params, false);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+		this.connectionManager = HttpHelper.createConnectionManager(params);
+		this.httpClient = new DefaultHttpClient(this.connectionManager, params);
+		this.setTimeouts(connectTimeout, readTimeout);
+	}
+
+	/**
+	 * Sets timeouts for subsequent requests.
+	 *
+	 * @param connectTimeout connection establishment timeout in milliseconds, 0 means infinite.
+	 * @param readTimeout socket read timeout in milliseconds, 0 means infinite.
+	 */
+	@Override
+	@SuppressWarnings("deprecation")
+	public void setTimeouts(int connectTimeout, int readTimeout) {
+		if (connectTimeout < 0 || readTimeout < 0) {
+			throw new IllegalArgumentException("Timeouts cannot be negative.");
+		}
+
+		HttpParams params = this.httpClient.getParams();
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+		HttpConnectionParams.setSoTimeout(params, readTimeout);
+		/* Pool wait timeout, set the HTTP client 4.0 way, see createConnectionManager(). */
+		org.apache.http.conn.params.ConnManagerParams.setTimeout(params, connectTimeout);
+	}
+
+	/**
+	 * Sets executor messages sent with {@link #uiPostMessage uiPostMessage} are sent on.
+	 * Executor should run tasks on a background thread. Passing null restores the default
+	 * dedicated thread.
+	 *
+	 * @param executor executor or null.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Closes all pooled connections and stops the dedicated sending thread. Helper cannot
+	 * send messages after it is shut down.
+	 */
+	@Override
+	public void shutdown() {
+		synchronized (this) {
+			if (this.ownExecutor != null) {
+				this.ownExecutor.shutdown();
+			}
+		}
+
+		this.connectionManager.shutdown();
 	}
 
 	/**
@@ -59,27 +175,49 @@ public class HttpHelper {
 	 * @see #postMessage
 	 */
 	public String uiPostMessage(String message) throws HttpHelperException {
-		String response = "";
+		return this.uiPost(this.createEntity(message));
+	}
 
-		PostHttpMessage postHttp = new PostHttpMessage();
-		postHttp.execute(message);
-		try {
-			AsyncTaskResult<Object> result = postHttp.get();
-			if (result.isException() == false) {
-				response = (String)result.getResult();
-
-			} else {
-				Exception e = result.getError();
-				QLog.error(e.toString());
-				throw new HttpHelperException(e.toString());
-			}
+	/**
+	 * Does the same as {@link #postMessage(byte[], int)} except it allows to do network
+	 * operations on main UI thread.
+	 *
+	 * @param content UTF-8 encoded message to be sent to the server.
+	 * @param length message length in bytes.
+	 * @return response from the server.
+	 */
+	public String uiPostMessage(byte[] content, int length) throws HttpHelperException {
+		return this.uiPostMessage(content, length, ContentEncoding.IDENTITY);
+	}
 
-		} catch(Exception e) {
-			QLog.error(e.toString());
-			throw new HttpHelperException(e.toString());
-		}
+	/**
+	 * Does the same as {@link #postMessage(byte[], int, ContentEncoding)} except it allows to do
+	 * network operations on main UI thread.
+	 *
+	 * @param content encoded message to be sent to the server.
+	 * @param length message length in bytes.
+	 * @param encoding content encoding message is compressed with.
+	 * @return response from the server.
+	 */
+	public String uiPostMessage(byte[] content, int length, ContentEncoding encoding)
+		throws HttpHelperException {
+		return this.uiPostMessage(content, length, encoding, JSON_CONTENT_TYPE);
+	}
 
-		return response;
+	/**
+	 * Does the same as {@link #postMessage(byte[], int, ContentEncoding, String)} except it
+	 * allows to do network operations on main UI thread.
+	 *
+	 * @param content encoded message to be sent to the server.
+	 * @param length message length in bytes.
+	 * @param encoding content encoding message is compressed with.
+	 * @param contentType MIME type of the message.
+	 * @return response from the server.
+	 */
+	@Override
+	public String uiPostMessage(byte[] content, int length, ContentEncoding encoding,
+		String contentType) throws HttpHelperException {
+		return this.uiPost(this.createEntity(content, length, encoding, contentType));
 	}
 
 	/**
@@ -90,24 +228,221 @@ public class HttpHelper {
 	 * @return response from the server.
 	 */
 	public String postMessage(String message) throws HttpHelperException {
-		HttpHost httpHost = new HttpHost(this.hostname, this.port, "http");
-		HttpClient httpClient = new DefaultHttpClient();
-		HttpPost httpPost = new HttpPost(this.httpPostUri);
-		ResponseHandler<String> responseHandler = new BasicResponseHandler();
-		String httpResponse = "";
+		return this.post(this.createEntity(message));
+	}
+
+	/**
+	 * Synchronously sends a HTTP POST message which is already encoded to bytes. Content is
+	 * sent as is, without copying it. Assumes that a content is UTF-8 encoded JSON.
+	 *
+	 * @param content UTF-8 encoded message to be sent to the server. Only the first
+	 *	{@code length} bytes are sent.
+	 * @param length message length in bytes.
+	 * @return response from the server.
+	 */
+	public String postMessage(byte[] content, int length) throws HttpHelperException {
+		return this.postMessage(content, length, ContentEncoding.IDENTITY);
+	}
+
+	/**
+	 * Synchronously sends a HTTP POST message which is already encoded to bytes and possibly
+	 * compressed. Content-Encoding header is set according to the specified encoding.
+	 *
+	 * @param content encoded message to be sent to the server. Only the first {@code length}
+	 *	bytes are sent.
+	 * @param length message length in bytes.
+	 * @param encoding content encoding message is compressed with.
+	 * @return response from the server.
+	 * @see CompressingOutputStream
+	 */
+	public String postMessage(byte[] content, int length, ContentEncoding encoding)
+		throws HttpHelperException {
+		return this.postMessage(content, length, encoding, JSON_CONTENT_TYPE);
+	}
+
+	/**
+	 * Synchronously sends a HTTP POST message of the specified MIME type which is already
+	 * encoded to bytes and possibly compressed. Content-Type and Content-Encoding headers are
+	 * set accordingly.
+	 *
+	 * @param content encoded message to be sent to the server. Only the first {@code length}
+	 *	bytes are sent.
+	 * @param length message length in bytes.
+	 * @param encoding content encoding message is compressed with.
+	 * @param contentType MIME type of the message, e.g. {@link #JSON_CONTENT_TYPE}.
+	 * @return response from the server.
+	 * @throws HttpHelperException if fails to send message or server responds with an error
+	 *	status, {@link #STATUS_UNSUPPORTED_MEDIA_TYPE} if it does not accept the content type.
+	 */
+	@Override
+	public String postMessage(byte[] content, int length, ContentEncoding encoding,
+		String contentType) throws HttpHelperException {
+		return this.post(this.createEntity(content, length, encoding, contentType));
+	}
 
+
+	// Private methods.
+
+	/**
+	 * Creates a thread safe pool of up to {@link #MAX_CONNECTIONS} connections. Uses the
+	 * connection manager API of HTTP client 4.0, since that is the version Android bundles;
+	 * its replacements are missing there.
+	 *
+	 * @param params HTTP client parameters pool limits are added to.
+	 * @return connection manager.
+	 */
+	@SuppressWarnings("deprecation")
+	private static ClientConnectionManager createConnectionManager(HttpParams params) {
+		org.apache.http.conn.params.ConnManagerParams.setMaxTotalConnections(params,
+			MAX_CONNECTIONS);
+		org.apache.http.conn.params.ConnManagerParams.setMaxConnectionsPerRoute(params,
+			new org.apache.http.conn.params.ConnPerRouteBean(MAX_CONNECTIONS));
+
+		SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new org.apache.http.conn.scheme.Scheme("http",
+			PlainSocketFactory.getSocketFactory(), 80));
+		schemeRegistry.register(new org.apache.http.conn.scheme.Scheme("https",
+			SSLSocketFactory.getSocketFactory(), 443));
+
+		return new org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager(params,
+			schemeRegistry);
+	}
+
+	/**
+	 * Creates HTTP POST body entity from the specified string.
+	 *
+	 * @param message message to bet sent to the server.
+	 * @return message entity.
+	 */
+	private HttpEntity createEntity(String message) throws HttpHelperException {
 		try {
-			StringEntity se = new StringEntity(message);
-			httpPost.setEntity(se);
-			httpPost.setHeader("Accept", "application/json");
-			httpPost.setHeader("Content-type","application/json");
+			byte[] content = message.getBytes("UTF-8");
+			ByteArrayRegionEntity entity = new ByteArrayRegionEntity(content, 0,
+				content.length);
+			entity.setContentType(JSON_CONTENT_TYPE);
 
-			httpResponse = httpClient.execute(httpHost, httpPost, responseHandler);
+			return entity;
 
 		} catch (UnsupportedEncodingException e) {
 			String msg = "Creating http post body entity failed: " + e;
 			QLog.error(msg);
 			throw new HttpHelperException(msg);
+		}
+	}
+
+	/**
+	 * Creates HTTP POST body entity from the specified byte array region.
+	 *
+	 * @param content encoded message.
+	 * @param length message length in bytes.
+	 * @param encoding content encoding message is compressed with.
+	 * @param contentType MIME type of the message.
+	 * @return message entity.
+	 */
+	private HttpEntity createEntity(byte[] content, int length, ContentEncoding encoding,
+		String contentType) {
+		if (encoding == null) {
+			throw new IllegalArgumentException("Content encoding cannot be null.");
+		}
+		if (contentType == null) {
+			throw new IllegalArgumentException("Content type cannot be null.");
+		}
+
+		ByteArrayRegionEntity entity = new ByteArrayRegionEntity(content, 0, length);
+		entity.setContentEncoding(encoding.getHeaderValue());
+		entity.setContentType(contentType);
+
+		return entity;
+	}
+
+	/**
+	 * Sends HTTP POST message with the specified body on the background executor and waits
+	 * for the response.
+	 *
+	 * @param entity message body.
+	 * @return response from the server.
+	 */
+	private String uiPost(HttpEntity entity) throws HttpHelperException {
+		FutureTask<String> task = new FutureTask<String>(new PostTask(entity));
+
+		try {
+			this.getExecutor().execute(task);
+			return task.get();
+
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof HttpHelperException) {
+				throw (HttpHelperException)cause;
+			}
+
+			QLog.error(cause.toString());
+			throw new HttpHelperException(cause.toString());
+
+		} catch (InterruptedException e) {
+			task.cancel(true);
+			Thread.currentThread().interrupt();
+			QLog.error(e.toString());
+			throw new HttpHelperException(e.toString());
+
+		} catch (RejectedExecutionException e) {
+			QLog.error(e.toString());
+			throw new HttpHelperException(e.toString());
+		}
+	}
+
+	/**
+	 * Returns executor messages are sent on, creating the dedicated thread if necessary.
+	 *
+	 * @return background executor.
+	 */
+	private Executor getExecutor() {
+		Executor executor = this.executor;
+		if (executor != null) {
+			return executor;
+		}
+
+		synchronized (this) {
+			if (this.ownExecutor == null) {
+				this.ownExecutor = Executors.newSingleThreadExecutor(
+					new DaemonThreadFactory("QmonixHttp"));
+			}
+
+			return this.ownExecutor;
+		}
+	}
+
+	/**
+	 * Synchronously sends HTTP POST message with the specified body over a pooled connection.
+	 * Response body is always read fully, so the connection is returned to the pool.
+	 *
+	 * @param entity message body.
+	 * @return response from the server.
+	 * @throws HttpHelperException if fails to send message or server responds with an error
+	 *	status.
+	 */
+	private String post(HttpEntity entity) throws HttpHelperException {
+		HttpPost httpPost = new HttpPost(this.httpPostUri);
+		StatusLine status;
+		String retryAfter = null;
+		String httpResponse = "";
+
+		try {
+			httpPost.setEntity(entity);
+			/* Content-Type header is taken from the entity. */
+			httpPost.setHeader("Accept", JSON_CONTENT_TYPE);
+
+			this.connectionManager.closeIdleConnections(MAX_IDLE_TIME_MS, TimeUnit.MILLISECONDS);
+			HttpResponse response = this.httpClient.execute(this.httpHost, httpPost);
+
+			status = response.getStatusLine();
+			Header retryAfterHeader = response.getFirstHeader("Retry-After");
+			if (retryAfterHeader != null) {
+				retryAfter = retryAfterHeader.getValue();
+			}
+			HttpEntity responseEntity = response.getEntity();
+			if (responseEntity != null) {
+				httpResponse = EntityUtils.toString(responseEntity, "UTF-8");
+			}
 
 		} catch (IOException e) {
 			String msg = "Sending message failed: " + e;
@@ -120,35 +455,42 @@ public class HttpHelper {
 			throw new HttpHelperException(msg);
 		}
 
+		if (status.getStatusCode() >= 300) {
+			String msg = "Server responded with error: " + status;
+			QLog.error(msg);
+			throw new HttpHelperException(msg, status.getStatusCode(),
+				RetryAfter.parse(retryAfter));
+		}
+
 		return httpResponse;
 	}
 
 
 	/**
-	 * This is a helper class that allows to do network operations on the main UI thread.
-	 * It extends AsyncTask class which handles all thread associated activities.
+	 * Sends HTTP POST message on a background thread, which allows to do network operations
+	 * on behalf of the main UI thread.
 	 */
-	private class PostHttpMessage extends AsyncTask<String, Void, AsyncTaskResult<Object>> {
+	private class PostTask implements Callable<String> {
+
+		private HttpEntity entity;
+
+
+		/**
+		 * @param entity message body to send.
+		 */
+		public PostTask(HttpEntity entity) {
+			this.entity = entity;
+		}
 
 		/**
 		 * Sends http POST message.
 		 *
-		 * @param msgs http messages to send. Only first array element, msgs[0], is used.
-		 * @return http response message on success, exception on failure.
+		 * @return http response message.
+		 * @throws HttpHelperException if fails to send message.
 		 */
-		protected AsyncTaskResult<Object> doInBackground(String... msgs) {
-			AsyncTaskResult<Object> retval;
-
-			try{
-				String httpResponse = HttpHelper.this.postMessage(msgs[0]);
-				retval = new AsyncTaskResult<Object>(httpResponse);
-
-			} catch (Exception e) {
-				QLog.error(e.toString());
-				retval = new AsyncTaskResult<Object>(e);
-			}
-
-			return retval;
+		@Override
+		public String call() throws HttpHelperException {
+			return HttpHelper.this.post(this.entity);
 		}
 	}
 }
@@ -0,0 +1,60 @@
+package com.qmonix.sdk.helpers;
+
+import com.qmonix.sdk.helpers.exceptions.HttpHelperException;
+
+
+/**
+ * Sends encoded event messages to the server with HTTP POST. Transport is chosen by
+ * {@link com.qmonix.sdk.Platform Platform}: {@link HttpHelper} on Android,
+ * {@link UrlConnectionTransport} on a plain JVM.
+ * <p>
+ * Implementations must be thread safe and should reuse connections between messages. Error
+ * responses (status 300 and above) are reported with {@link HttpHelperException} carrying the
+ * status code and the delay requested by Retry-After header, if any.
+ */
+public interface HttpTransport {
+
+	/**
+	 * Synchronously sends a HTTP POST message which is already encoded to bytes and possibly
+	 * compressed. Content is sent as is, without copying it.
+	 *
+	 * @param content encoded message to be sent to the server. Only the first {@code length}
+	 *	bytes are sent.
+	 * @param length message length in bytes.
+	 * @param encoding content encoding message is compressed with.
+	 * @param contentType MIME type of the message.
+	 * @return response from the server.
+	 * @throws HttpHelperException if fails to send message or server responds with an error
+	 *	status.
+	 */
+	String postMessage(byte[] content, int length, ContentEncoding encoding, String contentType)
+		throws HttpHelperException;
+
+	/**
+	 * Does the same as {@link #postMessage postMessage} except it might be called from a thread
+	 * that is not allowed to do network operations, e.g. the main UI thread on Android.
+	 *
+	 * @param content encoded message to be sent to the server.
+	 * @param length message length in bytes.
+	 * @param encoding content encoding message is compressed with.
+	 * @param contentType MIME type of the message.
+	 * @return response from the server.
+	 * @throws HttpHelperException if fails to send message or server responds with an error
+	 *	status.
+	 */
+	String uiPostMessage(byte[] content, int length, ContentEncoding encoding,
+		String contentType) throws HttpHelperException;
+
+	/**
+	 * Sets timeouts for subsequent requests.
+	 *
+	 * @param connectTimeout connection establishment timeout in milliseconds, 0 means infinite.
+	 * @param readTimeout socket read timeout in milliseconds, 0 means infinite.
+	 */
+	void setTimeouts(int connectTimeout, int readTimeout);
+
+	/**
+	 * Releases connections and threads. Transport cannot send messages after it is shut down.
+	 */
+	void shutdown();
+}
@@ -0,0 +1,62 @@
+package com.qmonix.sdk.helpers;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import com.qmonix.sdk.QLog;
+
+
+/**
+ * Parses Retry-After HTTP header for all transports. Kept apart from {@link HttpHelper}, so
+ * transports that do not use Apache HTTP client do not load it.
+ */
+class RetryAfter {
+
+	/* Retry-After HTTP-date format, RFC 1123. */
+	private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+	/* Largest delta-seconds that fit in milliseconds. */
+	private static final long MAX_SECONDS = Long.MAX_VALUE / 1000;
+
+
+	/**
+	 * Parses Retry-After header value which is either a number of seconds or an HTTP-date.
+	 *
+	 * @param header Retry-After header value or null.
+	 * @return requested delay in milliseconds, -1 if header is missing or malformed. Delays too
+	 *	long to be represented are returned as {@link Long#MAX_VALUE}.
+	 */
+	public static long parse(String header) {
+		if (header == null) {
+			return -1;
+		}
+
+		String value = header.trim();
+		try {
+			long seconds = Long.parseLong(value);
+			if (seconds >= MAX_SECONDS) {
+				return Long.MAX_VALUE;
+			}
+			return Math.max(0, seconds * 1000);
+
+		} catch (NumberFormatException e) {
+			if (value.matches("[0-9]+")) {
+				return Long.MAX_VALUE;
+			}
+			/* Not delta-seconds, try HTTP-date. */
+		}
+
+		SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			Date date = format.parse(value);
+			return Math.max(0, date.getTime() - System.currentTimeMillis());
+
+		} catch (ParseException e) {
+			QLog.warning("Malformed Retry-After header: " + value);
+			return -1;
+		}
+	}
+}
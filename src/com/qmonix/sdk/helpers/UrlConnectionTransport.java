@@ -0,0 +1,167 @@
+package com.qmonix.sdk.helpers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+
+import com.qmonix.sdk.helpers.exceptions.HttpHelperException;
+import com.qmonix.sdk.QLog;
+
+
+/**
+ * HTTP transport built on {@link HttpURLConnection}, which needs nothing but the Java runtime, so
+ * the SDK might run on a server or in a load test. Connections are kept alive and reused by the
+ * runtime connection cache, provided that responses are read fully, which this transport always
+ * does. There is no UI thread on a plain JVM, so {@link #uiPostMessage uiPostMessage} sends on
+ * the calling thread.
+ * <p>
+ * All methods are thread safe.
+ *
+ * @see com.qmonix.sdk.JvmPlatform
+ */
+public class UrlConnectionTransport implements HttpTransport {
+
+	private static final int RESPONSE_BUFFER_SIZE = 1024;
+
+	private URL url;
+
+	private volatile int connectTimeout = HttpHelper.DEFAULT_CONNECT_TIMEOUT_MS;
+	private volatile int readTimeout = HttpHelper.DEFAULT_READ_TIMEOUT_MS;
+	private volatile boolean shutDown = false;
+
+
+	/**
+	 * Constructs a new transport which posts messages to the specified uri.
+	 *
+	 * @param uri server url.
+	 */
+	public UrlConnectionTransport(String uri) throws URISyntaxException {
+		try {
+			this.url = new URI(uri).toURL();
+
+		} catch (MalformedURLException e) {
+			throw new URISyntaxException(uri, e.getMessage());
+
+		} catch (IllegalArgumentException e) {
+			throw new URISyntaxException(uri, e.getMessage());
+		}
+	}
+
+	@Override
+	public String postMessage(byte[] content, int length, ContentEncoding encoding,
+		String contentType) throws HttpHelperException {
+		if (encoding == null) {
+			throw new IllegalArgumentException("Content encoding cannot be null.");
+		}
+		if (contentType == null) {
+			throw new IllegalArgumentException("Content type cannot be null.");
+		}
+		if (this.shutDown) {
+			throw new HttpHelperException("Transport was shut down.");
+		}
+
+		int status;
+		String retryAfter;
+		String httpResponse;
+
+		try {
+			HttpURLConnection connection = (HttpURLConnection)this.url.openConnection();
+			connection.setConnectTimeout(this.connectTimeout);
+			connection.setReadTimeout(this.readTimeout);
+			connection.setUseCaches(false);
+			connection.setDoOutput(true);
+			connection.setRequestMethod("POST");
+			connection.setFixedLengthStreamingMode(length);
+			connection.setRequestProperty("Content-Type", contentType);
+			connection.setRequestProperty("Accept", HttpHelper.JSON_CONTENT_TYPE);
+			if (encoding.getHeaderValue() != null) {
+				connection.setRequestProperty("Content-Encoding", encoding.getHeaderValue());
+			}
+
+			OutputStream out = connection.getOutputStream();
+			try {
+				out.write(content, 0, length);
+			} finally {
+				out.close();
+			}
+
+			status = connection.getResponseCode();
+			retryAfter = connection.getHeaderField("Retry-After");
+			/* Body is read even on error, so the connection might be reused. */
+			httpResponse = UrlConnectionTransport.readResponse(status >= 400
+				? connection.getErrorStream() : connection.getInputStream());
+
+		} catch (IOException e) {
+			String msg = "Sending message failed: " + e;
+			QLog.error(msg);
+			throw new HttpHelperException(msg);
+		}
+
+		if (status >= 300) {
+			String msg = "Server responded with error: " + status;
+			QLog.error(msg);
+			throw new HttpHelperException(msg, status, RetryAfter.parse(retryAfter));
+		}
+
+		return httpResponse;
+	}
+
+	@Override
+	public String uiPostMessage(byte[] content, int length, ContentEncoding encoding,
+		String contentType) throws HttpHelperException {
+		return this.postMessage(content, length, encoding, contentType);
+	}
+
+	@Override
+	public void setTimeouts(int connectTimeout, int readTimeout) {
+		if (connectTimeout < 0 || readTimeout < 0) {
+			throw new IllegalArgumentException("Timeouts cannot be negative.");
+		}
+
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Rejects subsequent messages. Idle connections are closed by the runtime connection cache.
+	 */
+	@Override
+	public void shutdown() {
+		this.shutDown = true;
+	}
+
+
+	// Private methods.
+
+	/**
+	 * Reads response body fully and closes the stream.
+	 *
+	 * @param in response body stream or null if there is no body.
+	 * @return response body decoded from UTF-8.
+	 */
+	private static String readResponse(InputStream in) throws IOException {
+		if (in == null) {
+			return "";
+		}
+
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] buffer = new byte[RESPONSE_BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				body.write(buffer, 0, read);
+			}
+
+			return body.toString("UTF-8");
+
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -5,14 +5,19 @@ package com.qmonix.sdk.helpers.exceptions;
  * Exception that is thrown when error occurs while doing HTTP related operations.
  * <p>
  * Exception constructor accepts error detail message parameter which later can be retrieved
- * with {@link Throwable#getMessage getMessage}.
+ * with {@link Throwable#getMessage getMessage}. If server responded with an error status, status
+ * code and requested retry delay (Retry-After header) are available with {@link #getStatusCode
+ * getStatusCode} and {@link #getRetryAfter getRetryAfter}.
  *
  * @see com.qmonix.sdk.helpers.HttpHelper
  */
 public class HttpHelperException extends Exception {
 
 	/* @see java.io.Serializable */
-	private static final long serialVersionUID = 1;
+	private static final long serialVersionUID = 2;
+
+	private int statusCode = 0;
+	private long retryAfter = -1;
 
 
 	/**
@@ -23,4 +28,33 @@ public class HttpHelperException extends Exception {
 	public HttpHelperException(String detailMessage) {
 		super(detailMessage);
 	}
+
+	/**
+	 * Constructs new exception object for an error response of the server.
+	 *
+	 * @param detailMessage the detail message for this exception.
+	 * @param statusCode HTTP response status code.
+	 * @param retryAfter delay in milliseconds server asked to wait before retrying, -1 if
+	 *	not specified.
+	 */
+	public HttpHelperException(String detailMessage, int statusCode, long retryAfter) {
+		super(detailMessage);
+
+		this.statusCode = statusCode;
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * @return HTTP response status code or 0 if error happened before response was received.
+	 */
+	public int getStatusCode() {
+		return this.statusCode;
+	}
+
+	/**
+	 * @return delay in milliseconds server asked to wait before retrying, -1 if not specified.
+	 */
+	public long getRetryAfter() {
+		return this.retryAfter;
+	}
 }
@@ -4,7 +4,11 @@ package com.qmonix.sdk.utils;
 /**
  * Class that holds information for AsyncTask.doInBackground() result. It might be either
  * a valid result or an exception.
+ *
+ * @deprecated SDK does not use {@code AsyncTask} anymore, background work is done with
+ *	{@link java.util.concurrent.Executor executors}.
  */
+@Deprecated
 public class AsyncTaskResult<T> {
 
 	private T result;
@@ -0,0 +1,36 @@
+package com.qmonix.sdk.utils;
+
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Creates named daemon threads with the lowest priority, so that SDK background work would
+ * neither compete with application threads nor keep application process alive.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+	private String name;
+
+
+	/**
+	 * Constructs a new thread factory.
+	 *
+	 * @param name name given to created threads.
+	 */
+	public DaemonThreadFactory(String name) {
+		if (name == null) {
+			throw new IllegalArgumentException("Thread name cannot be null.");
+		}
+
+		this.name = name;
+	}
+
+	@Override
+	public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, this.name);
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+
+		return thread;
+	}
+}
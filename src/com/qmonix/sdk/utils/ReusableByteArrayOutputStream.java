@@ -0,0 +1,54 @@
+package com.qmonix.sdk.utils;
+
+import java.io.ByteArrayOutputStream;
+
+
+/**
+ * Byte array output stream whose internal buffer is exposed and kept between uses, so encoding
+ * consecutive messages does not allocate nor copy their content. Buffer is released when it grows
+ * beyond the retained capacity limit, so a single large message does not keep memory forever.
+ */
+public class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+
+	private int maxRetainedCapacity;
+
+
+	/**
+	 * Constructs a new output stream.
+	 *
+	 * @param initialCapacity initial buffer size in bytes.
+	 * @param maxRetainedCapacity largest buffer size in bytes kept after {@link #reset reset}.
+	 */
+	public ReusableByteArrayOutputStream(int initialCapacity, int maxRetainedCapacity) {
+		super(initialCapacity);
+
+		if (maxRetainedCapacity < initialCapacity) {
+			String msg = "Retained capacity cannot be less than initial capacity.";
+			throw new IllegalArgumentException(msg);
+		}
+
+		this.maxRetainedCapacity = maxRetainedCapacity;
+	}
+
+	/**
+	 * Returns internal buffer. Only the first {@link #size size} bytes are valid. Buffer is
+	 * valid until the next write or reset.
+	 *
+	 * @return internal buffer.
+	 */
+	public byte[] getBuffer() {
+		return this.buf;
+	}
+
+	/**
+	 * Discards written data. Buffer is kept unless it is larger than retained capacity limit.
+	 */
+	@Override
+	public synchronized void reset() {
+		super.reset();
+
+		if (this.buf.length > this.maxRetainedCapacity) {
+			this.buf = new byte[this.maxRetainedCapacity];
+		}
+	}
+}
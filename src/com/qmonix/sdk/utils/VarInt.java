@@ -0,0 +1,97 @@
+package com.qmonix.sdk.utils;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Variable length integer encoding used by binary formats. Integers are written 7 bits per byte,
+ * least significant group first; the highest bit of a byte tells whether more bytes follow.
+ * Small values therefore take a single byte. Signed values are zigzag encoded first, so small
+ * negative numbers are short as well.
+ */
+public class VarInt {
+
+	/* Longest encoding of 64 bit integer. */
+	public static final int MAX_LONG_SIZE = 10;
+
+
+	/**
+	 * Prevents from instantiating this class.
+	 */
+	private VarInt() {
+	}
+
+	/**
+	 * Writes unsigned variable length integer.
+	 *
+	 * @param buffer buffer to write to.
+	 * @param value value treated as unsigned.
+	 * @throws BufferOverflowException if buffer does not have enough space.
+	 */
+	public static void writeUnsigned(ByteBuffer buffer, long value) {
+		while ((value & ~0x7fL) != 0) {
+			buffer.put((byte)((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+
+		buffer.put((byte)value);
+	}
+
+	/**
+	 * Writes signed variable length integer using zigzag encoding.
+	 *
+	 * @param buffer buffer to write to.
+	 * @param value value to write.
+	 * @throws BufferOverflowException if buffer does not have enough space.
+	 */
+	public static void writeSigned(ByteBuffer buffer, long value) {
+		VarInt.writeUnsigned(buffer, VarInt.zigzag(value));
+	}
+
+	/**
+	 * Reads unsigned variable length integer.
+	 *
+	 * @param buffer buffer to read from.
+	 * @return decoded value.
+	 * @throws BufferUnderflowException if buffer ends before integer does.
+	 * @throws IllegalArgumentException if integer is longer than 64 bits.
+	 */
+	public static long readUnsigned(ByteBuffer buffer) {
+		long result = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buffer.get();
+			result |= (long)(b & 0x7f) << shift;
+
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+
+		throw new IllegalArgumentException("Variable length integer is too long.");
+	}
+
+	/**
+	 * Reads signed zigzag encoded variable length integer.
+	 *
+	 * @param buffer buffer to read from.
+	 * @return decoded value.
+	 * @see #readUnsigned
+	 */
+	public static long readSigned(ByteBuffer buffer) {
+		long value = VarInt.readUnsigned(buffer);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Maps signed integer to unsigned one so that values with small absolute value become small
+	 * unsigned values: 0 to 0, -1 to 1, 1 to 2, -2 to 3, etc.
+	 *
+	 * @param value signed value.
+	 * @return zigzag encoded value.
+	 */
+	public static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+}
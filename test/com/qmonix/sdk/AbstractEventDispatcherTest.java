@@ -0,0 +1,186 @@
+package com.qmonix.sdk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Checks event accounting of {@link AbstractEventDispatcher}.
+ */
+public class AbstractEventDispatcherTest {
+
+	private static final long ENFORCEMENT_TIMEOUT_MS = 5000;
+
+	private CollectingDispatcher dispatcher;
+
+
+	@Before
+	public void setUp() {
+		this.dispatcher = new CollectingDispatcher();
+	}
+
+	@After
+	public void tearDown() {
+		this.dispatcher.shutdown();
+	}
+
+	@Test
+	public void countsEventsDroppedAfterQueueingOnce() throws InterruptedException {
+		this.dispatcher.setOverflowPolicy(new OverflowPolicy(10, 0,
+			OverflowPolicy.Action.DROP_OLDEST));
+		for (int i = 0; i < 12; i++) {
+			this.dispatcher.submit(new Event("tap", 1400000000 + i));
+		}
+		this.awaitDropped(2);
+
+		DispatcherMetrics metrics = this.dispatcher.getMetrics();
+		assertEquals(12, metrics.getSubmittedEvents());
+		assertEquals(2, metrics.getDroppedEvents());
+	}
+
+	@Test
+	public void countsEventsRejectedBeforeQueueing() {
+		this.dispatcher.setOverflowPolicy(new OverflowPolicy(10, 0,
+			OverflowPolicy.Action.DROP_NEWEST));
+		for (int i = 0; i < 12; i++) {
+			this.dispatcher.submit(new Event("tap", 1400000000 + i));
+		}
+
+		DispatcherMetrics metrics = this.dispatcher.getMetrics();
+		assertEquals(12, metrics.getSubmittedEvents());
+		assertEquals(2, metrics.getDroppedEvents());
+	}
+
+	@Test
+	public void doesNotCountFanOutLagDropsAsSubmitted() {
+		FanOutEventDispatcher fanOut = new FanOutEventDispatcher(10);
+		CollectingDispatcher lagging = new CollectingDispatcher();
+		fanOut.addSink(this.dispatcher);
+		fanOut.addSink(lagging);
+
+		for (int i = 0; i < 30; i++) {
+			fanOut.submit(new Event("tap", 1400000000 + i));
+			if (i % 5 == 4) {
+				this.dispatcher.dispatch(new CountingHandler());
+			}
+		}
+		lagging.dispatch(new CountingHandler());
+
+		assertEquals(30, this.dispatcher.dispatched);
+		DispatcherMetrics metrics = lagging.getMetrics();
+		assertEquals(30, lagging.dispatched + metrics.getDroppedEvents());
+		assertEquals(0, metrics.getSubmittedEvents());
+		fanOut.shutdown();
+	}
+
+	@Test
+	public void passesHistogramEventsThroughAggregation() {
+		this.dispatcher.setAggregation(60);
+		this.dispatcher.submit(AbstractEventDispatcherTest.createHistogram(5));
+		this.dispatcher.submit(AbstractEventDispatcherTest.createHistogram(7));
+		this.dispatcher.submit(new Event("tap", 1400000000));
+		this.dispatcher.submit(new Event("tap", 1400000001));
+		this.dispatcher.dispatch(new CountingHandler());
+
+		AbstractEventDispatcherTest.assertHistogramsKept(this.dispatcher.lastMessage);
+	}
+
+	@Test
+	public void passesFanOutHistogramEventsThroughAggregation() {
+		FanOutEventDispatcher fanOut = new FanOutEventDispatcher(10);
+		this.dispatcher.setAggregation(60);
+		fanOut.addSink(this.dispatcher);
+
+		fanOut.submit(AbstractEventDispatcherTest.createHistogram(5));
+		fanOut.submit(AbstractEventDispatcherTest.createHistogram(7));
+		fanOut.submit(new Event("tap", 1400000000));
+		fanOut.submit(new Event("tap", 1400000001));
+		this.dispatcher.dispatch(new CountingHandler());
+
+		AbstractEventDispatcherTest.assertHistogramsKept(this.dispatcher.lastMessage);
+		fanOut.shutdown();
+	}
+
+
+	// Private methods.
+
+	private static HistogramEvent createHistogram(long count) {
+		return new HistogramEvent("load", 1400000000, TimeUnit.MILLISECONDS,
+			HistogramEvent.Format.BUCKETS, new int[] {3, 70}, new long[] {count, 1}, 1000);
+	}
+
+	private static void assertHistogramsKept(EventMessage message) {
+		long[] counts = new long[2];
+		int histograms = 0;
+		for (int i = 0; i < message.getEventCount(); i++) {
+			Event event = message.getEvent(i);
+			if (event instanceof HistogramEvent) {
+				HistogramEvent histogram = (HistogramEvent)event;
+				assertArrayEquals(new int[] {3, 70}, histogram.getBucketIndexes());
+				counts[histograms++] = histogram.getBucketCounts()[0];
+			} else {
+				assertTrue(event instanceof AggregatedEvent);
+				assertEquals(2, ((AggregatedEvent)event).getCount());
+			}
+		}
+
+		assertEquals(3, message.getEventCount());
+		assertArrayEquals(new long[] {5, 7}, counts);
+	}
+
+	private void awaitDropped(long dropped) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + ENFORCEMENT_TIMEOUT_MS;
+		while (this.dispatcher.getDroppedEventCount() < dropped
+			&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+
+	/**
+	 * Takes collected events and counts them as delivered.
+	 */
+	static class CollectingDispatcher extends AbstractEventDispatcher {
+
+		int dispatched = 0;
+		EventMessage lastMessage;
+
+
+		@Override
+		synchronized public void dispatch(EventDispatchHandler handler) {
+			EventMessage message = this.takePendingEvents();
+			this.dispatched += message.getEventCount();
+			this.lastMessage = message;
+			this.acknowledgeEvents(message);
+			handler.onSuccess();
+		}
+	}
+
+
+	/**
+	 * Counts dispatch results.
+	 */
+	static class CountingHandler implements EventDispatchHandler {
+
+		int successes = 0;
+		int errors = 0;
+
+
+		@Override
+		public void onSuccess() {
+			this.successes++;
+		}
+
+		@Override
+		public void onError(String errorMessage) {
+			this.errors++;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package com.qmonix.sdk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+
+/**
+ * Checks that messages encoded with {@link BinaryEventMessageSerializer} decode to the same
+ * events and are several times smaller than JSON.
+ */
+public class BinaryEventMessageSerializerTest {
+
+	@Test
+	public void roundTripsEveryEventType() throws IOException {
+		EventMessage message = new EventMessage();
+		message.addEvent(new Event("app.start", 1400000000));
+		message.addEvent(new VolumeEvent("download.bytes", 1400000005, 123456789));
+		message.addEvent(new VolumeEvent("balance.change", 1399999990, 1));
+		message.addEvent(new AggregatedEvent("screen.view", 1400000000, 17, 0, false));
+		message.addEvent(new AggregatedEvent("purchase.cents", 1400000060, 3, -1500, true));
+		message.addEvent(new HistogramEvent("load", 1400000120, TimeUnit.MILLISECONDS,
+			HistogramEvent.Format.BUCKETS, new int[] {3, 70, 200}, new long[] {5, 1, 2},
+			123456));
+		message.addEvent(new HistogramEvent("query", 1400000120, TimeUnit.MICROSECONDS,
+			HistogramEvent.Format.PERCENTILES, new int[] {0}, new long[] {1}, 0));
+		message.addEvent(new Event("app.start", 0));
+		message.addEvent(new VolumeEvent("événement", Long.MAX_VALUE, Long.MAX_VALUE));
+
+		EventMessage decoded = BinaryEventMessageSerializerTest.roundTrip(message);
+
+		assertEquals(message.getEventCount(), decoded.getEventCount());
+		for (int i = 0; i < message.getEventCount(); i++) {
+			BinaryEventMessageSerializerTest.assertEventEquals(message.getEvent(i),
+				decoded.getEvent(i));
+		}
+	}
+
+	@Test
+	public void roundTripsEmptyMessage() throws IOException {
+		assertEquals(0, BinaryEventMessageSerializerTest.roundTrip(new EventMessage())
+			.getEventCount());
+	}
+
+	@Test
+	public void rejectsMalformedMessage() throws IOException {
+		EventMessage message = new EventMessage();
+		message.addEvent(new VolumeEvent("download.bytes", 1400000005, 123456789));
+		byte[] content = BinaryEventMessageSerializerTest.encode(message);
+
+		try {
+			BinaryEventMessageSerializer.decode(content, 0, content.length - 1);
+			fail("Truncated message was decoded.");
+		} catch (IOException e) {
+			/* Expected. */
+		}
+
+		content[0] = 'X';
+		try {
+			BinaryEventMessageSerializer.decode(content, 0, content.length);
+			fail("Message with invalid magic was decoded.");
+		} catch (IOException e) {
+			/* Expected. */
+		}
+	}
+
+	@Test
+	public void isAtLeastFiveTimesSmallerThanJson() throws IOException {
+		EventMessage message = new EventMessage();
+		long time = 1400000000;
+		for (int i = 0; i < 1000; i++) {
+			time += i % 3;
+			if (i % 4 == 0) {
+				message.addEvent(new VolumeEvent("game.level.score", time, i * 10));
+			} else {
+				message.addEvent(new Event("screen.main.button." + (i % 8), time));
+			}
+		}
+
+		ByteArrayOutputStream json = new ByteArrayOutputStream();
+		new JsonEventMessageSerializer().write(message, json);
+		int binarySize = BinaryEventMessageSerializerTest.encode(message).length;
+
+		assertTrue("JSON " + json.size() + " bytes, binary " + binarySize + " bytes",
+			binarySize * 5 <= json.size());
+	}
+
+
+	// Private methods.
+
+	private static byte[] encode(EventMessage message) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new BinaryEventMessageSerializer().write(message, out);
+		return out.toByteArray();
+	}
+
+	private static EventMessage roundTrip(EventMessage message) throws IOException {
+		byte[] content = BinaryEventMessageSerializerTest.encode(message);
+		return BinaryEventMessageSerializer.decode(content, 0, content.length);
+	}
+
+	static void assertEventEquals(Event expected, Event actual) {
+		assertSame(expected.getClass(), actual.getClass());
+		assertEquals(expected.getTag(), actual.getTag());
+		assertEquals(expected.getTimeArised(), actual.getTimeArised());
+
+		if (expected instanceof VolumeEvent) {
+			assertEquals(((VolumeEvent)expected).getVolume(),
+				((VolumeEvent)actual).getVolume());
+
+		} else if (expected instanceof AggregatedEvent) {
+			AggregatedEvent aggregated = (AggregatedEvent)expected;
+			assertEquals(aggregated.getCount(), ((AggregatedEvent)actual).getCount());
+			assertEquals(aggregated.getVolume(), ((AggregatedEvent)actual).getVolume());
+			assertEquals(aggregated.hasVolume(), ((AggregatedEvent)actual).hasVolume());
+
+		} else if (expected instanceof HistogramEvent) {
+			HistogramEvent histogram = (HistogramEvent)expected;
+			assertEquals(histogram.getUnit(), ((HistogramEvent)actual).getUnit());
+			assertEquals(histogram.getFormat(), ((HistogramEvent)actual).getFormat());
+			assertEquals(histogram.getSum(), ((HistogramEvent)actual).getSum());
+			assertArrayEquals(histogram.getBucketIndexes(),
+				((HistogramEvent)actual).getBucketIndexes());
+			assertArrayEquals(histogram.getBucketCounts(),
+				((HistogramEvent)actual).getBucketCounts());
+		}
+	}
+}
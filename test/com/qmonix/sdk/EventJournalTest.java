@@ -0,0 +1,203 @@
+package com.qmonix.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Checks which events {@link EventJournal} reads back after appending, acknowledging,
+ * compacting, reopening and damaging the journal file.
+ */
+public class EventJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+	private EventJournal journal;
+
+
+	@Before
+	public void setUp() throws IOException {
+		this.file = new File(this.folder.getRoot(), "events.journal");
+		this.journal = new EventJournal(this.file);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.journal.close();
+	}
+
+	@Test
+	public void readsBackEveryEventTypeAfterReopen() throws IOException {
+		EventMessage message = new EventMessage();
+		message.addEvent(new Event("app.start", 1400000000));
+		message.addEvent(new VolumeEvent("download.bytes", 1400000005, 123456789));
+		message.addEvent(new AggregatedEvent("screen.view", 1400000000, 17, 0, false));
+		message.addEvent(new AggregatedEvent("purchase.cents", 1400000060, 3, -1500, true));
+		message.addEvent(new HistogramEvent("load", 1400000120, TimeUnit.MILLISECONDS,
+			HistogramEvent.Format.BUCKETS, new int[] {3, 70, 200}, new long[] {5, 1, 2},
+			123456));
+		this.journal.append(message);
+
+		this.reopen();
+
+		EventJournalTest.assertEvents(message, this.journal.readPending());
+	}
+
+	@Test
+	public void readsOnlyUnacknowledgedEvents() throws IOException {
+		EventMessage first = this.append("a", 3);
+		EventMessage second = this.append("b", 2);
+		EventMessage third = this.append("c", 4);
+
+		/* Out of order: head advances only once the first message is acknowledged too. */
+		this.journal.acknowledge(second);
+		EventJournalTest.assertEvents(EventJournalTest.concat(first, second, third),
+			this.journal.readPending());
+
+		this.journal.acknowledge(first);
+		EventJournalTest.assertEvents(third, this.journal.readPending());
+
+		this.reopen();
+
+		EventMessage pending = this.journal.readPending();
+		EventJournalTest.assertEvents(third, pending);
+
+		this.journal.acknowledge(pending);
+		assertEquals(0, this.journal.readPending().getEventCount());
+		assertEquals(0, this.journal.getPendingBytes());
+	}
+
+	@Test
+	public void keepsOffsetsOfPendingEventsAcrossCompaction() throws IOException {
+		EventMessage acknowledged = this.append("acknowledged.event.with.a.long.tag", 3000);
+		EventMessage pending = this.append("pending", 5);
+		long size = this.file.length();
+
+		this.journal.acknowledge(acknowledged);
+
+		assertTrue(this.file.length() < size / 10);
+		EventJournalTest.assertEvents(pending, this.journal.readPending());
+
+		/* Message appended before compaction is still acknowledged by its offsets. */
+		EventMessage later = this.append("later", 2);
+		this.journal.acknowledge(pending);
+		EventJournalTest.assertEvents(later, this.journal.readPending());
+
+		this.reopen();
+
+		EventJournalTest.assertEvents(later, this.journal.readPending());
+	}
+
+	@Test
+	public void dropsTruncatedLastRecord() throws IOException {
+		EventMessage message = this.append("a", 3);
+		this.journal.close();
+
+		RandomAccessFile raw = new RandomAccessFile(this.file, "rw");
+		raw.setLength(raw.length() - 2);
+		raw.close();
+
+		this.journal = new EventJournal(this.file);
+
+		EventJournalTest.assertEvents(EventJournalTest.slice(message, 2),
+			this.journal.readPending());
+
+		/* Dropped record is overwritten by the next append. */
+		EventMessage next = this.append("b", 1);
+		this.reopen();
+
+		EventJournalTest.assertEvents(EventJournalTest.concat(EventJournalTest.slice(message, 2),
+			next), this.journal.readPending());
+	}
+
+	@Test
+	public void dropsCorruptedLastRecord() throws IOException {
+		EventMessage message = this.append("a", 3);
+		this.journal.close();
+
+		/* Last byte of the last payload, right before its checksum. */
+		RandomAccessFile raw = new RandomAccessFile(this.file, "rw");
+		raw.seek(raw.length() - 5);
+		int value = raw.read();
+		raw.seek(raw.length() - 5);
+		raw.write(value ^ 0xff);
+		raw.close();
+
+		this.journal = new EventJournal(this.file);
+
+		EventJournalTest.assertEvents(EventJournalTest.slice(message, 2),
+			this.journal.readPending());
+		this.reopen();
+		EventJournalTest.assertEvents(EventJournalTest.slice(message, 2),
+			this.journal.readPending());
+	}
+
+	@Test
+	public void removesAllEventsOnClear() throws IOException {
+		this.append("a", 3);
+		this.journal.clear();
+
+		this.reopen();
+
+		assertEquals(0, this.journal.readPending().getEventCount());
+	}
+
+
+	// Private methods.
+
+	private EventMessage append(String tag, int count) throws IOException {
+		EventMessage message = new EventMessage();
+		for (int i = 0; i < count; i++) {
+			message.addEvent(new VolumeEvent(tag, 1400000000 + i, i + 1));
+		}
+
+		this.journal.append(message);
+		return message;
+	}
+
+	private void reopen() throws IOException {
+		this.journal.close();
+		this.journal = new EventJournal(this.file);
+	}
+
+	private static EventMessage concat(EventMessage... messages) {
+		EventMessage result = new EventMessage();
+		for (EventMessage message : messages) {
+			for (int i = 0; i < message.getEventCount(); i++) {
+				result.addEvent(message.getEvent(i));
+			}
+		}
+
+		return result;
+	}
+
+	private static EventMessage slice(EventMessage message, int count) {
+		EventMessage result = new EventMessage();
+		for (int i = 0; i < count; i++) {
+			result.addEvent(message.getEvent(i));
+		}
+
+		return result;
+	}
+
+	private static void assertEvents(EventMessage expected, EventMessage actual) {
+		assertEquals(expected.getEventCount(), actual.getEventCount());
+		for (int i = 0; i < expected.getEventCount(); i++) {
+			BinaryEventMessageSerializerTest.assertEventEquals(expected.getEvent(i),
+				actual.getEvent(i));
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.qmonix.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * Checks weights of events kept by {@link EventSampler}.
+ */
+public class EventSamplerTest {
+
+	/* Token bucket of 10 events per second refills a token in 100 ms. */
+	private static final long REFILL_MS = 150;
+
+
+	@Test
+	public void carriesDiscardedEventsToTheNextEventOfTheSameTag() throws InterruptedException {
+		EventSampler sampler = EventSamplerTest.createRateLimitingSampler();
+
+		EventSamplerTest.fireBurst(sampler, "t.hot", 100);
+		Thread.sleep(REFILL_MS);
+
+		assertEquals(100, sampler.admit("t.hot"));
+	}
+
+	@Test
+	public void keepsStatesForLimitedTagsOnly() throws InterruptedException {
+		EventSampler sampler = EventSamplerTest.createRateLimitingSampler();
+		for (int i = 0; i < EventSampler.MAX_TAG_STATES + 100; i++) {
+			assertEquals(1, sampler.admit("u." + i));
+		}
+
+		/* Tag still gets its own state, so discarded events are carried over. */
+		EventSamplerTest.fireBurst(sampler, "t.hot", 100);
+		Thread.sleep(REFILL_MS);
+
+		assertEquals(100, sampler.admit("t.hot"));
+	}
+
+	@Test
+	public void doesNotCarryDiscardedEventsAcrossTagsOfSharedState()
+		throws InterruptedException {
+		EventSampler sampler = EventSamplerTest.createRateLimitingSampler();
+		for (int i = 0; i < EventSampler.MAX_TAG_STATES; i++) {
+			sampler.admit("t." + i);
+		}
+
+		EventSamplerTest.fireBurst(sampler, "t.hot", 100);
+		Thread.sleep(REFILL_MS);
+
+		assertEquals(1, sampler.admit("t.cold"));
+	}
+
+	@Test
+	public void weightsSharedStateByInverseSampleRate() {
+		SamplingPolicy policy = new SamplingPolicy();
+		policy.setPrefixRule("t.", new SamplingPolicy.Rule(0.3));
+		EventSampler sampler = new EventSampler(policy);
+		for (int i = 0; i < EventSampler.MAX_TAG_STATES; i++) {
+			sampler.admit("t." + i);
+		}
+
+		int events = 100000;
+		long weights = 0;
+		for (int i = 0; i < events; i++) {
+			long weight = sampler.admit(i % 100 == 0 ? "t.cold" : "t.hot");
+			assertTrue(weight == 0 || weight == 3 || weight == 4);
+			weights += weight;
+		}
+
+		assertEquals(events, weights, events * 0.02);
+	}
+
+
+	// Private methods.
+
+	private static EventSampler createRateLimitingSampler() {
+		SamplingPolicy policy = new SamplingPolicy();
+		policy.setPrefixRule("t.", new SamplingPolicy.Rule(1, 10, 1));
+		return new EventSampler(policy);
+	}
+
+	private static void fireBurst(EventSampler sampler, String tag, int events) {
+		assertEquals(1, sampler.admit(tag));
+		for (int i = 1; i < events; i++) {
+			assertEquals(0, sampler.admit(tag));
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package com.qmonix.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.qmonix.sdk.helpers.ContentEncoding;
+import com.qmonix.sdk.helpers.HttpTransport;
+
+
+/**
+ * Checks deferred dispatching of {@link HttpEventDispatcher} with simulated device conditions.
+ */
+public class HttpEventDispatcherDeferralTest {
+
+	private static final long DELIVERY_TIMEOUT_MS = 5000;
+
+	private CountingTransport transport;
+	private SimulatedDeviceConditions conditions;
+	private HttpEventDispatcher dispatcher;
+
+
+	@Before
+	public void setUp() {
+		this.transport = new CountingTransport();
+		this.conditions = new SimulatedDeviceConditions();
+		this.dispatcher = new HttpEventDispatcher(this.transport, false);
+	}
+
+	@After
+	public void tearDown() {
+		this.dispatcher.shutdown();
+	}
+
+	@Test
+	public void coalescesDeferredDispatches() throws InterruptedException {
+		this.dispatcher.setDeferral(new DeferralPolicy(60000), this.conditions);
+		HttpEventDispatcherTest.ResultHandler first = new HttpEventDispatcherTest.ResultHandler();
+		HttpEventDispatcherTest.ResultHandler second =
+			new HttpEventDispatcherTest.ResultHandler();
+
+		for (int i = 0; i < 10; i++) {
+			this.dispatcher.submit(new Event("tap", 1400000000 + i));
+		}
+		this.dispatcher.dispatch(first);
+		this.dispatcher.dispatch(first);
+		this.dispatcher.submit(new Event("tap", 1400000010));
+		this.dispatcher.dispatch(second);
+
+		assertEquals(0, this.transport.posts.get());
+		assertEquals(0, first.successes + first.errors);
+
+		this.conditions.setRadioActive(true);
+		this.awaitPosts(1);
+		this.awaitSuccess(second);
+
+		assertEquals(1, this.transport.posts.get());
+		assertEquals(1, first.successes);
+		assertEquals(1, second.successes);
+		assertEquals(11, this.dispatcher.getMetrics().getDispatchedEvents());
+	}
+
+	@Test
+	public void sendsDeferredDispatchAfterMaxDelay() throws InterruptedException {
+		this.dispatcher.setDeferral(new DeferralPolicy(300, 100, true, true, false),
+			this.conditions);
+		HttpEventDispatcherTest.ResultHandler handler =
+			new HttpEventDispatcherTest.ResultHandler();
+
+		long start = System.currentTimeMillis();
+		this.dispatcher.submit(new Event("tap", 1400000000));
+		this.dispatcher.dispatch(handler);
+		assertEquals(0, this.transport.posts.get());
+
+		this.awaitSuccess(handler);
+
+		assertTrue(System.currentTimeMillis() - start >= 300);
+		assertEquals(1, this.transport.posts.get());
+		assertEquals(1, handler.successes);
+	}
+
+	@Test
+	public void failsDeferredDispatchesOnShutdown() throws InterruptedException {
+		this.dispatcher.setDeferral(new DeferralPolicy(200, 100, true, true, true),
+			this.conditions);
+		HttpEventDispatcherTest.ResultHandler handler =
+			new HttpEventDispatcherTest.ResultHandler();
+
+		this.dispatcher.submit(new Event("tap", 1400000000));
+		this.dispatcher.dispatch(handler);
+		this.dispatcher.shutdown();
+
+		assertEquals(1, handler.errors);
+
+		/* Neither the timer nor a change of conditions sends it later. */
+		this.conditions.setNetwork(true, true);
+		Thread.sleep(400);
+
+		assertEquals(0, this.transport.posts.get());
+		assertEquals(0, handler.successes);
+		assertEquals(1, handler.errors);
+	}
+
+	@Test
+	public void failsDeferredDispatchesWithoutDispatcherLock() {
+		this.dispatcher.setDeferral(new DeferralPolicy(60000), this.conditions);
+		final HttpEventDispatcher dispatcher = this.dispatcher;
+		final boolean[] lockHeld = new boolean[] {true};
+		EventDispatchHandler handler = new EventDispatchHandler() {
+			@Override
+			public void onSuccess() {
+			}
+
+			@Override
+			public void onError(String errorMessage) {
+				lockHeld[0] = Thread.holdsLock(dispatcher);
+			}
+		};
+
+		this.dispatcher.submit(new Event("tap", 1400000000));
+		this.dispatcher.dispatch(handler);
+		this.dispatcher.shutdown();
+
+		assertFalse(lockHeld[0]);
+	}
+
+	@Test
+	public void checksRadioActivityWithinItsTail() {
+		assertEquals(2000, new DeferralPolicy(60000).getCheckInterval());
+		assertEquals(15000, new DeferralPolicy(60000, 15000, true, true, false)
+			.getCheckInterval());
+	}
+
+
+	// Private methods.
+
+	private void awaitPosts(int posts) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MS;
+		while (this.transport.posts.get() < posts && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	private void awaitSuccess(HttpEventDispatcherTest.ResultHandler handler)
+		throws InterruptedException {
+		long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MS;
+		while (handler.successes == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+
+	/**
+	 * Counts posted messages without sending them anywhere.
+	 */
+	static class CountingTransport implements HttpTransport {
+
+		final AtomicInteger posts = new AtomicInteger();
+
+
+		@Override
+		public String postMessage(byte[] content, int length, ContentEncoding encoding,
+			String contentType) {
+			this.posts.incrementAndGet();
+			return "";
+		}
+
+		@Override
+		public String uiPostMessage(byte[] content, int length, ContentEncoding encoding,
+			String contentType) {
+			return this.postMessage(content, length, encoding, contentType);
+		}
+
+		@Override
+		public void setTimeouts(int connectTimeout, int readTimeout) {
+		}
+
+		@Override
+		public void shutdown() {
+		}
+	}
+}
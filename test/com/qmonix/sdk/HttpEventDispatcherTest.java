@@ -0,0 +1,192 @@
+package com.qmonix.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.qmonix.sdk.bench.StandInCollector;
+import com.qmonix.sdk.helpers.ContentEncoding;
+import com.qmonix.sdk.helpers.HttpTransport;
+
+
+/**
+ * Checks {@link HttpEventDispatcher} against the stand-in collector.
+ */
+public class HttpEventDispatcherTest {
+
+	private StandInCollector collector;
+	private HttpEventDispatcher dispatcher;
+
+
+	@Before
+	public void setUp() throws Exception {
+		this.collector = new StandInCollector(2);
+		this.dispatcher = new HttpEventDispatcher(this.collector.getUri());
+	}
+
+	@After
+	public void tearDown() {
+		this.dispatcher.shutdown();
+		this.collector.stop();
+	}
+
+	@Test
+	public void fallsBackToJsonWhenServerRejectsBinary() {
+		this.collector.setBinaryAccepted(false);
+		this.dispatcher.setSerializer(new BinaryEventMessageSerializer());
+
+		for (int i = 0; i < 10; i++) {
+			this.dispatcher.submit(new VolumeEvent("download.bytes", 1400000000 + i, i));
+		}
+		ResultHandler handler = new ResultHandler();
+		this.dispatcher.dispatch(handler);
+
+		assertEquals(1, handler.successes);
+		assertEquals(0, handler.errors);
+		assertEquals(10, this.collector.getAcceptedEvents());
+		ArrayList<StandInCollector.Request> requests = this.collector.getRequests();
+		assertEquals(2, requests.size());
+		assertEquals(StandInCollector.STATUS_UNSUPPORTED_MEDIA_TYPE, requests.get(0).getStatus());
+		assertEquals(StandInCollector.STATUS_OK, requests.get(1).getStatus());
+
+		/* Dispatcher stays on JSON, so the next message is accepted right away. */
+		this.dispatcher.submit(new Event("app.start", 1400000100));
+		this.dispatcher.dispatch(handler);
+
+		assertEquals(2, handler.successes);
+		assertEquals(11, this.collector.getAcceptedEvents());
+		assertEquals(3, this.collector.getRequests().size());
+	}
+
+	@Test
+	public void sendsBinaryWhenServerAcceptsIt() {
+		this.dispatcher.setSerializer(new BinaryEventMessageSerializer());
+
+		for (int i = 0; i < 10; i++) {
+			this.dispatcher.submit(new Event("app.start", 1400000000 + i));
+		}
+		ResultHandler handler = new ResultHandler();
+		this.dispatcher.dispatch(handler);
+
+		assertEquals(1, handler.successes);
+		assertEquals(10, this.collector.getAcceptedEvents());
+		assertEquals(1, this.collector.getRequests().size());
+	}
+
+	@Test
+	public void closesTransportAfterSynchronousSendOnShutdown() throws InterruptedException {
+		final BlockingTransport transport = new BlockingTransport();
+		final HttpEventDispatcher dispatcher = new HttpEventDispatcher(transport, false);
+		final ResultHandler handler = new ResultHandler();
+
+		dispatcher.submit(new Event("app.start", 1400000000));
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				dispatcher.dispatch(handler);
+			}
+		};
+		Thread stopper = new Thread() {
+			@Override
+			public void run() {
+				dispatcher.shutdown();
+			}
+		};
+		sender.start();
+		assertTrue(transport.sending.await(5, TimeUnit.SECONDS));
+		Thread clearer = new Thread() {
+			@Override
+			public void run() {
+				dispatcher.clear();
+			}
+		};
+		stopper.start();
+		Thread.sleep(200);
+
+		/* Shutdown waits for the send without holding the dispatcher lock. */
+		clearer.start();
+		clearer.join(1000);
+		boolean lockFree = !clearer.isAlive();
+		int shutdownsDuringSend = transport.shutdowns;
+
+		transport.release.countDown();
+		sender.join(5000);
+		stopper.join(5000);
+		clearer.join(5000);
+
+		assertTrue(lockFree);
+		assertEquals(0, shutdownsDuringSend);
+		assertEquals(1, handler.successes);
+		assertEquals(1, transport.shutdowns);
+	}
+
+
+	/**
+	 * Holds posted messages until released and counts shutdowns.
+	 */
+	static class BlockingTransport implements HttpTransport {
+
+		final CountDownLatch sending = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		volatile int shutdowns = 0;
+
+
+		@Override
+		public String postMessage(byte[] content, int length, ContentEncoding encoding,
+			String contentType) {
+			this.sending.countDown();
+			try {
+				this.release.await();
+
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return "";
+		}
+
+		@Override
+		public String uiPostMessage(byte[] content, int length, ContentEncoding encoding,
+			String contentType) {
+			return this.postMessage(content, length, encoding, contentType);
+		}
+
+		@Override
+		public void setTimeouts(int connectTimeout, int readTimeout) {
+		}
+
+		@Override
+		synchronized public void shutdown() {
+			this.shutdowns++;
+		}
+	}
+
+
+	/**
+	 * Counts dispatch results.
+	 */
+	static class ResultHandler implements EventDispatchHandler {
+
+		volatile int successes = 0;
+		volatile int errors = 0;
+		volatile String lastError;
+
+
+		@Override
+		synchronized public void onSuccess() {
+			this.successes++;
+		}
+
+		@Override
+		synchronized public void onError(String errorMessage) {
+			this.errors++;
+			this.lastError = errorMessage;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package com.qmonix.sdk;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+/**
+ * Checks that {@link QLog} inspects the stack only when caller information is logged.
+ */
+public class QLogTest {
+
+	@After
+	public void tearDown() {
+		QLog.setLogClass(true);
+		QLog.setLogMethod(true);
+		QLog.setLogLineNr(true);
+		QLog.setLogLevel(QLog.INFO_LEVEL);
+	}
+
+	@Test
+	public void skipsStackWalkWithoutCallerInfo() {
+		QLog.setLogClass(false);
+		QLog.setLogMethod(false);
+		QLog.setLogLineNr(false);
+
+		long walks = QLog.stackWalks.get();
+		QLog.info("Plain message.");
+		QLog.info("Sent {} events.", 10);
+		QLog.info(new QLog.Message() {
+			@Override
+			public String build() {
+				return "Built message.";
+			}
+		});
+
+		assertEquals(walks, QLog.stackWalks.get());
+	}
+
+	@Test
+	public void skipsStackWalkOfDisabledLevel() {
+		QLog.setLogLevel(QLog.ERROR_LEVEL);
+
+		long walks = QLog.stackWalks.get();
+		QLog.debug("Sent {} events.", 10);
+		QLog.warning("Plain message.");
+
+		assertEquals(walks, QLog.stackWalks.get());
+	}
+
+	@Test
+	public void walksStackForCallerInfo() {
+		QLog.setLogMethod(false);
+
+		long walks = QLog.stackWalks.get();
+		QLog.info("Sent {} events.", 10);
+
+		assertEquals(walks + 1, QLog.stackWalks.get());
+	}
+}
@@ -0,0 +1,38 @@
+package com.qmonix.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * Checks delays computed by {@link RetryPolicy}.
+ */
+public class RetryPolicyTest {
+
+	@Test
+	public void keepsJitteredDelaysWithinBounds() {
+		RetryPolicy policy = new RetryPolicy(10, 1000, 8000);
+		for (int attempt = 1; attempt < 10; attempt++) {
+			long full = Math.min(8000, 1000L << (attempt - 1));
+			long delay = policy.getDelay(attempt, -1);
+			assertTrue(delay >= full / 2 && delay <= full);
+		}
+	}
+
+	@Test
+	public void waitsAsLongAsServerRequests() {
+		RetryPolicy policy = new RetryPolicy(5, 1000, 60000);
+
+		assertEquals(30000, policy.getDelay(1, 30000));
+	}
+
+	@Test
+	public void capsServerRequestedDelayToMaxDelay() {
+		RetryPolicy policy = new RetryPolicy(5, 1000, 60000);
+
+		assertEquals(60000, policy.getDelay(1, 86400000));
+		assertEquals(60000, policy.getDelay(1, Long.MAX_VALUE));
+	}
+}
@@ -0,0 +1,93 @@
+package com.qmonix.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+
+/**
+ * Checks that {@link TimingHistogram} snapshots are consistent while values are recorded.
+ */
+public class TimingHistogramTest {
+
+	private static final int RECORDERS = 4;
+	private static final long VALUE = 1000;
+
+
+	@Test
+	public void movesRecordedValuesToSnapshot() {
+		TimingHistogram histogram = new TimingHistogram(TimeUnit.MILLISECONDS);
+		histogram.record(5);
+		histogram.record(5);
+		histogram.record(70);
+
+		HistogramEvent event = histogram.takeSnapshot("load", 1400000000,
+			HistogramEvent.Format.BUCKETS);
+
+		assertEquals(80, event.getSum());
+		assertEquals(2, event.getBucketIndexes().length);
+		assertEquals(2, event.getBucketCounts()[0]);
+		assertEquals(1, event.getBucketCounts()[1]);
+		assertNull(histogram.takeSnapshot("load", 1400000000, HistogramEvent.Format.BUCKETS));
+	}
+
+	@Test
+	public void keepsCountAndSumOfValueInTheSameSnapshot() throws InterruptedException {
+		final TimingHistogram histogram = new TimingHistogram(TimeUnit.MILLISECONDS);
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final long[] recorded = new long[RECORDERS];
+
+		Thread[] recorders = new Thread[RECORDERS];
+		for (int i = 0; i < RECORDERS; i++) {
+			final int recorder = i;
+			recorders[i] = new Thread() {
+				@Override
+				public void run() {
+					while (running.get()) {
+						histogram.record(VALUE);
+						recorded[recorder]++;
+					}
+				}
+			};
+			recorders[i].start();
+		}
+
+		long count = 0;
+		long deadline = System.currentTimeMillis() + 500;
+		while (System.currentTimeMillis() < deadline) {
+			count += TimingHistogramTest.takeCheckedSnapshot(histogram);
+		}
+
+		running.set(false);
+		long total = 0;
+		for (int i = 0; i < RECORDERS; i++) {
+			recorders[i].join();
+			total += recorded[i];
+		}
+		count += TimingHistogramTest.takeCheckedSnapshot(histogram);
+
+		assertEquals(total, count);
+	}
+
+
+	// Private methods.
+
+	private static long takeCheckedSnapshot(TimingHistogram histogram) {
+		HistogramEvent event = histogram.takeSnapshot("load", 1400000000,
+			HistogramEvent.Format.BUCKETS);
+		if (event == null) {
+			return 0;
+		}
+
+		long count = 0;
+		for (long bucketCount : event.getBucketCounts()) {
+			count += bucketCount;
+		}
+		assertEquals(count * VALUE, event.getSum());
+		return count;
+	}
+}
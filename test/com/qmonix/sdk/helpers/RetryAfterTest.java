@@ -0,0 +1,49 @@
+package com.qmonix.sdk.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+
+/**
+ * Checks parsing of Retry-After header values by {@link RetryAfter}.
+ */
+public class RetryAfterTest {
+
+	@Test
+	public void parsesDeltaSeconds() {
+		assertEquals(120000, RetryAfter.parse(" 120 "));
+		assertEquals(0, RetryAfter.parse("0"));
+		assertEquals(0, RetryAfter.parse("-5"));
+	}
+
+	@Test
+	public void capsDeltaSecondsTooLongForMilliseconds() {
+		assertEquals(Long.MAX_VALUE, RetryAfter.parse(Long.toString(Long.MAX_VALUE / 1000)));
+		assertEquals(Long.MAX_VALUE, RetryAfter.parse(Long.toString(Long.MAX_VALUE)));
+		assertEquals(Long.MAX_VALUE, RetryAfter.parse("99999999999999999999999"));
+	}
+
+	@Test
+	public void parsesHttpDate() {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz",
+			Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		String date = format.format(new Date(System.currentTimeMillis() + 60000));
+
+		long delay = RetryAfter.parse(date);
+		assertTrue(delay > 55000 && delay <= 60000);
+	}
+
+	@Test
+	public void rejectsMalformedValues() {
+		assertEquals(-1, RetryAfter.parse(null));
+		assertEquals(-1, RetryAfter.parse("soon"));
+	}
+}